@@ -14,8 +14,11 @@ import org.apache.commons.cli.ParseException;
 import backend.dm.DataManager;
 import backend.server.Server;
 import backend.tbm.TableManager;
+import backend.tbm.TableManagerImpl;
 import backend.tm.TransactionManager;
 import backend.util.Panic;
+import backend.vm.LockTable;
+import backend.vm.Vacuum;
 import backend.vm.VersionManager;
 import backend.vm.VersionManagerImpl;
 import common.Error;
@@ -27,40 +30,55 @@ public class Launcher {
     public static final long KB = 1 << 10;
     public static final long MB = 1 << 20;
     public static final long GB = 1 << 30;
+    // 默认每 10 秒清理一轮旧版本
+    public static final long DEFAULT_VACUUM_INTERVAL = 10000;
 
     public static void main(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("cache", true, "-cache lru2|slru");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("deadlock", true, "-deadlock detect|waitdie|woundwait");
+        options.addOption("lockwait", true, "-lockwait 1000 (ms)");
+        options.addOption("vacuum", true, "-vacuum 10000 (ms, 0 to disable)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.getOptionValue("cache"), cmd.hasOption("mmap"),
+                    LockTable.parseMode(cmd.getOptionValue("deadlock")), Long.parseLong(cmd.getOptionValue("lockwait", "0")),
+                    Long.parseLong(cmd.getOptionValue("vacuum", String.valueOf(DEFAULT_VACUUM_INTERVAL))));
             return;
         }
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseMem(cmd.getOptionValue("mem")), cmd.getOptionValue("cache"), cmd.hasOption("mmap"));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, long mem, String cachePolicy, boolean mmap) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, mem, cachePolicy, mmap, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, String cachePolicy, boolean mmap, int lockMode, long lockTimeout,
+                               long vacuumInterval) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
-        VersionManager vm = new VersionManagerImpl(tm, dm);
+        DataManager dm = DataManager.open(path, mem, cachePolicy, mmap, tm);
+        VersionManagerImpl vm = new VersionManagerImpl(tm, dm, lockMode, lockTimeout);
         TableManager tbm = TableManager.open(path, vm, dm);
+        if (vacuumInterval > 0) {
+            Vacuum vacuum = new Vacuum(vm, vacuumInterval);
+            ((TableManagerImpl) tbm).attachVacuum(vacuum);
+            vacuum.start();
+        }
         new Server(port, tbm).start();
     }
 
@@ -2,8 +2,11 @@ package backend.common;
 
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,28 +15,58 @@ public abstract class AbstractCache<T> {
     /*
     引用计数，除了普通的缓存功能，还需要另外维护一个计数。
     除此以外，为了应对多线程场景，还需要记录哪些资源正在从数据源获取中（从数据源获取资源是一个相对费时的操作）。
-    于是有下面三个Map：
+
+    缓存的资源、引用计数和获取状态都放在同一个缓存项 Node 中，缓存项保存在一个 ConcurrentHashMap 里。
+    引用计数是缓存项内部的原子变量，命中缓存时只需要一次 CAS 把引用数加一，不需要加锁；
+    释放时引用数没有归零的话，同样只需要一次 CAS。
      */
+    private static class Node<T> {
+        volatile T obj;
+        // 资源是否已经从数据源获取完成
+        volatile boolean loaded;
+        // 获取完成（或者失败）时结束，等待同一资源的线程在这里阻塞，而不是轮询
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // 引用数，-1 表示缓存项已被驱逐，不能再被引用
+        AtomicInteger refs = new AtomicInteger(1);
+    }
 
     //    实际缓存的数据
-    private HashMap<Long, T> cache;
-    //    元素的引用个数
-    private HashMap<Long, Integer> references;
-    //    正在获取某资源的线程
-    private HashMap<Long, Boolean> getting;
+    private ConcurrentHashMap<Long, Node<T>> cache;
 
     //    缓存的最大缓存资源数
     private int maxResource;
     //    缓存中元素的个数
-    private int count = 0;
+    private AtomicInteger count;
+
+    /*
+    缓存有上限时，引用归零的资源不会立刻被驱逐，而是留在缓存中（引用数为 0），交给驱逐策略管理；
+    缓存满了之后，由驱逐策略挑选一个引用数为 0 的资源驱逐，只有所有资源都被引用时才报错。
+    maxResource 为 0 表示缓存没有上限，此时引用归零的资源直接驱逐，和原来一样。
+
+    驱逐策略不是线程安全的，由 lock 保护。有上限的缓存中，引用数在 0 和 1 之间的变化、缓存满时的驱逐都在 lock 内进行，
+    因此引用数为 0 的缓存项只会在 lock 内被改变，驱逐时不会和命中冲突；引用数大于 0 时的命中和释放仍然不需要加锁。
+     */
+    private EvictionPolicy policy;
     private Lock lock;
 
+    //    命中、未命中和驱逐的次数
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+
     public AbstractCache(int maxResource) {
+        this(maxResource, EvictionPolicy.lruK(maxResource));
+    }
+
+    public AbstractCache(int maxResource, EvictionPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
+        this.policy = policy;
+        cache = new ConcurrentHashMap<>();
+        count = new AtomicInteger();
         lock = new ReentrantLock();
-        getting = new HashMap<>();
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
     }
 
     /**
@@ -48,43 +81,73 @@ public abstract class AbstractCache<T> {
 
     /*
     于是，在通过 get() 方法获取资源时，首先进入一个死循环，来无限尝试从缓存里获取。
-    首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，如果有，就过会再来看看
+    首先就需要检查这个时候是否有其他线程正在从数据源获取这个资源，如果有，就等待它获取完成；
+    获取失败时，所有等待的线程都会抛出同一个异常
 
     当然如果资源在缓存中，就可以直接获取并返回了，记得要给资源的引用数 +1。
-    否则，如果缓存没满的话，就在 getting 中注册一下，该线程准备从数据源获取资源了。
+    否则，如果缓存没满的话，就放入一个尚未获取完成的缓存项，表示该线程准备从数据源获取资源了。
      */
 
     protected T get(long key) throws Exception {
+        Node<T> node;
         while (true) {
-            lock.lock();
-            if (getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            node = cache.get(key);
+            if (node != null) {
+                if (!node.loaded) {
+                    // 请求的资源正在被其他线程获取
+                    awaitLoad(node);
                     continue;
                 }
+                if (retain(node)) {
+                    // 资源在缓存中，直接返回
+                    hits.increment();
+                    return node.obj;
+                }
+                if (node.refs.get() < 0) {
+                    // 缓存项正在被驱逐，等它离开缓存后重新获取
+                    Thread.yield();
+                    continue;
+                }
+                // 有上限的缓存中引用数为 0 的资源，引用数从 0 变为 1 需要在锁内通知驱逐策略
+                lock.lock();
+                try {
+                    if (cache.get(key) == node && node.refs.compareAndSet(0, 1)) {
+                        policy.access(key);
+                        hits.increment();
+                        return node.obj;
+                    }
+                } finally {
+                    lock.unlock();
+                }
                 continue;
             }
 
-            if (cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
-            }
-
             // 尝试获取该资源
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            node = new Node<>();
+            if (maxResource > 0) {
+                lock.lock();
+                try {
+                    if (cache.putIfAbsent(key, node) != null) {
+                        continue;
+                    }
+                    // 缓存满了就先驱逐一个没有被引用的资源
+                    if (count.get() == maxResource && !evict()) {
+                        // 驱逐期间找到这个缓存项的线程正在等待它，同样失败
+                        node.future.completeExceptionally(Error.CacheFullException);
+                        cache.remove(key, node);
+                        throw Error.CacheFullException;
+                    }
+                    count.incrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                if (cache.putIfAbsent(key, node) != null) {
+                    continue;
+                }
+                count.incrementAndGet();
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
+            misses.increment();
             break;
         }
 
@@ -92,40 +155,98 @@ public abstract class AbstractCache<T> {
         try {
             obj = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            cache.remove(key, node);
+            count.decrementAndGet();
+            node.future.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-
+        node.obj = obj;
+        if (maxResource > 0) {
+            lock.lock();
+            try {
+                policy.access(key);
+                node.loaded = true;
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            node.loaded = true;
+        }
+        node.future.complete(obj);
         return obj;
     }
 
+    // 等待其他线程获取资源，获取失败时抛出获取时的异常
+    private void awaitLoad(Node<T> node) throws Exception {
+        try {
+            node.future.get();
+        } catch (ExecutionException e) {
+            // future 中保存的一定是 Exception：getForCache() 抛出的异常，或者驱逐失败时的 CacheFullException
+            throw (Exception) e.getCause();
+        }
+    }
+
+    // 在不加锁的情况下给缓存项增加一个引用，有上限的缓存中引用数为 0 的缓存项需要在锁内处理
+    private boolean retain(Node<T> node) {
+        while (true) {
+            int ref = node.refs.get();
+            if (ref < 0 || (ref == 0 && maxResource > 0)) {
+                return false;
+            }
+            if (node.refs.compareAndSet(ref, ref + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // 驱逐一个引用数为 0 的资源，调用时持有 lock
+    private boolean evict() {
+        long victim = policy.victim();
+        if (victim == EvictionPolicy.NONE) {
+            return false;
+        }
+        Node<T> node = cache.get(victim);
+        node.refs.set(-1);
+        cache.remove(victim);
+        count.decrementAndGet();
+        evictions.increment();
+        releaseForCache(node.obj);
+        return true;
+    }
+
     /**
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
-        try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
+        Node<T> node = cache.get(key);
+        if (maxResource == 0) {
+            // 引用归零后，只有把引用数从 0 改为 -1 的线程负责驱逐，期间被重新引用的话就不驱逐
+            if (node.refs.decrementAndGet() == 0 && node.refs.compareAndSet(0, -1)) {
+                cache.remove(key, node);
+                count.decrementAndGet();
+                releaseForCache(node.obj);
+            }
+            return;
+        }
+        while (true) {
+            int ref = node.refs.get();
+            if (ref > 1) {
+                if (node.refs.compareAndSet(ref, ref - 1)) {
+                    return;
+                }
+                continue;
+            }
+            lock.lock();
+            try {
+                if (node.refs.compareAndSet(1, 0)) {
+                    // 留在缓存中，成为驱逐候选
+                    policy.unpin(key);
+                    return;
+                }
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -135,15 +256,36 @@ public abstract class AbstractCache<T> {
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            for (Long key : cache.keySet()) {
+                Node<T> node = cache.remove(key);
+                if (node != null && node.loaded) {
+                    node.refs.set(-1);
+                    releaseForCache(node.obj);
+                    policy.remove(key);
+                }
             }
+            count.set(0);
         } finally {
             lock.unlock();
         }
     }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // 命中率
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total > 0 ? (double) h / total : 0;
+    }
 }
@@ -0,0 +1,51 @@
+package backend.common;
+
+import backend.util.Panic;
+import common.Error;
+
+/*
+EvictionPolicy 是 AbstractCache 的驱逐策略。
+引用计数保证了正在被使用的资源不会被驱逐；引用归零的资源不再立刻被驱逐，而是作为候选留在缓存中，
+缓存满了之后，再由驱逐策略从候选中挑选一个驱逐，所有候选都被引用时才报错。
+
+策略的所有方法都在 AbstractCache 的锁内调用，实现不需要考虑并发。
+ */
+public interface EvictionPolicy {
+    long NONE = Long.MIN_VALUE;
+
+    // 资源被加载进缓存，或者引用数从 0 变为 1，即一次新的访问；访问后资源被引用，不可驱逐
+    void access(long key);
+
+    // 资源的引用数归零，成为驱逐候选
+    void unpin(long key);
+
+    // 挑选一个候选驱逐，并将其从策略中移除；没有候选时返回 NONE
+    long victim();
+
+    // 资源离开缓存（比如缓存关闭）
+    void remove(long key);
+
+    // 默认策略：LRU-2
+    public static EvictionPolicy lruK(int capacity) {
+        return new LRUKPolicy(2, capacity);
+    }
+
+    public static EvictionPolicy segmentedLru(int capacity) {
+        return new SegmentedLRUPolicy(capacity);
+    }
+
+    // 根据名称创建策略，用于启动参数
+    public static EvictionPolicy of(String name, int capacity) {
+        if (name == null || "".equals(name) || "lru2".equals(name)) {
+            return lruK(capacity);
+        }
+        if ("slru".equals(name)) {
+            return segmentedLru(capacity);
+        }
+        if (name.matches("lru[1-9]")) {
+            return new LRUKPolicy(name.charAt(3) - '0', capacity);
+        }
+        Panic.panic(Error.InvalidEvictionPolicyException);
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+package backend.common;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+LRU-K 驱逐策略。
+每个资源记录最近 K 次访问的时刻，驱逐时选择倒数第 K 次访问最早的候选（向后 K 距离最大）；
+访问不足 K 次的资源 K 距离视为无穷大，最先被驱逐，它们之间按最近一次访问的先后驱逐。
+一次顺序扫描只会让页面访问一次，因此扫描不会把反复访问的热点页挤出缓存。
+
+资源在被引用期间的重复获取（比如一次插入中多次 getPage 同一页）属于相关访问，只算作一次：
+AbstractCache 只在资源被加载或者引用数从 0 变为 1 时调用 access()。
+
+被驱逐资源的访问记录会保留一段时间（最多 capacity 条），资源很快再次被加载时可以接上之前的记录。
+ */
+class LRUKPolicy implements EvictionPolicy {
+    private int k;
+    private int capacity;
+    private long clock;
+
+    // 缓存中资源的访问记录，times[0] 为最近一次访问
+    private HashMap<Long, long[]> history;
+    // 已被驱逐资源的访问记录
+    private LinkedHashMap<Long, long[]> retained;
+    // 驱逐候选，候选的访问记录在候选期间不会变化
+    private TreeSet<Long> candidates;
+
+    LRUKPolicy(int k, int capacity) {
+        this.k = k;
+        this.capacity = Math.max(capacity, 1);
+        this.history = new HashMap<>();
+        this.retained = new LinkedHashMap<Long, long[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+                return size() > LRUKPolicy.this.capacity;
+            }
+        };
+        this.candidates = new TreeSet<>((a, b) -> {
+            long[] ta = history.get(a), tb = history.get(b);
+            int c = Long.compare(ta[k - 1], tb[k - 1]);
+            if (c == 0) {
+                c = Long.compare(ta[0], tb[0]);
+            }
+            return c != 0 ? c : Long.compare(a, b);
+        });
+    }
+
+    @Override
+    public void access(long key) {
+        long[] times = history.get(key);
+        if (times != null) {
+            candidates.remove(key);
+        } else {
+            times = retained.remove(key);
+            if (times == null) {
+                times = new long[k];
+            }
+            history.put(key, times);
+        }
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    @Override
+    public void unpin(long key) {
+        candidates.add(key);
+    }
+
+    @Override
+    public long victim() {
+        Long key = candidates.pollFirst();
+        if (key == null) {
+            return NONE;
+        }
+        retained.put(key, history.remove(key));
+        return key;
+    }
+
+    @Override
+    public void remove(long key) {
+        if (history.containsKey(key)) {
+            candidates.remove(key);
+            history.remove(key);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package backend.common;
+
+/*
+以 long 为键的哈希表，键不需要装箱。
+开放寻址、线性探测，删除时把后面的元素向前移动填补空位，不留下删除标记。
+值不能为 null，null 表示空位。不是线程安全的。
+ */
+public class LongMap<V> {
+    private long[] keys;
+    private Object[] vals;
+    private int size;
+    private int mask;
+
+    public LongMap() {
+        this(8);
+    }
+
+    public LongMap(int capacity) {
+        int n = 16;
+        while (n < capacity * 2) {
+            n <<= 1;
+        }
+        keys = new long[n];
+        vals = new Object[n];
+        mask = n - 1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            Object v = vals[i];
+            if (v == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) v;
+            }
+        }
+    }
+
+    // 返回键原来对应的值
+    @SuppressWarnings("unchecked")
+    public V put(long key, V val) {
+        int i = slot(key);
+        for (; vals[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Object old = vals[i];
+                vals[i] = val;
+                return (V) old;
+            }
+        }
+        keys[i] = key;
+        vals[i] = val;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        for (; ; i = (i + 1) & mask) {
+            if (vals[i] == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        Object old = vals[i];
+        // 空位之后的元素，如果它的初始位置不在 (i, j] 之间，就移动到空位上
+        for (int j = (i + 1) & mask; vals[j] != null; j = (j + 1) & mask) {
+            int k = slot(keys[j]);
+            if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                keys[i] = keys[j];
+                vals[i] = vals[j];
+                i = j;
+            }
+        }
+        vals[i] = null;
+        size--;
+        return (V) old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldVals = vals;
+        keys = new long[oldKeys.length * 2];
+        vals = new Object[oldVals.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldVals[i] != null) {
+                put(oldKeys[i], (V) oldVals[i]);
+            }
+        }
+    }
+}
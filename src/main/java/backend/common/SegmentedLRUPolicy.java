@@ -0,0 +1,81 @@
+package backend.common;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/*
+分段 LRU 驱逐策略。
+缓存中的资源分为试用段和保护段，两段内部都按最近访问的先后排列。
+新加载的资源进入试用段，在试用段中被再次访问后晋升到保护段；保护段超过容量的 80% 时，
+其中最久没有访问的资源降回试用段。驱逐时先从试用段中挑选最久没有访问的候选，试用段没有候选时再从保护段中挑选。
+只访问一次的资源（比如顺序扫描）只会停留在试用段中。
+ */
+class SegmentedLRUPolicy implements EvictionPolicy {
+    private int protectedCapacity;
+
+    private LinkedHashSet<Long> probation;
+    private LinkedHashSet<Long> protect;
+    // 正在被引用的资源，不能驱逐
+    private HashSet<Long> pinned;
+
+    SegmentedLRUPolicy(int capacity) {
+        this.protectedCapacity = Math.max(capacity * 4 / 5, 1);
+        this.probation = new LinkedHashSet<>();
+        this.protect = new LinkedHashSet<>();
+        this.pinned = new HashSet<>();
+    }
+
+    @Override
+    public void access(long key) {
+        pinned.add(key);
+        if (protect.remove(key)) {
+            protect.add(key);
+            return;
+        }
+        if (!probation.remove(key)) {
+            probation.add(key);
+            return;
+        }
+        protect.add(key);
+        if (protect.size() > protectedCapacity) {
+            Iterator<Long> it = protect.iterator();
+            long eldest = it.next();
+            it.remove();
+            probation.add(eldest);
+        }
+    }
+
+    @Override
+    public void unpin(long key) {
+        pinned.remove(key);
+    }
+
+    @Override
+    public long victim() {
+        long key = pollUnpinned(probation);
+        if (key == NONE) {
+            key = pollUnpinned(protect);
+        }
+        return key;
+    }
+
+    private long pollUnpinned(LinkedHashSet<Long> segment) {
+        Iterator<Long> it = segment.iterator();
+        while (it.hasNext()) {
+            long key = it.next();
+            if (!pinned.contains(key)) {
+                it.remove();
+                return key;
+            }
+        }
+        return NONE;
+    }
+
+    @Override
+    public void remove(long key) {
+        pinned.remove(key);
+        probation.remove(key);
+        protect.remove(key);
+    }
+}
@@ -18,6 +18,20 @@ public interface DataManager {
 
     long insert(long xid, byte[] data) throws Exception;
 
+    /*
+    下面几个方法供清理（Vacuum）使用。
+    free() 标记一个不再被任何地方引用的 DataItem，之后 compact() 可以回收它的空间；
+    uidsOfPage() 列出页面中所有合法的 DataItem，页面正在被插入时返回 null；
+    compact() 回收页面末尾被标记的 DataItem 所占的空间，返回回收的字节数
+     */
+    void free(long uid) throws Exception;
+
+    long[] uidsOfPage(int pgno) throws Exception;
+
+    int compact(int pgno) throws Exception;
+
+    int getPageNumber();
+
     void close();
 
     /*
@@ -26,7 +40,12 @@ public interface DataManager {
     而从已有文件创建，则是需要对第一页进行校验，来判断是否需要执行恢复流程。并重新对第一页生成随机字节
      */
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, null, false, tm);
+    }
+
+    // cachePolicy 和 mmap 的含义同 open()，只对这一次打开有效，不会记录在文件中
+    public static DataManager create(String path, long mem, String cachePolicy, boolean mmap, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, mem, cachePolicy, mmap);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
@@ -35,11 +54,23 @@ public interface DataManager {
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, null, tm);
+    }
+
+    // cachePolicy 为页面缓存的驱逐策略，null 时使用默认的 LRU-2
+    public static DataManager open(String path, long mem, String cachePolicy, TransactionManager tm) {
+        return open(path, mem, cachePolicy, false, tm);
+    }
+
+    // mmap 为 true 时页面缓存通过内存映射读写 DB 文件
+    public static DataManager open(String path, long mem, String cachePolicy, boolean mmap, TransactionManager tm) {
+        PageCache pc = PageCache.open(path, mem, cachePolicy, mmap);
         Logger lg = Logger.open(path);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         if (!dm.loadCheckPageOne()) {
             Recover.recover(tm, lg, pc);
+            // 恢复过程中修改的页面都登记在脏页表中，检查点把它们写回之后，恢复用过的日志段才可以删除
+            dm.checkpoint();
         }
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
@@ -10,24 +10,42 @@ import backend.dm.page.PageOne;
 import backend.dm.pageCache.PageCache;
 import backend.dm.pageIndex.PageIndex;
 import backend.dm.pageIndex.PageInfo;
+import backend.tm.TMImplement;
 import backend.tm.TransactionManager;
 import backend.util.Panic;
 import backend.util.Types;
 import common.Error;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    // 距离上一个检查点写入的日志超过该字节数时，做一次检查点
+    public static final long CHECKPOINT_INTERVAL = 1L << 26;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
+    // 事务 -> 不晚于其第一条日志的 LSN，检查点据此保留活跃事务撤销所需的日志
+    private ConcurrentHashMap<Long, Long> firstLsn;
+    private Lock checkpointLock;
+    private volatile long lastCheckpoint;
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantLock();
     }
 
 
@@ -120,9 +138,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         try {
             pg = pc.getPage(pi.pgno);
             byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            short offset = PageN.insert(pg, raw);
+            short offset;
+            beginUpdate(pg);
+            try {
+                log(xid, log);
+                offset = PageN.insert(pg, raw);
+            } finally {
+                endUpdate(pg);
+            }
 
             pg.release();
             return Types.addressToUid(pi.pgno, offset);
@@ -137,10 +160,168 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    // 清理产生的日志不属于任何事务，记在 SUPER_XID 名下，恢复时总是重做
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = super.get(uid);
+        try {
+            di.free(TMImplement.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    /*
+    遍历页面时先从 pageIndex 中取出页面，和插入一样独占页面的 FSO 之后的空间：
+    遍历期间不会有新的 DataItem 写入，页面上的 DataItem 从 OF_DATA 开始依次排列到 FSO。
+     */
+    @Override
+    public long[] uidsOfPage(int pgno) throws Exception {
+        PageInfo pi = pIndex.remove(pgno);
+        if (pi == null) {
+            return null;
+        }
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+            byte[] raw = pg.getData();
+            int fso = PageN.getFSO(pg);
+            long[] uids = new long[16];
+            int n = 0;
+            for (int offset = PageN.OF_DATA; offset < fso; offset += DataItem.lengthAt(raw, offset)) {
+                if (!DataItem.isValidAt(raw, offset)) {
+                    continue;
+                }
+                if (n == uids.length) {
+                    uids = Arrays.copyOf(uids, n * 2);
+                }
+                uids[n++] = Types.addressToUid(pgno, (short) offset);
+            }
+            return Arrays.copyOf(uids, n);
+        } finally {
+            if (pg != null) {
+                pg.release();
+            }
+            pIndex.add(pi.pgno, pi.freeSpace);
+        }
+    }
+
+    // FSO 退回到最后一个没有被清理的 DataItem 之后，先写日志再修改页面
+    @Override
+    public int compact(int pgno) throws Exception {
+        PageInfo pi = pIndex.remove(pgno);
+        if (pi == null) {
+            return 0;
+        }
+        Page pg = null;
+        int freeSpace = pi.freeSpace;
+        try {
+            pg = pc.getPage(pgno);
+            byte[] raw = pg.getData();
+            int fso = PageN.getFSO(pg);
+            int end = PageN.OF_DATA;
+            for (int offset = PageN.OF_DATA; offset < fso; offset += DataItem.lengthAt(raw, offset)) {
+                if (!DataItem.isFreedAt(raw, offset)) {
+                    end = offset + DataItem.lengthAt(raw, offset);
+                }
+            }
+            if (end == fso) {
+                return 0;
+            }
+            beginUpdate(pg);
+            try {
+                log(TMImplement.SUPER_XID, Recover.compactLog(TMImplement.SUPER_XID, pgno, (short) end));
+                PageN.compact(pg, (short) end);
+            } finally {
+                endUpdate(pg);
+            }
+            freeSpace = PageN.getFreeSpace(pg);
+            return fso - end;
+        } finally {
+            if (pg != null) {
+                pg.release();
+            }
+            pIndex.add(pi.pgno, freeSpace);
+        }
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pc.getPageNumber();
+    }
+
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        log(xid, log);
+    }
+
+    // 修改页面前将其登记为脏页，此时的日志末尾不会晚于这次修改对应的日志；
+    // 修改对应的日志落盘后调用 endUpdate()，在此之间检查点不会写回该页面
+    public void beginUpdate(Page pg) {
+        pg.lock();
+        try {
+            pg.beginUpdate();
+            pc.markDirty(pg, logger.nextLsn());
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    public void endUpdate(Page pg) {
+        pg.lock();
+        try {
+            pg.endUpdate();
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    private void log(long xid, byte[] log) {
+        firstLsn.computeIfAbsent(xid, k -> logger.nextLsn());
+        long lsn = logger.log(log);
+        if (lsn - lastCheckpoint >= CHECKPOINT_INTERVAL && checkpointLock.tryLock()) {
+            try {
+                if (lsn - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    doCheckpoint();
+                }
+            } finally {
+                checkpointLock.unlock();
+            }
+        }
+    }
+
+    /*
+    页面在缓存中被释放时就已经写回并从脏页表中移除，检查点只需写回仍被持有的脏页。
+    redoLsn 取写回前的日志末尾与剩余脏页 recLsn 中的最小值，在它之前的日志对应的修改都已经落盘；
+    undoLsn 再与所有活跃事务的第一条日志取最小值，崩溃后撤销这些事务仍需要它们的日志。
+    检查点日志写入之后，所有日志都在 undoLsn 之前的段就可以删除了。
+     */
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            doCheckpoint();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void doCheckpoint() {
+        long redoLsn = logger.nextLsn();
+        pc.flushDirtyPages();
+        redoLsn = Math.min(redoLsn, pc.minRecLsn());
+        long undoLsn = redoLsn;
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (!tm.isActive(entry.getKey())) {
+                it.remove();
+            } else {
+                undoLsn = Math.min(undoLsn, entry.getValue());
+            }
+        }
+        lastCheckpoint = logger.log(Recover.checkpointLog(redoLsn, undoLsn, pc.getPageNumber()));
+        logger.removeBefore(undoLsn);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -163,9 +344,11 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     // DataManager 正常关闭时，需要执行缓存和日志的关闭流程，不要忘了设置第一页的字节校验
+    // 缓存关闭后所有页面都已写回，关闭前的检查点可以删除几乎全部的日志段
     @Override
     public void close() {
         super.close();
+        checkpoint();
         logger.close();
 
         PageOne.setVcClose(pageOne);
@@ -11,125 +11,198 @@ import backend.dm.pageCache.PageCache;
 import backend.tm.TransactionManager;
 import backend.util.Panic;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_COMPACT = 3;
 
-    private static final int REDO = 0;
-    private static final int UNDO = 1;
+    // 内存中缓冲的待重做日志的最大字节数，超过后先重做已缓冲的部分
+    private static final long REDO_BATCH_SIZE = 1L << 26;
+    // 并行重做时单个任务负责的最大页数
+    private static final int REDO_TASK_PAGES = 4;
 
-    static class InsertLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] raw;
+    static class CheckpointLogInfo {
+        long redoLsn;
+        long undoLsn;
+        int pageNumber;
     }
 
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
-    }
+    /*
+    检查点日志记录了恢复的起点：
+    redoLsn 之前的日志对应的修改都已经写回数据文件，重做只需从 redoLsn 开始；
+    undoLsn 不晚于 redoLsn 和检查点时所有活跃事务的第一条日志，撤销需要从 undoLsn 开始收集日志。
+    undoLsn 之前的日志段在检查点之后就会被删除，现存的日志最多比最后一个检查点早一个检查点间隔。
+
+    恢复只顺序读取一遍日志：
+    已完成事务的日志按顺序缓冲起来，读到检查点时丢弃缓冲中 redoLsn 之前的日志；
+    缓冲超过 REDO_BATCH_SIZE 或日志读完时，将缓冲的日志按页号分组，在 ForkJoinPool 上并行地逐页重做。
+    同一页上的日志仍然按 LSN 顺序执行，而不同页之间互不影响，所以各页可以并行重做；
+    重做是幂等的物理写入，即使重做了一部分检查点之前的日志，结果也和从头重做一样。
+    活跃事务的日志在同一遍扫描中按 XID 收集起来，重做结束后对每个事务倒序撤销。
+    最后按日志和检查点中出现的最大页号截断数据文件。
 
+    重做和撤销修改的页面都登记到脏页表中，recLsn 为修改该页的第一条日志（撤销时为该事务的第一条日志）。
+    没有被持有的页面会一直留在缓存中，只有登记过的页面才会被恢复之后的检查点写回；
+    否则检查点认为没有脏页，删除了产生这些页面的日志，再次崩溃时修改就丢失了。
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        Map<Long, Boolean> active = new HashMap<>();
+        Map<Long, List<byte[]>> undoLogs = new HashMap<>();
+        Map<Long, Long> undoLsns = new HashMap<>();
+        RedoBuffer redo = new RedoBuffer();
         int maxPgno = 0;
+
+        lg.rewind();
         while (true) {
             byte[] log = lg.next();
             if (log == null) break;
-            int pgno;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
+            if (isCheckpointLog(log)) {
+                CheckpointLogInfo ckpt = parseCheckpointLog(log);
+                maxPgno = Math.max(maxPgno, ckpt.pageNumber);
+                redo.dropBefore(ckpt.redoLsn);
+                continue;
+            }
+            maxPgno = Math.max(maxPgno, pgnoOf(log));
+            long xid = xidOf(log);
+            if (active.computeIfAbsent(xid, tm::isActive)) {
+                undoLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+                undoLsns.putIfAbsent(xid, lg.lsn());
             } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+                redo.add(lg.lsn(), log);
+                if (redo.size >= REDO_BATCH_SIZE) {
+                    redoBatch(pc, pool, redo);
+                }
             }
-            if (pgno > maxPgno) {
-                maxPgno = pgno;
+        }
+        redoBatch(pc, pool, redo);
+        pool.shutdown();
+        System.out.println("Redo Transactions Over.");
+
+        // 对所有active log进行倒序undo
+        for (Map.Entry<Long, List<byte[]>> entry : undoLogs.entrySet()) {
+            List<byte[]> logs = entry.getValue();
+            for (int i = logs.size() - 1; i >= 0; i--) {
+                undoLog(pc, logs.get(i), undoLsns.get(entry.getKey()));
             }
+            tm.abort(entry.getKey());
         }
+        System.out.println("Undo Transactions Over.");
+
         if (maxPgno == 0) {
             maxPgno = 1;
         }
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
+        System.out.println("Recovery Over.");
+    }
 
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
+    // 按 LSN 顺序缓冲的待重做日志
+    static class RedoBuffer {
+        List<byte[]> logs = new ArrayList<>();
+        long[] lsns = new long[1024];
+        long size;
 
-        System.out.println("Recovery Over.");
+        void add(long lsn, byte[] log) {
+            int n = logs.size();
+            if (n == lsns.length) {
+                lsns = Arrays.copyOf(lsns, n * 2);
+            }
+            lsns[n] = lsn;
+            logs.add(log);
+            size += log.length;
+        }
+
+        // 丢弃 LSN 在 lsn 之前的日志，它们的修改已经写回数据文件
+        void dropBefore(long lsn) {
+            int n = 0;
+            while (n < logs.size() && lsns[n] < lsn) {
+                size -= logs.get(n).length;
+                n++;
+            }
+            logs.subList(0, n).clear();
+            System.arraycopy(lsns, n, lsns, 0, logs.size());
+        }
+
+        void clear() {
+            logs.clear();
+            size = 0;
+        }
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+    private static void redoBatch(PageCache pc, ForkJoinPool pool, RedoBuffer redo) {
+        // 按页号分组，同时记下每页第一条日志的 LSN
+        Map<Integer, List<byte[]>> pages = new LinkedHashMap<>();
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 0; i < redo.logs.size(); i++) {
+            byte[] log = redo.logs.get(i);
+            List<byte[]> logs = pages.get(pgnoOf(log));
+            if (logs == null) {
+                logs = new ArrayList<>();
+                pages.put(pgnoOf(log), logs);
+                lsns.add(redo.lsns[i]);
             }
+            logs.add(log);
         }
+        redo.clear();
+        pool.invoke(new RedoTask(pc, new ArrayList<>(pages.values()), lsns, 0, pages.size()));
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+    // 重做 [lo, hi) 范围内的页，页数较多时一分为二并行执行
+    static class RedoTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        PageCache pc;
+        List<List<byte[]>> pages;
+        List<Long> lsns;
+        int lo;
+        int hi;
+
+        RedoTask(PageCache pc, List<List<byte[]>> pages, List<Long> lsns, int lo, int hi) {
+            this.pc = pc;
+            this.pages = pages;
+            this.lsns = lsns;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= REDO_TASK_PAGES) {
+                for (int i = lo; i < hi; i++) {
+                    redoPage(pc, pages.get(i), lsns.get(i));
                 }
+                return;
             }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RedoTask(pc, pages, lsns, lo, mid), new RedoTask(pc, pages, lsns, mid, hi));
         }
+    }
 
-        // 对所有active log进行倒序undo
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+    // 同一页上的日志按顺序重做，recLsn 为其中第一条日志的 LSN
+    private static void redoPage(PageCache pc, List<byte[]> logs, long recLsn) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgnoOf(logs.get(0)));
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            pc.markDirty(pg, recLsn);
+            for (byte[] log : logs) {
+                redoLog(pg, log);
             }
-            tm.abort(entry.getKey());
+        } finally {
+            pg.release();
         }
     }
 
@@ -137,6 +210,14 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isCompactLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMPACT;
+    }
+
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
@@ -153,47 +234,6 @@ public class Recover {
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        li.pgno = (int) (uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
-        return li;
-    }
-
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            PageN.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
-        }
-    }
-
     // [LogType] [XID] [Pgno] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
@@ -207,30 +247,99 @@ public class Recover {
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+    // 回收页面空间的日志，格式与插入日志相同，没有 Raw，Offset 为回收后的 FSO
+    // [LogType] [XID] [Pgno] [Offset]
+    public static byte[] compactLog(long xid, int pgno, short fso) {
+        byte[] logTypeRaw = {LOG_TYPE_COMPACT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte(fso);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw);
+    }
+
+    // [LogType] [RedoLSN] [UndoLSN] [PageNumber]
+    private static final int OF_CHECKPOINT_REDO = OF_TYPE + 1;
+    private static final int OF_CHECKPOINT_UNDO = OF_CHECKPOINT_REDO + 8;
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_UNDO + 8;
+
+    public static byte[] checkpointLog(long redoLsn, long undoLsn, int pageNumber) {
+        byte[] logType = {LOG_TYPE_CHECKPOINT};
+        byte[] redoRaw = Parser.long2Byte(redoLsn);
+        byte[] undoRaw = Parser.long2Byte(undoLsn);
+        byte[] pagesRaw = Parser.int2Byte(pageNumber);
+        return Bytes.concat(logType, redoRaw, undoRaw, pagesRaw);
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        CheckpointLogInfo li = new CheckpointLogInfo();
+        li.redoLsn = buf.getLong(OF_CHECKPOINT_REDO);
+        li.undoLsn = buf.getLong(OF_CHECKPOINT_UNDO);
+        li.pageNumber = buf.getInt(OF_CHECKPOINT_PAGES);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
+    /*
+    解析日志时直接从日志的字节数组中读取各个字段，不再拷贝出子数组：
+    插入日志和回收日志的页号和偏移直接存放在日志中，更新日志则从 UID 中解析出页号和偏移。
+     */
+    private static long xidOf(byte[] log) {
+        return ByteBuffer.wrap(log).getLong(OF_XID);
+    }
+
+    private static int pgnoOf(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        if (isInsertLog(log) || isCompactLog(log)) {
+            return buf.getInt(OF_INSERT_PGNO);
+        }
+        return (int) (buf.getLong(OF_UPDATE_UID) >>> 32);
+    }
+
+    private static short offsetOf(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        if (isInsertLog(log) || isCompactLog(log)) {
+            return buf.getShort(OF_INSERT_OFFSET);
+        }
+        return (short) (buf.getLong(OF_UPDATE_UID) & ((1L << 16) - 1));
+    }
+
+    // 在页面上重做一条日志：插入日志重新写入 raw，更新日志写入 newRaw，都直接从日志中拷贝；回收日志重新设置 FSO
+    private static void redoLog(Page pg, byte[] log) {
+        short offset = offsetOf(log);
+        if (isCompactLog(log)) {
+            PageN.compact(pg, offset);
+        } else if (isInsertLog(log)) {
+            PageN.recoverInsert(pg, log, OF_INSERT_RAW, log.length - OF_INSERT_RAW, offset);
+        } else {
+            int length = (log.length - OF_UPDATE_RAW) / 2;
+            PageN.recoverUpdate(pg, log, OF_UPDATE_RAW + length, length, offset);
+        }
+    }
+
+    // 撤销一条日志：更新日志写回 oldRaw；插入日志的撤销，使用的是 DataItem.setDataItemRawInvalid()，
+    // 将该条 DataItem 的有效位设置为无效，来进行逻辑删除。
+    // 回收日志属于 SUPER_XID，不会被撤销
+    private static void undoLog(PageCache pc, byte[] log, long recLsn) {
+        if (isCompactLog(log)) {
+            return;
+        }
         Page pg = null;
         try {
-            pg = pc.getPage(li.pgno);
+            pg = pc.getPage(pgnoOf(log));
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-//注意，doInsertLog() 方法中的删除，使用的是 DataItem.setDataItemRawInvalid(li.raw)
-// dataItem的作用，就是将该条 DataItem 的有效位设置为无效，来进行逻辑删除。
-            if (flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
+            pc.markDirty(pg, recLsn);
+            short offset = offsetOf(log);
+            if (isInsertLog(log)) {
+                byte[] raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+                DataItem.setDataItemRawInvalid(raw);
+                PageN.recoverInsert(pg, raw, offset);
+            } else {
+                int length = (log.length - OF_UPDATE_RAW) / 2;
+                PageN.recoverUpdate(pg, log, OF_UPDATE_RAW, length, offset);
             }
-            PageN.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
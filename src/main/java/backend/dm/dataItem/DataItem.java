@@ -21,6 +21,8 @@ public interface DataItem {
 
     void after(long xid);
 
+    void free(long xid);
+
     void release();
 
     void lock();
@@ -31,6 +33,14 @@ public interface DataItem {
 
     void rUnLock();
 
+    /*
+    乐观读：tryOptimisticRead() 返回当前的修改计数，DataItem 正在被修改（before() 之后）时返回 0；
+    不加锁读取 data() 之后，validate() 检查期间没有发生修改，读到的数据才是一致的
+     */
+    long tryOptimisticRead();
+
+    boolean validate(long stamp);
+
     Page page();
 
     long getUid();
@@ -57,4 +67,17 @@ public interface DataItem {
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte) 1;
     }
+
+    // 页面中 offset 处的 DataItem 占用的字节数
+    public static int lengthAt(byte[] raw, int offset) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA)) + DataItemImpl.OF_DATA;
+    }
+
+    public static boolean isValidAt(byte[] raw, int offset) {
+        return raw[offset + DataItemImpl.OF_VALID] == DataItemImpl.VALID;
+    }
+
+    public static boolean isFreedAt(byte[] raw, int offset) {
+        return raw[offset + DataItemImpl.OF_VALID] == DataItemImpl.FREED;
+    }
 }
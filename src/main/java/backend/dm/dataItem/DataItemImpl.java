@@ -4,6 +4,7 @@ import backend.common.SubArray;
 import backend.dm.DataManagerImpl;
 import backend.dm.page.Page;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -11,7 +12,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 /**
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为已被清理（非法，且不再被引用，所占空间可以回收）
  * DataSize  2字节，标识Data的长度
  */
 
@@ -21,6 +22,9 @@ public class DataItemImpl implements DataItem {
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    static final byte VALID = 0;
+    static final byte FREED = 2;
+
     private SubArray raw;
     private byte[] oldRaw;
     private Lock rLock;
@@ -28,6 +32,11 @@ public class DataItemImpl implements DataItem {
     private DataManagerImpl dm;
     private long uid;
     private Page pg;
+    /*
+    修改计数：before() 时加一变为奇数，修改完成（after() 或 unBefore()）时再加一变回偶数，只在写锁内修改。
+    after() 在记录日志之前就让计数变回偶数，乐观读不需要等待日志写入
+     */
+    private volatile long seq = 2;
 
     //保存一个 dm 的引用是因为其释放依赖 dm 的释放（dm 同时实现了缓存接口，用于缓存 DataItem），以及修改数据时落日志
 
@@ -43,7 +52,18 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == (byte) 0;
+        return raw.raw[raw.start + OF_VALID] == VALID;
+    }
+
+    // 标记为已被清理，和其他修改一样记录日志
+    @Override
+    public void free(long xid) {
+        before();
+        try {
+            raw.raw[raw.start + OF_VALID] = FREED;
+        } finally {
+            after(xid);
+        }
     }
 
 
@@ -61,19 +81,26 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
-        pg.setDirty(true);
+        seq++;
+        // 计数变为奇数之后才能修改数据
+        VarHandle.storeStoreFence();
+        dm.beginUpdate(pg);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        seq++;
+        dm.endUpdate(pg);
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
+        seq++;
         dm.logDataItem(xid, this);
+        dm.endUpdate(pg);
         wLock.unlock();
     }
 
@@ -103,6 +130,19 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        long s = seq;
+        return (s & 1) == 0 ? s : 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        // 读取数据必须发生在再次读取计数之前
+        VarHandle.acquireFence();
+        return stamp != 0 && seq == stamp;
+    }
+
     @Override
     public Page page() {
         return pg;
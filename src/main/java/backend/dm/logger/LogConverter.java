@@ -0,0 +1,138 @@
+package backend.dm.logger;
+
+/*
+旧版日志文件格式为：
+[XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
+每条日志为 [Size] [Checksum] [Data]，XChecksum 为所有日志累加的校验和。
+LogConverter 用于把旧格式的日志文件转换为带 LSN 和 CRC32C 的新格式。
+转换先写入 log_tmp 文件，再通过重命名替换原文件，以保证转换的原子性。
+新格式的单个 .log 文件与起始 LSN 为 0 的日志段格式相同，直接改名为第一个段即可。
+ */
+
+import backend.util.Panic;
+import common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+public class LogConverter {
+    public static final String LOG_TMP_SUFFIX = ".log_tmp";
+
+    private static final int LEGACY_SEED = 13331;
+    private static final int LEGACY_LEN_HEADER = 4;
+    private static final int LEGACY_OF_SIZE = 0;
+    private static final int LEGACY_OF_CHECKSUM = LEGACY_OF_SIZE + 4;
+    private static final int LEGACY_OF_DATA = LEGACY_OF_CHECKSUM + 4;
+
+    // 新格式的文件以 LOG_MAGIC 开头，否则视为旧格式
+    public static boolean isLegacy(File f) {
+        if (f.length() < LEGACY_LEN_HEADER) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            return raf.readInt() != LoggerImpl.LOG_MAGIC;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return false;
+    }
+
+    // 把 path.log 转换为日志段，旧格式的文件先转换为新格式
+    public static void convertToSegment(String path) {
+        File f = new File(path + LoggerImpl.LOG_SUFFIX);
+        if (isLegacy(f)) {
+            convert(path);
+        }
+        try {
+            Files.move(f.toPath(), LoggerImpl.segmentFile(path, 0).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public static void convert(String path) {
+        File src = new File(path + LoggerImpl.LOG_SUFFIX);
+        File tmp = new File(path + LOG_TMP_SUFFIX);
+        tmp.delete();
+
+        try (RandomAccessFile in = new RandomAccessFile(src, "r");
+             RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            FileChannel ic = in.getChannel();
+            FileChannel oc = out.getChannel();
+            long size = ic.size();
+
+            ByteBuffer head = ByteBuffer.allocate(LEGACY_LEN_HEADER);
+            ic.read(head, 0);
+            int xChecksum = head.getInt(0);
+
+            oc.write(ByteBuffer.wrap(LoggerImpl.header(0)), 0);
+            long position = LEGACY_LEN_HEADER;
+            long lsn = LoggerImpl.LEN_HEADER;
+            int xCheck = 0;
+            while (true) {
+                byte[] log = legacyNext(ic, position, size);
+                if (log == null) break;
+                xCheck = legacyChecksum(xCheck, log);
+                position += log.length;
+
+                byte[] data = Arrays.copyOfRange(log, LEGACY_OF_DATA, log.length);
+                ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.wrapLog(lsn, data));
+                while (buf.hasRemaining()) {
+                    oc.write(buf, lsn + buf.position());
+                }
+                lsn += buf.capacity();
+            }
+            if (xCheck != xChecksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            // 转换得到的文件没有 BadTail，直接标记为正常关闭
+            oc.write(ByteBuffer.wrap(LoggerImpl.header(lsn)), 0);
+            oc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), src.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static byte[] legacyNext(FileChannel ic, long position, long size) throws IOException {
+        if (position + LEGACY_OF_DATA >= size) {
+            return null;
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(4);
+        ic.read(tmp, position);
+        int dataSize = tmp.getInt(0);
+        if (dataSize < 0 || position + dataSize + LEGACY_OF_DATA > size) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(LEGACY_OF_DATA + dataSize);
+        while (buf.hasRemaining()) {
+            ic.read(buf, position + buf.position());
+        }
+        byte[] log = buf.array();
+        int checkSum1 = legacyChecksum(0, Arrays.copyOfRange(log, LEGACY_OF_DATA, log.length));
+        int checkSum2 = buf.getInt(LEGACY_OF_CHECKSUM);
+        if (checkSum1 != checkSum2) {
+            return null;
+        }
+        return log;
+    }
+
+    private static int legacyChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * LEGACY_SEED + b;
+        }
+        return xCheck;
+    }
+}
@@ -7,81 +7,75 @@ DM 层在每次对底层数据操作时，都会记录一条日志到磁盘上
  */
 
 import backend.util.Panic;
-import backend.util.Parser;
 import common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.TreeMap;
 
 public interface Logger {
-    void log(byte[] data);
+    // 写入一条日志，落盘后返回其 LSN
+    long log(byte[] data);
+
+    // 下一条日志将获得的 LSN 不会小于该值
+    long nextLsn();
 
     void truncate(long x) throws Exception;
 
+    // 删除所有日志都在 lsn 之前的段
+    void removeBefore(long lsn);
+
     byte[] next();
 
+    // 上一次 next() 返回的日志的 LSN
+    long lsn();
+
     void rewind();
 
+    void seek(long lsn);
+
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        try {
-            if (!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE, LoggerImpl.DEFAULT_MAX_BATCH_SIZE, LoggerImpl.DEFAULT_MAX_WAIT_MICROS);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // segmentSize：单个日志段的大小；maxBatchSize：组提交一批日志的最大字节数；maxWaitMicros：leader 等待凑批的最长时间（微秒）
+    public static Logger create(String path, int segmentSize, int maxBatchSize, long maxWaitMicros) {
+        if (new File(path + LoggerImpl.LOG_SUFFIX).exists() || !LoggerImpl.listSegments(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, maxBatchSize, maxWaitMicros);
+        lg.create();
+        return lg;
     }
 
     public static Logger open(String path) {
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE, LoggerImpl.DEFAULT_MAX_BATCH_SIZE, LoggerImpl.DEFAULT_MAX_WAIT_MICROS);
+    }
+
+    public static Logger open(String path, int segmentSize, int maxBatchSize, long maxWaitMicros) {
+        // 单文件格式的日志，先转换为第一个段
         File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if (!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        if (f.exists()) {
+            if (!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+            LogConverter.convertToSegment(path);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        TreeMap<Long, File> files = LoggerImpl.listSegments(path);
+        if (files.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        for (File seg : files.values()) {
+            if (!seg.canRead() || !seg.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, maxBatchSize, maxWaitMicros);
+        lg.init(files);
 
         return lg;
     }
@@ -2,207 +2,550 @@ package backend.dm.logger;
 
 import backend.util.Panic;
 
-import backend.util.Parser;
-import com.google.common.primitives.Bytes;
 import common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * 日志文件读写
  * <p>
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志被切分为多个段文件，文件名为 [path]_[起始LSN的16位十六进制].log，
+ * 所有段按起始 LSN 顺序拼接起来，构成一条逻辑上连续的日志，LSN 即日志在这条逻辑日志中的位置。
+ * 当前段写满 segmentSize 后，后续日志写入新的段；检查点之前的段通过 removeBefore() 删除。
+ * <p>
+ * 每个段文件的格式为：
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * Header 为 [Magic] [CleanEnd]，Magic 4字节标识日志格式，
+ * CleanEnd 8字节，正常关闭时在最后一个段中记录日志末尾的 LSN，运行期间为 0
  * <p>
  * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
+ * [LSN] [Size] [Checksum] [Data]
+ * LSN 8字节long，即段的起始 LSN 加上该条日志在段文件中的偏移
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，为 LSN、Size 和 Data 的 CRC32C
+ * <p>
+ * 每条日志自带校验，追加日志时只需写文件尾，不再回写文件头；
+ * 只有最后一个段可能存在 BadTail，打开时从头读到第一条校验失败（或 LSN 对不上）的日志即为 BadTail。
+ * 如果上次是正常关闭，CleanEnd 等于日志末尾，则无需扫描。
+ * <p>
+ * 日志采用组提交（group commit）写入：
+ * 并发调用 log() 的线程先把日志追加到共享的内存缓冲区，并得到自己的 LSN；
+ * 随后由其中一个线程作为 leader，把整批日志一次性写入文件并只 force 一次，
+ * 其余线程在自己的日志落盘后被唤醒返回。
+ * maxBatchSize 限制一批日志的字节数，maxWaitNanos 为 leader 等待更多日志加入的最长时间（0 表示不等待）。
  */
 
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
+    static final int LOG_MAGIC = 0x53504C32;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_CLEAN_END = OF_MAGIC + 4;
+    static final int LEN_HEADER = OF_CLEAN_END + 8;
 
-    private static final int OF_SIZE = 0;
+    private static final int OF_LSN = 0;
+    private static final int OF_SIZE = OF_LSN + 8;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
+    private static final String SEGMENT_SEPARATOR = "_";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1 << 20;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 0;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
+    // 一个日志段文件
+    static class Segment {
+        long base;      // 段的起始 LSN，即段文件偏移 0 处对应的 LSN
+        long size;      // 段文件中已写入内容的长度
+        File file;
+        RandomAccessFile raf;
+        FileChannel fc;
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    private String path;
+    private TreeMap<Long, Segment> segments;    // 起始 LSN -> 段，由 lock 保护
+    private Segment current;                    // 正在写入的段
+    private int segmentSize;
+    private Lock lock;
+
+    // 读取日志时使用的迭代位置
+    private Segment readSegment;
+    private long position;  // 当前日志指针的位置（LSN）
+    private long lastLsn;   // 上一次 next() 返回的日志的 LSN
+
+    // 顺序读取日志时按块读入的缓冲区，缓存 readBufSegment 中从 readBufStart 开始的内容
+    private ByteBuffer readBuf;
+    private Segment readBufSegment;
+    private long readBufStart;
+    private byte[] readHead;
+
+    // 组提交相关状态，均由 commitLock 保护
+    private Lock commitLock;
+    private Condition batchFull;    // 缓冲区达到 maxBatchSize 时唤醒等待中的 leader
+    private Condition flushed;      // 一批日志落盘后唤醒等待者
+    private List<byte[]> buffer;    // 尚未写入文件的日志
+    private int bufferSize;
+    private long appendBase;        // 接收新日志的段的起始 LSN
+    private long appendPosition;    // 下一条日志的 LSN
+    private long flushedPosition;   // 该位置之前的日志均已落盘
+    private boolean flushing;       // 当前是否已有 leader 在写盘
+
+    private int maxBatchSize;
+    private long maxWaitNanos;
+
+    LoggerImpl(String path, int segmentSize, int maxBatchSize, long maxWaitMicros) {
+        this.path = path;
+        this.segments = new TreeMap<>();
+        this.segmentSize = segmentSize;
         lock = new ReentrantLock();
+        commitLock = new ReentrantLock();
+        batchFull = commitLock.newCondition();
+        flushed = commitLock.newCondition();
+        buffer = new ArrayList<>();
+        readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        readHead = new byte[OF_DATA];
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
     }
 
-    void init() {
-        long size = 0;
+    static File segmentFile(String path, long base) {
+        return new File(path + SEGMENT_SEPARATOR + String.format("%016x", base) + LOG_SUFFIX);
+    }
+
+    // 列出 path 对应的所有日志段文件，按起始 LSN 排序
+    static TreeMap<Long, File> listSegments(String path) {
+        File prefix = new File(path).getAbsoluteFile();
+        String name = prefix.getName() + SEGMENT_SEPARATOR;
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] candidates = prefix.getParentFile().listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        for (File f : candidates) {
+            String fn = f.getName();
+            if (!fn.startsWith(name) || !fn.endsWith(LOG_SUFFIX)) {
+                continue;
+            }
+            String hex = fn.substring(name.length(), fn.length() - LOG_SUFFIX.length());
+            if (hex.length() != 16) {
+                continue;
+            }
+            try {
+                files.put(Long.parseUnsignedLong(hex, 16), f);
+            } catch (NumberFormatException e) {
+                // 不是日志段文件
+            }
+        }
+        return files;
+    }
+
+    // 新建数据库时创建第一个段
+    void create() {
+        current = newSegment(0);
+        appendBase = 0;
+        appendPosition = LEN_HEADER;
+        flushedPosition = LEN_HEADER;
+        rewind();
+    }
+
+    void init(TreeMap<Long, File> files) {
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            Segment seg = new Segment();
+            seg.base = entry.getKey();
+            seg.file = entry.getValue();
+            openSegment(seg);
+            segments.put(seg.base, seg);
+        }
+        // 切换段时崩溃，新段可能连头部都没有写完，此时它不含任何日志，直接删除
+        Segment last = segments.lastEntry().getValue();
+        if (last.size < LEN_HEADER && segments.size() > 1) {
+            deleteSegment(last);
+            last = segments.lastEntry().getValue();
+        }
+        if (last.size < LEN_HEADER) {
+            Panic.panic(Error.BadLogFileException);
+        }
+
+        long cleanEnd = 0;
+        for (Segment seg : segments.values()) {
+            ByteBuffer raw = ByteBuffer.allocate(LEN_HEADER);
+            try {
+                seg.fc.read(raw, 0);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            if (raw.getInt(OF_MAGIC) != LOG_MAGIC) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            cleanEnd = raw.getLong(OF_CLEAN_END);
+        }
+
+        // 上次没有正常关闭，才需要扫描并移除最后一个段的 BadTail
+        current = last;
+        if (cleanEnd != last.base + last.size) {
+            checkAndRemoveTail(last);
+        }
+        appendBase = last.base;
+        appendPosition = last.base + last.size;
+        flushedPosition = appendPosition;
+        rewind();
+
+        // 运行期间 CleanEnd 置 0，崩溃后再打开时即可知道需要检查尾部
         try {
-            size = file.length();
+            writeHeader(last, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
+    }
+
+    private void openSegment(Segment seg) {
+        try {
+            seg.raf = new RandomAccessFile(seg.file, "rw");
+            seg.fc = seg.raf.getChannel();
+            seg.size = seg.fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 创建起始 LSN 为 base 的新段，调用时持有 lock（或处于单线程的创建流程中）
+    private Segment newSegment(long base) {
+        Segment seg = new Segment();
+        seg.base = base;
+        seg.file = segmentFile(path, base);
+        try {
+            if (!seg.file.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
         }
+        openSegment(seg);
+        try {
+            writeHeader(seg, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        seg.size = LEN_HEADER;
+        segments.put(base, seg);
+        return seg;
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    private void deleteSegment(Segment seg) {
+        segments.remove(seg.base);
         try {
-            fc.position(0);
-            fc.read(raw);
+            seg.fc.close();
+            seg.raf.close();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+        if (!seg.file.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+    }
 
-        checkAndRemoveTail();
+    static byte[] header(long cleanEnd) {
+        ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER);
+        buf.putInt(OF_MAGIC, LOG_MAGIC);
+        buf.putLong(OF_CLEAN_END, cleanEnd);
+        return buf.array();
     }
 
+    private void writeHeader(Segment seg, long cleanEnd) throws IOException {
+        seg.fc.write(ByteBuffer.wrap(header(cleanEnd)), 0);
+        seg.fc.force(false);
+    }
 
-    // 单条日志的校验和，其实就是通过一个指定的种子实现的
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    // 单条日志的校验和，覆盖 LSN、Size 和 Data，使用硬件加速的 CRC32C
+    private static int calChecksum(byte[] head, byte[] data, int dataStart, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(head, OF_LSN, OF_CHECKSUM - OF_LSN);
+        crc.update(data, dataStart, size);
+        return (int) crc.getValue();
+    }
+
+    //    向日志文件写入日志时，首先为其分配 LSN，包裹成日志格式后放入组提交缓冲区，
+    //    由 leader 写入文件并刷新缓冲区，保证内容写入磁盘后才返回该条日志的 LSN。
+    //    当前段放不下这条日志时，在当前位置开启新段，新段的头部占据 LEN_HEADER 个 LSN。
+    @Override
+    public long log(byte[] data) {
+        commitLock.lock();
+        try {
+            int length = OF_DATA + data.length;
+            if (appendPosition + length - appendBase > segmentSize
+                    && appendPosition > appendBase + LEN_HEADER) {
+                appendBase = appendPosition;
+                appendPosition += LEN_HEADER;
+            }
+            long lsn = appendPosition;
+            byte[] log = wrapLog(lsn, data);
+            buffer.add(log);
+            bufferSize += log.length;
+            appendPosition += log.length;
+            if (bufferSize >= maxBatchSize) {
+                batchFull.signal();
+            }
+            while (flushedPosition <= lsn) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flushBatch();
+                }
+            }
+            return lsn;
+        } finally {
+            commitLock.unlock();
         }
-        return xCheck;
     }
 
-    //    向日志文件写入日志时，也是首先将数据包裹成日志格式，
-    //    写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long nextLsn() {
+        commitLock.lock();
+        try {
+            return appendPosition;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // 调用时持有 commitLock，当前线程作为 leader 将缓冲区中的一批日志写盘
+    private void flushBatch() {
+        flushing = true;
+        long remain = maxWaitNanos;
+        while (remain > 0 && bufferSize < maxBatchSize) {
+            try {
+                remain = batchFull.awaitNanos(remain);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        List<byte[]> batch = buffer;
+        long start = flushedPosition;
+        long end = appendPosition;
+        buffer = new ArrayList<>();
+        bufferSize = 0;
+
+        commitLock.unlock();
+        try {
+            writeBatch(batch, start);
+        } finally {
+            commitLock.lock();
+            flushedPosition = end;
+            flushing = false;
+            flushed.signalAll();
+        }
+    }
+
+    // 一批日志可能跨越段的边界：日志的 LSN 与紧接上一条的位置不连续，说明在该位置开启了新段
+    private void writeBatch(List<byte[]> batch, long start) {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
+            List<ByteBuffer> group = new ArrayList<>();
+            long groupStart = start;
+            long pos = start;
+            for (byte[] log : batch) {
+                long lsn = ByteBuffer.wrap(log).getLong(OF_LSN);
+                if (lsn != pos) {
+                    writeGroup(current, group, groupStart);
+                    current.fc.force(false);
+                    current = newSegment(pos);
+                    group.clear();
+                    groupStart = lsn;
+                    pos = lsn;
+                }
+                group.add(ByteBuffer.wrap(log));
+                pos += log.length;
+            }
+            writeGroup(current, group, groupStart);
+            current.fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
-        try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private void writeGroup(Segment seg, List<ByteBuffer> group, long start) throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] bufs = group.toArray(new ByteBuffer[0]);
+        if (readBufSegment == seg) {
+            readBufSegment = null;
+        }
+        seg.fc.position(start - seg.base);
+        while (bufs[bufs.length - 1].hasRemaining()) {
+            seg.fc.write(bufs);
         }
+        seg.size = seg.fc.position();
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    static byte[] wrapLog(long lsn, byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        buf.putLong(OF_LSN, lsn);
+        buf.putInt(OF_SIZE, data.length);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        buf.putInt(OF_CHECKSUM, calChecksum(log, log, OF_DATA, data.length));
+        return log;
     }
 
-    //    这样，对所有日志求出校验和，求和就能得到日志文件的校验和了。
     //    Logger 被实现成迭代器模式通过 next() 方法，不断地从文件中读取下一条日志，并将其中的 Data 解析出来并返回
-    //    next() 方法的实现主要依靠 internNext()，大致如下，其中 position 是当前日志文件读到的位置偏移：
+    //    next() 方法的实现主要依靠 internNext()，读完一个段后继续读下一个段
     private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
+        while (true) {
+            byte[] data = readLog(readSegment, position);
+            if (data != null) {
+                lastLsn = position;
+                position += OF_DATA + data.length;
+                return data;
+            }
+            Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.base);
+            if (next == null) {
+                return null;
+            }
+            // 只有最后一个段可能有 BadTail，其余的段没有读到末尾说明日志已损坏
+            if (position != readSegment.base + readSegment.size) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            readSegment = next.getValue();
+            position = readSegment.base + LEN_HEADER;
+        }
+    }
+
+    //    读取段 seg 中 LSN 为 lsn 的日志，返回其中的 Data，
+    //    LSN 与位置不符、长度越界或校验失败，都说明读到了 BadTail
+    private byte[] readLog(Segment seg, long lsn) {
+        long offset = lsn - seg.base;
+        // 读取 LSN、size 和 checksum
+        if (!read(seg, offset, readHead, OF_DATA)) {
             return null;
         }
-        // 读取size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
+        ByteBuffer head = ByteBuffer.wrap(readHead);
+        int size = head.getInt(OF_SIZE);
+        if (head.getLong(OF_LSN) != lsn || size < 0 || offset + OF_DATA + size > seg.size) {
+            return null;
+        }
+
+        byte[] data = new byte[size];
+        if (!read(seg, offset + OF_DATA, data, size)) {
+            return null;
         }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA > fileSize) {
+        // 校验checkSum
+        if (calChecksum(readHead, data, 0, size) != head.getInt(OF_CHECKSUM)) {
             return null;
         }
+        return data;
+    }
 
-        // 读取checksum + data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    // 从段 seg 的 offset 处读取 length 字节到 dst，经由 readBuf 按块读取文件，避免每条日志都发起一次读操作
+    private boolean read(Segment seg, long offset, byte[] dst, int length) {
+        if (offset + length > seg.size) {
+            return false;
+        }
+        int copied = 0;
+        while (copied < length) {
+            long at = offset + copied;
+            if (readBufSegment != seg || at < readBufStart || at >= readBufStart + readBuf.limit()) {
+                fillReadBuf(seg, at);
+                if (readBuf.limit() == 0) {
+                    return false;
+                }
+            }
+            int from = (int) (at - readBufStart);
+            int n = Math.min(length - copied, readBuf.limit() - from);
+            System.arraycopy(readBuf.array(), from, dst, copied, n);
+            copied += n;
+        }
+        return true;
+    }
+
+    private void fillReadBuf(Segment seg, long offset) {
+        readBuf.clear();
+        readBuf.limit((int) Math.min(READ_BUFFER_SIZE, seg.size - offset));
         try {
-            fc.position(position);
-            fc.read(buf);
+            while (readBuf.hasRemaining()) {
+                if (seg.fc.read(readBuf, offset + readBuf.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-
-        byte[] log = buf.array();
-        // 校验checkSum
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if (checkSum1 != checkSum2) {
-            return null;
-        }
-        position += log.length;
-        return log;
+        readBuf.flip();
+        readBufSegment = seg;
+        readBufStart = offset;
     }
 
     /*
-    在打开一个日志文件时，需要首先校验日志文件的 XChecksum，并移除文件尾部可能存在的 BadTail，
-    由于 BadTail 该条日志尚未写入完成，文件的校验和也就不会包含该日志的校验和，去掉 BadTail 即可保证日志文件的一致性。
+    在打开一个没有正常关闭的日志时，需要移除最后一个段尾部可能存在的 BadTail，
+    BadTail 即第一条无法通过校验的日志及其之后的内容，去掉 BadTail 即可保证日志文件的一致性。
      */
     // 检查并移除bad tail
-    private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
+    private void checkAndRemoveTail(Segment seg) {
+        long lsn = seg.base + LEN_HEADER;
         while (true) {
-            byte[] log = internNext();
-            if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+            byte[] data = readLog(seg, lsn);
+            if (data == null) break;
+            lsn += OF_DATA + data.length;
         }
 
         try {
-            truncate(position);
+            truncate(lsn);
         } catch (Exception e) {
             Panic.panic(e);
         }
+    }
+
+    // 截断日志，丢弃 LSN x 及其之后的内容，只能截断到最后一个段之内
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
         try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+            current.fc.truncate(x - current.base);
+            current.size = x - current.base;
+            readBufSegment = null;
+        } finally {
+            lock.unlock();
         }
-        rewind();
     }
 
+    // 删除所有日志都在 lsn 之前的段，正在写入的段不会被删除
     @Override
-    public void truncate(long x) throws Exception {
+    public void removeBefore(long lsn) {
         lock.lock();
         try {
-            fc.truncate(x);
+            Iterator<Map.Entry<Long, Segment>> it = segments.headMap(lsn, true).entrySet().iterator();
+            List<Segment> removed = new ArrayList<>();
+            while (it.hasNext()) {
+                Segment seg = it.next().getValue();
+                Long nextBase = segments.higherKey(seg.base);
+                if (seg == current || nextBase == null || nextBase > lsn) {
+                    break;
+                }
+                removed.add(seg);
+            }
+            for (Segment seg : removed) {
+                deleteSegment(seg);
+            }
         } finally {
             lock.unlock();
         }
@@ -212,27 +555,55 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return internNext();
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public long lsn() {
+        return lastLsn;
+    }
+
     @Override
     public void rewind() {
-        position = 4;
+        seek(0);
+    }
+
+    // 从 lsn 处开始读取，lsn 早于现存最早的日志时，从最早的日志开始读
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(lsn);
+            if (entry == null) {
+                entry = segments.firstEntry();
+            }
+            readSegment = entry.getValue();
+            position = Math.max(lsn, readSegment.base + LEN_HEADER);
+        } finally {
+            lock.unlock();
+        }
     }
 
 
+    // 正常关闭时在最后一个段中记录日志末尾的位置，下次打开时可以跳过尾部检查
     @Override
     public void close() {
+        commitLock.lock();
+        lock.lock();
         try {
-            fc.close();
-            file.close();
+            writeHeader(current, appendPosition);
+            for (Segment seg : segments.values()) {
+                seg.fc.close();
+                seg.raf.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
+            commitLock.unlock();
         }
     }
 
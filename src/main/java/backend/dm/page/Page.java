@@ -8,6 +8,13 @@ public interface Page {
 
     void setDirty(boolean dirty);
 
+    // 记录页面上正在进行的修改（修改开始到对应日志落盘），调用时持有页面锁
+    void beginUpdate();
+
+    void endUpdate();
+
+    boolean isUpdating();
+
     boolean isDirty();
 
     int getPageNumber();
@@ -13,13 +13,15 @@ import java.util.concurrent.locks.ReentrantLock;
 pageNumber 是这个页面的页号，该页号从 1 开始。
 data 就是这个页实际包含的字节数据。
 dirty 标志着这个页面是否是脏页面，在缓存驱逐的时候，脏页面需要被写回磁盘。
+updating 是页面上正在进行的修改数，不为 0 时页面中可能有日志尚未落盘的修改，检查点不能写回该页面。
 保存了一个 PageCache的引用，用来方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作
  */
 
 public class PageImp implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private volatile boolean dirty;
+    private int updating;
     private Lock lock;
 
     private PageCache pc;
@@ -49,6 +51,21 @@ public class PageImp implements Page {
 
     }
 
+    @Override
+    public void beginUpdate() {
+        updating++;
+    }
+
+    @Override
+    public void endUpdate() {
+        updating--;
+    }
+
+    @Override
+    public boolean isUpdating() {
+        return updating > 0;
+    }
+
     @Override
     public boolean isDirty() {
         return dirty;
@@ -12,7 +12,7 @@ import java.util.Arrays;
 
 public class PageN {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    public static final short OF_DATA = 2;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -30,8 +30,10 @@ public class PageN {
         return getFSO(pg.getData());
     }
 
+    // 没有来得及写回的新页面读出来全为 0，FSO 小于 OF_DATA 时视为空页面
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        short fso = Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return fso < OF_DATA ? OF_DATA : fso;
     }
 
     // 将raw插入page中，返回插入位置
@@ -50,19 +52,38 @@ public class PageN {
 
     // 将raw插入page中的offset位置，并将page的offset设置为较大的offset
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, 0, raw.length, offset);
+    }
+
+    // 同上，raw 为 src 中从 start 开始长度为 length 的部分，恢复时可以直接从日志中拷贝
+    public static void recoverInsert(Page pg, byte[] src, int start, int length, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(src, start, pg.getData(), offset, length);
 
         short rawFSO = getFSO(pg.getData());
-        if (rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short) (offset + raw.length));
+        if (rawFSO < offset + length) {
+            setFSO(pg.getData(), (short) (offset + length));
         }
     }
 
+    /*
+    回收页面末尾的空间：FSO 退回到 fso，[fso, 原来的 FSO) 中的 DataItem 都已经被清理。
+    页面中间被清理的 DataItem 之后仍有数据，它们的空间不能回收，因为 DataItem 的 UID 就是它在页面中的位置，不能移动。
+    恢复时重做同样调用该方法，之后插入日志的重做会按 max 重新推进 FSO
+     */
+    public static void compact(Page pg, short fso) {
+        pg.setDirty(true);
+        setFSO(pg.getData(), fso);
+    }
+
     // 将raw插入page中的offset位置，不更新update
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+        recoverUpdate(pg, raw, 0, raw.length, offset);
+    }
+
+    public static void recoverUpdate(Page pg, byte[] src, int start, int length, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(src, start, pg.getData(), offset, length);
     }
 
 }
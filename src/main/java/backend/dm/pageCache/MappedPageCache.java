@@ -0,0 +1,125 @@
+package backend.dm.pageCache;
+
+import backend.util.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+通过内存映射读写页面文件的 PageCache。
+页面文件按 64MB 分块映射为 MappedByteBuffer，访问到还没有映射的块时才映射，newPage 扩展文件时映射也随之增长。
+缓存未命中时直接从映射中拷贝出页面，不需要系统调用，读多写少的负载可以直接利用操作系统的页缓存；
+PageWriter 写回时把页面拷贝进映射，再 force 写入过的块。
+
+Page、DataItem 和各种页面格式都直接操作 byte[]，所以页面仍然是映射中数据的一份拷贝，而不是映射的切片。
+
+以读写方式映射文件末尾的块会把文件扩展到块的边界，多出来的页面全为 0。
+正常关闭时文件会被截断到实际的页数；崩溃后重新打开时，恢复过程同样会截断文件。
+ */
+public class MappedPageCache extends PageCacheImp {
+    // 每个映射块的大小
+    private static final int CHUNK_SIZE = 1 << 26;
+    private static final int PAGES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] chunks;
+    private Lock mapLock;
+    // 写入后还没有 force 的块
+    private Set<Integer> unsynced;
+
+    MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy) {
+        super(file, fileChannel, maxResource, policy);
+        this.fc = fileChannel;
+        this.chunks = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        this.unsynced = ConcurrentHashMap.newKeySet();
+    }
+
+    // 获取 index 号映射块，还没有映射时进行映射
+    private MappedByteBuffer chunk(int index) {
+        MappedByteBuffer[] cs = chunks;
+        if (index < cs.length && cs[index] != null) {
+            return cs[index];
+        }
+        mapLock.lock();
+        try {
+            cs = chunks;
+            if (index >= cs.length) {
+                MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+                System.arraycopy(cs, 0, grown, 0, cs.length);
+                cs = grown;
+            }
+            if (cs[index] == null) {
+                try {
+                    cs[index] = fc.map(FileChannel.MapMode.READ_WRITE, (long) index * CHUNK_SIZE, CHUNK_SIZE);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+            }
+            chunks = cs;
+            return cs[index];
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // 页面在映射块中的位置，返回的 ByteBuffer 与映射共享数据，可以独立设置 position
+    private ByteBuffer locate(int pgno) {
+        int index = (pgno - 1) / PAGES_PER_CHUNK;
+        ByteBuffer buf = chunk(index).duplicate();
+        buf.position(((pgno - 1) % PAGES_PER_CHUNK) * PAGE_SIZE);
+        return buf;
+    }
+
+    @Override
+    byte[] readPage(int pgno) {
+        byte[] data = new byte[PAGE_SIZE];
+        locate(pgno).get(data);
+        return data;
+    }
+
+    @Override
+    void writePages(int pgno, ByteBuffer buf) {
+        // 连续的页面可能跨越映射块的边界，逐页写入
+        for (int i = 0; buf.hasRemaining(); i++) {
+            ByteBuffer page = buf.duplicate();
+            page.limit(page.position() + PAGE_SIZE);
+            locate(pgno + i).put(page);
+            buf.position(buf.position() + PAGE_SIZE);
+            unsynced.add((pgno + i - 1) / PAGES_PER_CHUNK);
+        }
+    }
+
+    @Override
+    void sync() {
+        for (Integer index : unsynced) {
+            unsynced.remove(index);
+            chunk(index).force();
+        }
+    }
+
+    // 截断前丢弃所有映射，之后的访问会重新映射
+    @Override
+    void setLength(long size) {
+        mapLock.lock();
+        try {
+            chunks = new MappedByteBuffer[0];
+            super.setLength(size);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    void closeFile() {
+        setLength(pageOffset(getPageNumber() + 1));
+        super.closeFile();
+    }
+}
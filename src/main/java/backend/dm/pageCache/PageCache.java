@@ -26,7 +26,26 @@ public interface PageCache {
 
     void flushPage(Page pg);
 
+    // 在修改页面前登记脏页，recLsn 不晚于这次修改对应日志的 LSN
+    void markDirty(Page pg, long recLsn);
+
+    // 当前所有脏页中最小的 recLsn，没有脏页时返回 Long.MAX_VALUE
+    long minRecLsn();
+
+    // 写回脏页表中没有正在进行修改的页面
+    void flushDirtyPages();
+
     public static PageCacheImp create(String path, long memory) {
+        return create(path, memory, null);
+    }
+
+    // policy 为驱逐策略的名称，见 EvictionPolicy.of()
+    public static PageCacheImp create(String path, long memory, String policy) {
+        return create(path, memory, policy, false);
+    }
+
+    // mmap 为 true 时通过内存映射读写页面文件，见 MappedPageCache
+    public static PageCacheImp create(String path, long memory, String policy, boolean mmap) {
         File f = new File(path + PageCacheImp.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -38,19 +57,19 @@ public interface PageCache {
         if (!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-        return new PageCacheImp(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(f, memory, policy, mmap);
     }
 
     public static PageCacheImp open(String path, long memory) {
+        return open(path, memory, null);
+    }
+
+    public static PageCacheImp open(String path, long memory, String policy) {
+        return open(path, memory, policy, false);
+    }
+
+    // mmap 为 true 时通过内存映射读写页面文件，见 MappedPageCache
+    public static PageCacheImp open(String path, long memory, String policy, boolean mmap) {
         File f = new File(path + PageCacheImp.DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -59,6 +78,10 @@ public interface PageCache {
             Panic.panic(Error.FileCannotRWException);
         }
 
+        return newPageCache(f, memory, policy, mmap);
+    }
+
+    private static PageCacheImp newPageCache(File f, long memory, String policy, boolean mmap) {
         FileChannel fc = null;
         RandomAccessFile raf = null;
         try {
@@ -67,8 +90,13 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImp(raf, fc, (int) memory / PAGE_SIZE);
+        PageCacheImp pc;
+        if (mmap) {
+            pc = new MappedPageCache(raf, fc, (int) (memory / PAGE_SIZE), policy);
+        } else {
+            pc = new PageCacheImp(raf, fc, (int) (memory / PAGE_SIZE), policy);
+        }
+        pc.start();
+        return pc;
     }
-
-
 }
@@ -1,6 +1,7 @@
 package backend.dm.pageCache;
 
 import backend.common.AbstractCache;
+import backend.common.EvictionPolicy;
 import backend.dm.page.Page;
 import backend.dm.page.PageImp;
 import backend.util.Panic;
@@ -10,13 +11,15 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /*
 页面缓存的具体实现类，需要继承抽象缓存框架，并且实现 getForCache() 和 releaseForCache() 两个抽象方法。
 由于数据源就是文件系统，getForCache() 直接从文件中读取，并包裹成 Page 即可
+缓存的页数由内存大小决定，没有被引用的页面留在缓存中，缓存满了之后由驱逐策略挑选页面驱逐
+脏页面的写回由后台的 PageWriter 完成，尚未写回的页面由 PageWriter 持有，getForCache() 优先从中获取
  */
 
 public class PageCacheImp extends AbstractCache<Page> implements PageCache {
@@ -25,12 +28,17 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
 
     private AtomicInteger pageNumbers;
 
-    PageCacheImp(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    // 脏页表：页号 -> recLsn，即该页上次写回之后第一次被修改时的日志位置。
+    // 页面写回磁盘后才从表中移除，检查点据此判断哪些日志对应的修改已经全部落盘。
+    private ConcurrentHashMap<Integer, Long> dirtyPages;
+
+    private PageWriter writer;
+
+    PageCacheImp(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy) {
+        super(maxResource, EvictionPolicy.of(policy, maxResource));
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -42,8 +50,14 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.dirtyPages = new ConcurrentHashMap<>();
+        this.writer = new PageWriter(this);
+    }
+
+    // 启动后台写回线程。对象（包括子类的字段）完全构造之后才能调用，写回线程会调用 writePages() 和 sync()
+    void start() {
+        writer.start();
     }
 
     /*
@@ -52,9 +66,10 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
      */
     public int newPage(byte[] initData) {
         int pgNo = pageNumbers.incrementAndGet();
-        Page pg = new PageImp(pgNo, initData, null);
-    // 新建的页面需要立刻写回
-        flush(pg);
+        Page pg = new PageImp(pgNo, initData, this);
+        // 新建的页面交给 PageWriter 写回，崩溃时没有写回的新页面读出来全为 0，会被当作空页面
+        pg.setDirty(true);
+        writer.add(pg);
         return pgNo;
     }
 
@@ -68,27 +83,72 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgNo = (int) key;
-        long offset = PageCacheImp.pageOffset(pgNo);
+        Page pending = writer.pending(pgNo);
+        if (pending != null) {
+            return pending;
+        }
+        return new PageImp(pgNo, readPage(pgNo), this);
+    }
 
+    /*
+    下面几个方法是页面文件的读写，由 PageWriter 和 getForCache() 调用，MappedPageCache 重写它们，改为读写内存映射。
+    读写都使用带偏移量的 FileChannel.read(buf, offset) 和 write(buf, offset)，不修改 FileChannel 的 position，
+    因此不需要文件锁，不同页面的读取可以并行进行。
+     */
+
+    // 读取一页的数据，文件末尾之外的部分为 0
+    byte[] readPage(int pgno) {
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        long offset = pageOffset(pgno);
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.array();
+    }
+
+    // 从 pgno 开始写入连续的若干页，buf 中依次是这些页面的数据
+    void writePages(int pgno, ByteBuffer buf) {
+        long offset = pageOffset(pgno);
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 将写入的页面刷入磁盘
+    void sync() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 截断页面文件
+    void setLength(long size) {
         try {
-            fc.position(offset);
-            fc.read(buf);
+            file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImp(pgNo, buf.array(), this);
     }
 
     // releaseForCache() 驱逐页面时，只需要根据页面是否是脏页面，来决定是否需要写回文件系统：
     // 在数据库管理系统中，脏页面（Dirty Page）是指缓存中已经被修改，但尚未写入磁盘的数据页。
+    // 脏页面交给 PageWriter 在后台写回
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+            writer.add(pg);
         }
     }
 
@@ -96,40 +156,70 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
         release((long) page.getPageNumber());
     }
 
+    // 同步写回页面，返回时页面已经落盘
     public void flushPage(Page pg) {
-        flush(pg);
+        writer.add(pg);
+        writer.flush();
     }
 
-    private void flush(Page pg) {
-        int pgNo = pg.getPageNumber();
-        long offset = pageOffset(pgNo);
+    public void markDirty(Page pg, long recLsn) {
+        pg.setDirty(true);
+        dirtyPages.putIfAbsent(pg.getPageNumber(), recLsn);
+    }
 
-        fileLock.lock();
-        try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+    /*
+    页面通常在缓存中被释放时就会交给 PageWriter，但被长期持有的页面（比如 B+ 树的 boot 页）会一直留在脏页表中，
+    使检查点无法推进。检查点时把脏页表中的页面都交给 PageWriter，并同步写回；
+    PageWriter 只写回没有进行中修改的页面，写回不会破坏先写日志的约定。
+     */
+    public void flushDirtyPages() {
+        for (int pgno : new ArrayList<>(dirtyPages.keySet())) {
+            Page pg;
+            try {
+                pg = getPage(pgno);
+            } catch (Exception e) {
+                continue;
+            }
+            if (pg.isDirty()) {
+                writer.add(pg);
+            }
+            pg.release();
         }
+        writer.flushIdle();
     }
 
-    public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
-        try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+    // 页面已经写回并且没有再被修改，从脏页表中移除，调用时持有页面锁
+    void cleaned(int pgno) {
+        dirtyPages.remove(pgno);
+    }
+
+    public PageWriter getWriter() {
+        return writer;
+    }
+
+    public long minRecLsn() {
+        long min = Long.MAX_VALUE;
+        for (long recLsn : dirtyPages.values()) {
+            min = Math.min(min, recLsn);
         }
+        return min;
+    }
+
+    public void truncateByBgno(int maxPgno) {
+        writer.flush();
+        setLength(pageOffset(maxPgno + 1));
         pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close() {
         super.close();
+        writer.close();
+        closeFile();
+    }
+
+    // 关闭页面文件，调用时所有页面都已经写回
+    void closeFile() {
         try {
             fc.close();
             file.close();
@@ -142,8 +232,8 @@ public class PageCacheImp extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    static long pageOffset(int pgno) {
+        return (long) (pgno - 1) * PAGE_SIZE;
     }
 
 }
@@ -0,0 +1,259 @@
+package backend.dm.pageCache;
+
+import backend.dm.page.Page;
+import backend.util.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+PageWriter 是页面的后台写回线程。
+脏页面在缓存中被释放、或者新建页面时，不再立刻写盘并 force，而是交给 PageWriter 的脏页列表，
+由后台线程按页号顺序成批写回：相邻的页面拼接起来，只进行一次写操作，整批只 force 一次。
+
+在写回之前，页面仍然留在脏页列表中，PageCache 再次获取该页时直接复用列表中的 Page 对象，不会读到旧数据。
+
+先写日志的约定：页面上的每次修改在 beginUpdate() 和 endUpdate() 之间进行，而对应的日志在 endUpdate() 之前就已经落盘。
+PageWriter 在页面锁内确认页面上没有进行中的修改，再拷贝出页面的快照写回，
+因此写回的内容所对应的日志都已经落盘；有进行中修改的页面留到下一批再写。
+快照时清除页面的 dirty 标志，写回并 force 之后，如果页面没有再次被修改，才将其从脏页列表（以及检查点使用的脏页表）中移除。
+ */
+public class PageWriter implements Runnable {
+    // 每批最多写回的页数
+    private static final int MAX_BATCH_PAGES = 256;
+    // 后台线程在没有被唤醒时的写回间隔
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    private PageCacheImp pc;
+
+    private ConcurrentSkipListMap<Integer, Page> dirty;
+    private Lock roundLock;         // 同一时刻只进行一批写回
+
+    private Lock lock;
+    private Condition wakeup;
+    private volatile boolean closed;
+    private Thread thread;
+
+    // 统计信息
+    private AtomicLong pagesDirtied;    // 交给 PageWriter 的脏页次数
+    private AtomicLong pagesWritten;    // 实际写回的页数
+    private AtomicLong writeCalls;      // 合并后的写操作次数
+    private AtomicLong syncs;           // force 次数
+    private long startNanos;
+
+    PageWriter(PageCacheImp pc) {
+        this.pc = pc;
+        this.dirty = new ConcurrentSkipListMap<>();
+        this.roundLock = new ReentrantLock();
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.pagesDirtied = new AtomicLong();
+        this.pagesWritten = new AtomicLong();
+        this.writeCalls = new AtomicLong();
+        this.syncs = new AtomicLong();
+        this.startNanos = System.nanoTime();
+    }
+
+    void start() {
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 将脏页面加入写回列表
+    void add(Page pg) {
+        pagesDirtied.incrementAndGet();
+        dirty.put(pg.getPageNumber(), pg);
+        if (dirty.size() >= MAX_BATCH_PAGES) {
+            lock.lock();
+            try {
+                wakeup.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 尚未写回的页面
+    Page pending(int pgno) {
+        return dirty.get(pgno);
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (dirty.size() < MAX_BATCH_PAGES) {
+                    wakeup.await(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if (!dirty.isEmpty()) {
+                writeRound(null);
+            }
+        }
+    }
+
+    /*
+    同步写回调用时列表中的所有页面，返回时这些页面都已经落盘。
+    有进行中修改的页面要等修改结束之后才能写回，因此调用者不能持有列表中任何页面上进行中的修改
+     */
+    void flush() {
+        Set<Integer> waiting = new HashSet<>(dirty.keySet());
+        while (!waiting.isEmpty()) {
+            List<Page> batch = writeRound(waiting);
+            for (Page pg : batch) {
+                waiting.remove(pg.getPageNumber());
+            }
+            // 已经不在列表中的页面在调用之后被后台线程写回了
+            waiting.removeIf(pgno -> !dirty.containsKey(pgno));
+            if (batch.isEmpty() && !waiting.isEmpty()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /*
+    同步写回列表中没有进行中修改的页面，有进行中修改的页面留在列表中（以及脏页表中）。
+    检查点可能在调用者正在修改某个页面时进行，不能等待这些页面
+     */
+    void flushIdle() {
+        while (writeRound(null).size() == MAX_BATCH_PAGES) {
+        }
+    }
+
+    // 写回一批页面，only 不为 null 时只写回其中的页面，返回本批写回的页面
+    private List<Page> writeRound(Set<Integer> only) {
+        roundLock.lock();
+        try {
+            List<Page> batch = new ArrayList<>();
+            List<byte[]> images = new ArrayList<>();
+            for (Page pg : dirty.values()) {
+                if (batch.size() == MAX_BATCH_PAGES) {
+                    break;
+                }
+                if (only != null && !only.contains(pg.getPageNumber())) {
+                    continue;
+                }
+                pg.lock();
+                try {
+                    if (pg.isUpdating()) {
+                        continue;
+                    }
+                    images.add(Arrays.copyOf(pg.getData(), PageCache.PAGE_SIZE));
+                    pg.setDirty(false);
+                } finally {
+                    pg.unlock();
+                }
+                batch.add(pg);
+            }
+            if (batch.isEmpty()) {
+                return batch;
+            }
+
+            write(batch, images);
+            pc.sync();
+            syncs.incrementAndGet();
+            pagesWritten.addAndGet(batch.size());
+
+            for (Page pg : batch) {
+                pg.lock();
+                try {
+                    if (!pg.isDirty()) {
+                        pc.cleaned(pg.getPageNumber());
+                    }
+                } finally {
+                    pg.unlock();
+                }
+                dirty.computeIfPresent(pg.getPageNumber(), (k, v) -> v == pg && !v.isDirty() ? null : v);
+            }
+            return batch;
+        } finally {
+            roundLock.unlock();
+        }
+    }
+
+    // 页号连续的页面合并为一次写操作
+    private void write(List<Page> batch, List<byte[]> images) {
+        int i = 0;
+        while (i < batch.size()) {
+            int j = i + 1;
+            while (j < batch.size() && batch.get(j).getPageNumber() == batch.get(j - 1).getPageNumber() + 1) {
+                j++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((j - i) * PageCache.PAGE_SIZE);
+            for (int k = i; k < j; k++) {
+                buf.put(images.get(k));
+            }
+            buf.flip();
+            pc.writePages(batch.get(i).getPageNumber(), buf);
+            writeCalls.incrementAndGet();
+            i = j;
+        }
+    }
+
+    void close() {
+        flush();
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 当前等待写回的脏页数
+    public int getDirtyPageCount() {
+        return dirty.size();
+    }
+
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    public long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    // 每秒写回的页数
+    public double getFlushRate() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? pagesWritten.get() / seconds : 0;
+    }
+
+    // 合并比：页面被弄脏（交给 PageWriter）的次数与实际写回的页数之比，同一页在写回前多次变脏只写一次，比值越大合并得越多
+    public double getCoalescingRatio() {
+        long w = pagesWritten.get();
+        return w > 0 ? (double) pagesDirtied.get() / w : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("dirty=%d written=%d writes=%d syncs=%d rate=%.1f/s coalescing=%.3f",
+                getDirtyPageCount(), getPagesWritten(), getWriteCalls(), getSyncs(), getFlushRate(), getCoalescingRatio());
+    }
+}
@@ -12,8 +12,10 @@ insert 在请求一个页时，会首先将所需的空间向上取整，映射
 
 import backend.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,15 +26,18 @@ public class PageIndex {
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
     private Lock lock;
-    private List<PageInfo>[] lists;
+    private LinkedHashSet<PageInfo>[] lists;
+    // 当前在索引中的页面，被 select() 或者 remove() 取出的页面不在其中
+    private Map<Integer, PageInfo> pages;
 
-    @SuppressWarnings("unchecked")
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public PageIndex() {
         lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+        lists = new LinkedHashSet[INTERVALS_NO + 1];
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new LinkedHashSet<>();
         }
+        pages = new HashMap<>();
     }
 
     // 从 PageIndex 中获取页面也很简单，算出区间号，直接取即可
@@ -47,7 +52,11 @@ public class PageIndex {
                     number++;
                     continue;
                 }
-                return lists[number].remove(0);
+                Iterator<PageInfo> it = lists[number].iterator();
+                PageInfo pi = it.next();
+                it.remove();
+                pages.remove(pi.pgno);
+                return pi;
             }
             return null;
         } finally {
@@ -59,7 +68,26 @@ public class PageIndex {
         lock.lock();
         try {
             int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi);
+            pages.put(pgno, pi);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    取出指定的页面，和 select() 一样，取出期间其他插入不会选中该页面，用完后需要重新 add()。
+    页面已经被取出（正在插入）时返回 null
+     */
+    public PageInfo remove(int pgno) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.remove(pgno);
+            if (pi != null) {
+                lists[pi.freeSpace / THRESHOLD].remove(pi);
+            }
+            return pi;
         } finally {
             lock.unlock();
         }
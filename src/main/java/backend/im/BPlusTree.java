@@ -3,60 +3,269 @@ package backend.im;
 /*
 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，
 于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。可以注意到，IM 在操作 DM 时，使用的事务都是 SUPER_XID。
+
+并发控制采用 B-link 树的方式：每个节点都有指向右边兄弟节点的指针，不小于节点上界的范围在兄弟节点中。
+查找从根节点向下时不持有任何节点的锁，节点的读取是乐观的（见 Node.searchNext()），
+读到的节点如果刚刚分裂，要找的 key 已经被移到右边的新节点中，沿兄弟指针向右移动即可找到。
+插入只在修改的那一个节点上加写锁：不分裂的插入修改完就释放；需要分裂时在锁内创建右边的新节点并修改兄弟指针，
+释放之后再把新节点插入父节点。因此任何时刻一个插入最多持有一个节点的锁，不同节点上的插入互不阻塞。
+删除之后的合并会释放节点，在结构锁的写锁内独占地进行（见 delete()），其他操作都只持有结构锁的读锁。
+
+根节点的 UID 缓存在 volatile 的 root 中，读取时不需要加锁，只在 bootLock 内和 bootDataItem 一起修改。
+
+key 是不超过 MAX_KEY_LENGTH 个字节的字节串，按逐字节无符号比较的顺序排列，由上层把字段的值编码为顺序一致的 key（见 Parser.long2Key() 等）。
+索引项按 (key, uid) 排序，相同的 key 按 uid 排在一起，范围查找返回的就是 key 在范围内的全部索引项，不需要再逐条检查。
  */
 
 import backend.common.SubArray;
 import backend.dm.DataManager;
 import backend.dm.dataItem.DataItem;
 import backend.tm.TMImplement;
-import backend.im.Node.LeafSearchRangeRes;
 import backend.im.Node.InsertAndSplitRes;
 import backend.im.Node.SearchNextRes;
+import backend.im.Node.DeleteRes;
+import backend.im.Node.Entries;
 import backend.util.Parser;
+import common.Error;
 
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BPlusTree {
+    // key 的最大长度，更长的值由上层截断
+    public static final int MAX_KEY_LENGTH = 256;
+    // 范围的下界没有限制时使用的 key，不大于任何 key
+    public static final byte[] MIN_KEY = new byte[0];
+
     DataManager dm;
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    // 结构锁：查找、插入和删除索引项持有读锁，删除之后合并或重新分配节点持有写锁
+    ReadWriteLock structLock;
+    // 结构版本，合并或重新分配节点时加一，在结构锁内读写，游标据此判断记下的节点是否仍然可靠
+    int structVersion;
+    private volatile long root;
+    // 合并或者降低树高之后不再使用的节点交给 freer 释放，默认直接交给 DM
+    NodeFreer freer;
+    // 旧格式的树，见 upgrade()
+    private boolean legacy;
 
-    private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
-        } finally {
-            bootLock.unlock();
-        }
+    /*
+    释放节点。乐观的读者不持有节点的锁，可能在节点被释放之后仍然读到它的 UID，
+    上层可以把节点交给 Vacuum，和清理的版本一样，等释放时的活跃事务都结束之后再回收空间
+     */
+    public interface NodeFreer {
+        void free(long uid) throws Exception;
+    }
+
+    public void setNodeFreer(NodeFreer freer) {
+        this.freer = freer;
+    }
+
+    long rootUid() {
+        return root;
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    /*
+    分裂的节点 left 仍然是根节点时，创建以 left 和 right 为子节点的新根节点，返回 true。
+    left 已经不是根节点时返回 false：在这个插入从根节点向下查找之后，其他插入已经让树长高了，
+    父节点需要重新查找（以前这里直接用 left 创建新的根节点，会覆盖掉更高的根节点）
+     */
+    private boolean updateRootUid(long left, long right, byte[] rightKey, long rightUid) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            if (root != left) {
+                return false;
+            }
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, rightUid);
             long newRootUid = dm.insert(TMImplement.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TMImplement.SUPER_XID);
+            setRootUid(newRootUid);
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
+    // 在 bootLock 内调用
+    private void setRootUid(long uid) {
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        Parser.writeLong(diRaw.raw, diRaw.start, uid);
+        bootDataItem.after(TMImplement.SUPER_XID);
+        root = uid;
+    }
+
     public static long create(DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();
         long rootUid = dm.insert(TMImplement.SUPER_XID, rawRoot);
         return dm.insert(TMImplement.SUPER_XID, Parser.long2Byte(rootUid));
     }
 
+    /*
+    由 sorted 中的索引项自底向上建立 B+ 树，返回和 create() 一样的启动 UID。sorted 已经调用过 finish()，按 (key, uid) 从大到小输出。
+    逐个插入时每个索引项都要从根节点查找、记录一条更新日志，节点还会反复分裂；批量建立时每个节点只写入一次。
+
+    每个节点按编码之后的字节数放入索引项，达到容量的 fillFactor 为止，为之后的插入留出空间；
+    每一层最左边剩下的节点不足 MIN_BYTES 时和右边相邻的节点重新分配，删除不会立刻引起合并（见 LevelBuilder）。
+    节点从右向左写入，写入一个节点时右边的兄弟节点已经存在，不需要回头修改兄弟指针。
+    每个节点的上界是右边相邻节点的下界，每一层最右边的节点为正无穷，和逐个插入得到的树一致。
+    节点都以 SUPER_XID 插入，在返回的启动 UID 被引用之前，崩溃只会留下无用的 DataItem
+     */
+    public static long bulkLoad(DataManager dm, ExternalSort sorted, double fillFactor) throws Exception {
+        if (sorted.size() == 0) {
+            return create(dm);
+        }
+        LevelBuilder level = new LevelBuilder(dm, true, fillFactor);
+        byte[] prevKey = null;
+        long prevUid = 0;
+        while (sorted.next()) {
+            // 树中的索引项是唯一的，重复的只保留一个
+            if (prevKey != null && compare(prevKey, prevUid, sorted.key(), sorted.uid()) == 0) {
+                continue;
+            }
+            prevKey = sorted.key();
+            prevUid = sorted.uid();
+            if (prevKey.length > MAX_KEY_LENGTH) {
+                throw Error.KeyTooLongException;
+            }
+            level.add(prevKey, prevUid, prevUid);
+        }
+        level.finish();
+        while (level.count > 1) {
+            LevelBuilder parent = new LevelBuilder(dm, false, fillFactor);
+            for (int i = 0; i < level.count; i++) {
+                parent.add(level.highKeys[i], level.highUids[i], level.nodes[i]);
+            }
+            parent.finish();
+            level = parent;
+        }
+        return dm.insert(TMImplement.SUPER_XID, Parser.long2Byte(level.nodes[0]));
+    }
+
+    /*
+    批量建立时写入一层节点。索引项按从大到小的顺序加入，攒够一个节点就写入，节点从右向左写入。
+    最后剩下的最左边的节点可能很小，所以写入总是晚一个节点：结束时如果剩下的节点不足 MIN_BYTES，
+    就和还没有写入的右边相邻的节点合起来，放得下时合成一个，放不下时重新分成两个。
+    写入的节点按从右向左的顺序记在 nodes 中，同时记下它们的上界，作为上一层的索引项
+     */
+    private static class LevelBuilder {
+        DataManager dm;
+        boolean isLeaf;
+        int target;
+
+        // 正在攒的节点和还没有写入的上一个节点，都按从大到小的顺序
+        Entries cur, held;
+        // cur 不压缩前缀时的字节数、有限的 key 的个数、最大的有限的 key
+        int full, finite;
+        byte[] maxKey;
+
+        long[] nodes = new long[16];
+        byte[][] highKeys = new byte[16][];
+        long[] highUids = new long[16];
+        int count;
+        // 上一个写入的节点的下界，也就是下一个写入的叶子节点的上界
+        byte[] lowKey;
+        long lowUid;
+
+        LevelBuilder(DataManager dm, boolean isLeaf, double fillFactor) {
+            this.dm = dm;
+            this.isLeaf = isLeaf;
+            this.target = (int) Math.max(Node.MIN_BYTES * 2, Node.capacity(isLeaf) * Math.min(fillFactor, 1.0));
+            this.cur = new Entries(64);
+        }
+
+        // 只有内部节点的第一个索引项是正无穷，之后的 key 都是有限的
+        void add(byte[] key, long uid, long son) throws Exception {
+            if (cur.n > 0 && sizeWith(key) > target) {
+                if (held != null) {
+                    write(held.reversed());
+                }
+                held = cur;
+                cur = new Entries(64);
+                full = finite = 0;
+                maxKey = null;
+            }
+            full += entrySize(key);
+            if (key != null) {
+                finite++;
+                if (maxKey == null) {
+                    maxKey = key;
+                }
+            }
+            cur.add(key, uid, son);
+        }
+
+        // 加入 key 之后 cur 编码的字节数。key 比 cur 中的都小，公共前缀是它和最大的有限的 key 的公共前缀
+        private int sizeWith(byte[] key) {
+            int p = Node.commonPrefix(maxKey == null ? key : maxKey, key);
+            return Node.NODE_HEADER_SIZE + p + full + entrySize(key) - (finite + 1) * p;
+        }
+
+        // 不压缩前缀时一个索引项占用的字节数，包括它的 Offset
+        private int entrySize(byte[] key) {
+            return 2 + (isLeaf ? Node.LEAF_ENTRY_SIZE : Node.INTERNAL_ENTRY_SIZE) + (key == null ? 0 : key.length);
+        }
+
+        void finish() throws Exception {
+            Entries e = cur.reversed();
+            if (held == null) {
+                write(e);
+                return;
+            }
+            if (Node.encodedSize(isLeaf, e, 0, e.n) >= Node.MIN_BYTES) {
+                write(held.reversed());
+                write(e);
+                return;
+            }
+            Entries h = held.reversed();
+            for (int i = 0; i < h.n; i++) {
+                e.add(h.keys[i], h.uids[i], h.sons[i]);
+            }
+            if (Node.encodedSize(isLeaf, e, 0, e.n) <= Node.capacity(isLeaf)) {
+                write(e, 0, e.n);
+                return;
+            }
+            int m = Node.splitPoint(isLeaf, e, 0, e.n);
+            write(e, m, e.n);
+            write(e, 0, m);
+        }
+
+        private void write(Entries e) throws Exception {
+            write(e, 0, e.n);
+        }
+
+        // 写入 e 中 [from, to) 的索引项，兄弟节点是上一个写入的节点
+        private void write(Entries e, int from, int to) throws Exception {
+            SubArray raw = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+            long sibling = count > 0 ? nodes[count - 1] : 0;
+            Node.encode(raw, isLeaf, sibling, e, from, to, lowKey, lowUid);
+            long uid = dm.insert(TMImplement.SUPER_XID, raw.raw);
+            if (count == nodes.length) {
+                nodes = Arrays.copyOf(nodes, count * 2);
+                highKeys = Arrays.copyOf(highKeys, count * 2);
+                highUids = Arrays.copyOf(highUids, count * 2);
+            }
+            nodes[count] = uid;
+            if (isLeaf) {
+                highKeys[count] = lowKey;
+                highUids[count] = lowUid;
+            } else {
+                highKeys[count] = e.keys[to - 1];
+                highUids[count] = e.uids[to - 1];
+            }
+            count++;
+            lowKey = e.keys[from];
+            lowUid = e.uids[from];
+        }
+    }
+
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
         DataItem bootDataItem = dm.read(bootUid);
         assert bootDataItem != null;
@@ -65,98 +274,363 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.structLock = new ReentrantReadWriteLock();
+        t.freer = dm::free;
+        SubArray sa = bootDataItem.data();
+        t.root = Parser.readLong(sa.raw, sa.start);
+        Node root = Node.loadNode(t, t.root);
+        try {
+            t.legacy = root.isLegacy();
+        } finally {
+            root.release();
+        }
         return t;
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    /*
+    旧版本的节点中 key 是 8 个字节的整数，string 字段只存了哈希值或者前 8 个字节，不能从节点中恢复出新的 key。
+    加载之后由上层按 forEachLegacyUid() 得到的记录重新计算 key，调用 upgrade() 替换整棵树，在此之前不能使用这棵树
+     */
+    public boolean isLegacy() {
+        return legacy;
+    }
 
-        if (isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    public interface UidVisitor {
+        void visit(long uid) throws Exception;
+    }
+
+    // 依次访问旧格式的树中所有索引项的 UID
+    public void forEachLegacyUid(UidVisitor visitor) throws Exception {
+        long leaf = rootUid();
+        while (true) {
+            Node node = Node.loadNode(this, leaf);
+            try {
+                if (node.isLeaf()) {
+                    break;
+                }
+                leaf = Node.getLegacyKthSon(node.raw, 0);
+            } finally {
+                node.release();
+            }
+        }
+        while (leaf != 0) {
+            Node node = Node.loadNode(this, leaf);
+            try {
+                int noKeys = Node.getRawNoKeys(node.raw);
+                for (int i = 0; i < noKeys; i++) {
+                    visitor.visit(Node.getLegacyKthSon(node.raw, i));
+                }
+                leaf = Node.getRawSibling(node.raw);
+            } finally {
+                node.release();
+            }
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    /*
+    由 sorted 批量建立新格式的节点，启动 UID 指向新的根节点，再释放旧格式的节点。
+    只在加载时调用，此时没有其他的读者。根节点的切换记录了日志，在此之前崩溃时旧的树保持不变，下次加载时重新转换
+     */
+    public void upgrade(ExternalSort sorted, double fillFactor) throws Exception {
+        List<Long> old = allNodes();
+
+        long boot = bulkLoad(dm, sorted, fillFactor);
+        DataItem di = dm.read(boot);
+        long newRoot;
+        try {
+            SubArray sa = di.data();
+            newRoot = Parser.readLong(sa.raw, sa.start);
+        } finally {
+            di.release();
+        }
+        bootLock.lock();
+        try {
+            setRootUid(newRoot);
+        } finally {
+            bootLock.unlock();
+        }
+        legacy = false;
+        dm.free(boot);
+        for (long uid : old) {
+            dm.free(uid);
+        }
+    }
+
+    /*
+    释放整棵树，包括启动 DataItem，之后不能再使用这棵树。节点交给 freer，调用方保证此时没有其他操作在使用这棵树
+     */
+    public void drop() throws Exception {
+        List<Long> nodes = allNodes();
+        bootDataItem.release();
+        for (long uid : nodes) {
+            freer.free(uid);
+        }
+        freer.free(bootUid);
+    }
+
+    // 逐层沿兄弟指针列出树中所有的节点
+    private List<Long> allNodes() throws Exception {
+        List<Long> nodes = new ArrayList<>();
+        for (long first = rootUid(); first != 0; ) {
+            long next = 0;
+            for (long uid = first; uid != 0; ) {
+                Node node = Node.loadNode(this, uid);
+                try {
+                    nodes.add(uid);
+                    if (uid == first && !node.isLeaf()) {
+                        next = node.isLegacy() ? Node.getLegacyKthSon(node.raw, 0) : Node.getRawKthSon(node.raw, 0);
+                    }
+                    uid = Node.getRawSibling(node.raw);
+                } finally {
+                    node.release();
+                }
+            }
+            first = next;
+        }
+        return nodes;
+    }
+
+    /*
+    比较 (k1, u1) 和 (k2, u2)：先按 key 逐字节无符号比较，相同时再比较 uid。key 为 null 表示正无穷
+     */
+    public static int compare(byte[] k1, long u1, byte[] k2, long u2) {
+        if (k1 == null || k2 == null) {
+            return k1 == null ? (k2 == null ? 0 : 1) : -1;
+        }
+        int c = Arrays.compareUnsigned(k1, k2);
+        return c != 0 ? c : Long.compare(u1, u2);
+    }
+
+    long searchLeaf(long nodeUid, byte[] key, long uid) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
-            node.release();
-            if (res.uid != 0) return res.uid;
-            nodeUid = res.siblingUid;
+            try {
+                if (node.isLeaf()) {
+                    return nodeUid;
+                }
+                SearchNextRes res = node.searchNext(key, uid);
+                nodeUid = res.uid != 0 ? res.uid : res.siblingUid;
+            } finally {
+                node.release();
+            }
         }
     }
 
-    public List<Long> search(long key) throws Exception {
+    /*
+    和 searchLeaf 一样从根节点向下查找，返回每一层中实际找到下一层节点的那个节点（沿兄弟指针移动之后的节点），
+    最后一个是叶子节点。插入时用它找到分裂之后需要插入新节点的父节点
+     */
+    long[] searchPath(byte[] key, long uid) throws Exception {
+        long[] path = new long[4];
+        int depth = 0;
+        long nodeUid = rootUid();
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            try {
+                if (!node.isLeaf()) {
+                    SearchNextRes res = node.searchNext(key, uid);
+                    if (res.uid == 0) {
+                        nodeUid = res.siblingUid;
+                        continue;
+                    }
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                    }
+                    path[depth++] = nodeUid;
+                    nodeUid = res.uid;
+                    continue;
+                }
+            } finally {
+                node.release();
+            }
+            path = Arrays.copyOf(path, depth + 1);
+            path[depth] = nodeUid;
+            return path;
+        }
+    }
+
+    public List<Long> search(byte[] key) throws Exception {
         return searchRange(key, key);
     }
 
-    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+    // 返回 key 在 [leftKey, rightKey] 范围内的 UID，leftKey 为 null 时没有下界，rightKey 为 null 时没有上界
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey) throws Exception {
+        Cursor cursor = scan(leftKey, rightKey, false);
         List<Long> uids = new ArrayList<>();
-        while (true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) {
-                break;
-            } else {
+        while (cursor.next()) {
+            uids.add(cursor.uid());
+        }
+        return uids;
+    }
+
+    // 返回遍历 key 在 [leftKey, rightKey] 范围内的 UID 的游标，reverse 为 true 时从大到小遍历
+    public Cursor scan(byte[] leftKey, byte[] rightKey, boolean reverse) {
+        return scan(leftKey == null ? MIN_KEY : leftKey, Long.MIN_VALUE, rightKey, Long.MAX_VALUE, reverse);
+    }
+
+    /*
+    返回遍历 [(leftKey, leftUid), (rightKey, rightUid)] 范围内 UID 的游标，rightKey 为 null 时没有上界。
+    UID 都在 (0, Long.MAX_VALUE) 之间，上层可以用 (key, Long.MAX_VALUE) 作为下界、(key, Long.MIN_VALUE) 作为上界来排除 key 本身
+     */
+    public Cursor scan(byte[] leftKey, long leftUid, byte[] rightKey, long rightUid, boolean reverse) {
+        return new Cursor(this, leftKey, leftUid, rightKey, rightUid, reverse);
+    }
+
+    /*
+    插入从叶子节点开始，节点分裂时把新节点插入查找路径上一层的节点，直到不再分裂。
+    路径上的节点在查找之后可能已经分裂，insertAndSplit 会沿兄弟指针找到实际应该插入的节点。
+    路径最上面的节点分裂时，如果它仍然是根节点，就创建新的根节点；否则树已经被其他插入加高了，
+    重新从根节点查找，得到分裂节点上一层的节点。其他插入可能刚刚分裂了根节点、还没有创建新的根节点，此时等待它完成。
+    分裂的节点的上界是 (sonKey, sonUid)，按紧挨着它的 (sonKey, sonUid - 1) 查找会落在分裂的节点中。
+     */
+    public void insert(byte[] key, long uid) throws Exception {
+        if (key.length > MAX_KEY_LENGTH) {
+            throw Error.KeyTooLongException;
+        }
+        structLock.readLock().lock();
+        try {
+            long[] path = searchPath(key, uid);
+            int depth = path.length - 1;
+            long son = 0, sonUid = uid, left = 0;
+            byte[] sonKey = key;
+            while (true) {
+                InsertRes res = insertAndSplit(path[depth], son, sonKey, sonUid, left);
+                if (res.newNode == 0) {
+                    return;
+                }
+                left = res.splitNode;
+                son = res.newNode;
+                sonKey = res.newKey;
+                sonUid = res.newUid;
+                if (depth > 0) {
+                    depth--;
+                    continue;
+                }
+                if (updateRootUid(res.splitNode, res.newNode, res.newKey, res.newUid)) {
+                    return;
+                }
+                // 分裂的节点所在的层，叶子节点为第 0 层
+                int level = path.length - 1;
+                while (true) {
+                    path = searchPath(sonKey, sonUid - 1);
+                    if (path.length - 1 > level) {
+                        break;
+                    }
+                    Thread.yield();
+                }
+                depth = path.length - 1 - (level + 1);
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+    }
+
+    /*
+    删除索引项 (key, uid)，返回是否找到。
+    删除本身和插入一样只持有结构锁的读锁，在叶子节点内完成；删除之后叶子节点不足半满时，
+    换成写锁，从根节点沿着 key 的路径自底向上合并或重新分配不足半满的节点，最后根节点只剩一个子节点时降低树高。
+    合并需要同时修改父节点和两个子节点，没有父指针的 B-link 树很难和并发的查找、插入协调，
+    而删除导致的合并远比插入少，所以在写锁内独占地进行。
+     */
+    public boolean delete(byte[] key, long uid) throws Exception {
+        boolean underflow;
+        structLock.readLock().lock();
+        try {
+            long leafUid = searchLeaf(rootUid(), key, uid);
+            while (true) {
+                Node leaf = Node.loadNode(this, leafUid);
+                DeleteRes res = leaf.leafDelete(key, uid);
+                leaf.release();
+                if (res.found) {
+                    underflow = res.underflow;
+                    break;
+                }
+                if (res.siblingUid == 0) {
+                    return false;
+                }
                 leafUid = res.siblingUid;
             }
+        } finally {
+            structLock.readLock().unlock();
         }
-        return uids;
+        if (underflow) {
+            structLock.writeLock().lock();
+            try {
+                structVersion++;
+                rebalance(rootUid(), key, uid);
+                collapseRoot();
+            } finally {
+                structLock.writeLock().unlock();
+            }
+        }
+        return true;
     }
 
-    public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if (res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+    // 先调整子节点，再调整本节点中不足半满的子节点
+    private void rebalance(long nodeUid, byte[] key, long uid) throws Exception {
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            try {
+                if (node.isLeaf()) {
+                    return;
+                }
+                int kth = node.childIndex(key, uid);
+                if (kth < 0) {
+                    nodeUid = node.getSibling();
+                    continue;
+                }
+                rebalance(node.getKthSon(kth), key, uid);
+                node.rebalanceKth(kth);
+                return;
+            } finally {
+                node.release();
+            }
         }
     }
 
-    class InsertRes {
-        long newNode, newKey;
-    }
-
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        InsertRes res = null;
-        if (isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if (ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
+    // 根节点只剩一个子节点时，由这个子节点成为新的根节点
+    private void collapseRoot() throws Exception {
+        while (true) {
+            long rootUid = rootUid();
+            Node root = Node.loadNode(this, rootUid);
+            long son;
+            try {
+                if (root.isLeaf() || root.getNoKeys() != 1) {
+                    return;
+                }
+                son = root.getKthSon(0);
+            } finally {
+                root.release();
+            }
+            bootLock.lock();
+            try {
+                setRootUid(son);
+            } finally {
+                bootLock.unlock();
             }
+            freer.free(rootUid);
         }
-        return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    // splitNode 是实际插入并分裂的节点，newNode 是分裂出的右边的新节点，(newKey, newUid) 是它的下界
+    class InsertRes {
+        long splitNode, newNode, newUid;
+        byte[] newKey;
+    }
+
+    private InsertRes insertAndSplit(long nodeUid, long son, byte[] key, long uid, long left) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            InsertAndSplitRes iasr = node.insertAndSplit(son, key, uid, left);
             node.release();
             if (iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
+                res.splitNode = nodeUid;
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.newUid = iasr.newUid;
                 return res;
             }
         }
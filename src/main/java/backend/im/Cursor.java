@@ -0,0 +1,240 @@
+package backend.im;
+
+import backend.im.Node.FindSonRes;
+import backend.im.Node.LeafScanRes;
+
+import java.util.Arrays;
+
+/*
+Cursor 按 (key, uid) 从小到大（reverse 时从大到小）逐个返回 B+ 树中 [(leftKey, leftUid), (rightKey, rightUid)] 范围内的 UID。
+每次读取一个叶子节点中的索引项，缓存在数组中逐个返回，用完之后再读取下一个叶子节点。
+内存占用和一个叶子节点相当，返回第一个 UID 只需要一次查找和一次叶子节点的读取。
+两次读取之间不持有任何锁和节点，调用方可以随时停止使用。
+
+每个索引项 (key, uid) 在树中是唯一的，每读取一批，就把范围缩小到还没有返回的部分：
+正向时下界移到这一批最后一个索引项之后，逆向时上界移到第一个索引项之前。之后无论从哪个节点继续，都不会重复返回。
+
+正向遍历时记下叶子节点的兄弟节点，下次从兄弟节点继续。读过的节点之后分裂时，移到右边新节点中的索引项都已经返回过了，
+跳过新节点不会遗漏。逆向遍历时没有指向左边的指针，于是记下查找路径上每一层的内部节点，在父节点中找到左边相邻的叶子节点；
+期间分裂出的节点位于它和已经读过的叶子节点之间，一起读取。
+
+删除之后的合并和重新分配会在节点之间移动索引项，期间记下的兄弟节点和路径都不再可靠。
+每次读取时检查树的结构版本，结构变化过就按缩小之后的范围重新从根节点查找。
+ */
+public class Cursor {
+    private BPlusTree tree;
+    // 还没有返回的范围，rightKey 为 null 表示没有上界
+    private byte[] leftKey, rightKey;
+    private long leftUid, rightUid;
+    private boolean reverse;
+
+    // 当前读取的一批索引项，按 (key, uid) 从小到大排列，逆向时从后向前返回
+    private long[] uids;
+    private int n, pos;
+    private long uid;
+    // 这一批中第一个和最后一个索引项
+    private byte[] firstKey, lastKey;
+    private long firstUid, lastUid;
+
+    private boolean started;
+    private boolean exhausted;
+    // 读取上一批时树的结构版本
+    private int version;
+    // 正向：下一个要读取的叶子节点
+    private long next;
+    // 逆向：上一批中最左边的叶子节点，和查找路径上的内部节点，path[0] 为根节点
+    private long stop;
+    private long[] path;
+
+    Cursor(BPlusTree tree, byte[] leftKey, long leftUid, byte[] rightKey, long rightUid, boolean reverse) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.leftUid = leftUid;
+        this.rightKey = rightKey;
+        this.rightUid = rightUid;
+        this.reverse = reverse;
+        this.uids = new long[Node.MAX_ENTRIES];
+        this.exhausted = BPlusTree.compare(leftKey, leftUid, rightKey, rightUid) > 0;
+    }
+
+    // 移动到下一个 UID，没有更多的 UID 时返回 false
+    public boolean next() throws Exception {
+        while (pos == n) {
+            if (exhausted) {
+                return false;
+            }
+            fill();
+        }
+        uid = uids[reverse ? n - 1 - pos : pos];
+        pos++;
+        return true;
+    }
+
+    public long uid() {
+        return uid;
+    }
+
+    private void fill() throws Exception {
+        n = 0;
+        pos = 0;
+        tree.structLock.readLock().lock();
+        try {
+            if (reverse) {
+                fillReverse();
+            } else {
+                fillForward();
+            }
+            started = true;
+            version = tree.structVersion;
+        } finally {
+            tree.structLock.readLock().unlock();
+        }
+        if (n == 0) {
+            return;
+        }
+        // UID 都在 (0, Long.MAX_VALUE) 之间，加减一不会溢出
+        if (reverse) {
+            rightKey = firstKey;
+            rightUid = firstUid - 1;
+        } else {
+            leftKey = lastKey;
+            leftUid = lastUid + 1;
+        }
+    }
+
+    private void fillForward() throws Exception {
+        long leaf;
+        if (started && version == tree.structVersion) {
+            leaf = next;
+        } else {
+            leaf = tree.searchLeaf(tree.rootUid(), leftKey, leftUid);
+        }
+        while (n == 0 && leaf != 0) {
+            LeafScanRes res = scanLeaf(leaf);
+            leaf = res.beyond ? 0 : res.siblingUid;
+        }
+        next = leaf;
+        exhausted = leaf == 0;
+    }
+
+    private void fillReverse() throws Exception {
+        while (n == 0 && !exhausted) {
+            if (!started || version != tree.structVersion || !readPrevious()) {
+                reposition();
+            }
+            started = true;
+            version = tree.structVersion;
+        }
+    }
+
+    /*
+    按范围的上界从根节点查找，找到的叶子节点包含上界所在的范围，右边节点中的索引项都大于上界；
+    查找之后这个节点可能分裂，沿兄弟指针读取到出现大于上界的索引项为止
+     */
+    private void reposition() throws Exception {
+        n = 0;
+        long[] p = tree.searchPath(rightKey, rightUid);
+        path = Arrays.copyOf(p, p.length - 1);
+        stop = p[p.length - 1];
+        long leaf = stop;
+        boolean below = false;
+        while (leaf != 0) {
+            LeafScanRes res = scanLeaf(leaf);
+            below |= leaf == stop && res.below;
+            leaf = res.beyond ? 0 : res.siblingUid;
+        }
+        exhausted = below;
+    }
+
+    // 读取 stop 左边相邻的叶子节点到 stop 之间的节点，路径不再可靠时返回 false
+    private boolean readPrevious() throws Exception {
+        long prev = previous(0, stop);
+        if (prev < 0) {
+            return false;
+        }
+        if (prev == 0) {
+            exhausted = true;
+            return true;
+        }
+        boolean below = false;
+        for (long leaf = prev; leaf != stop; ) {
+            if (leaf == 0) {
+                n = 0;
+                return false;
+            }
+            LeafScanRes res = scanLeaf(leaf);
+            below |= leaf == prev && res.below;
+            leaf = res.siblingUid;
+        }
+        stop = prev;
+        exhausted = below;
+        return true;
+    }
+
+    /*
+    返回第 level 层（叶子节点为第 0 层）中 target 左边相邻的节点：在路径上一层的节点中找到 target，取它前一个子节点；
+    target 是第一个子节点时，取上一层中左边相邻节点的最后一个子节点。上一层的节点可能已经分裂，沿兄弟指针查找。
+    target 是这一层最左边的节点时返回 0，找不到 target 时返回 -1
+     */
+    private long previous(int level, long target) throws Exception {
+        int idx = path.length - level - 1;
+        if (idx < 0) {
+            return target == tree.rootUid() ? 0 : -1;
+        }
+        long p = path[idx], before = 0;
+        while (p != 0) {
+            Node node = Node.loadNode(tree, p);
+            FindSonRes res;
+            try {
+                res = node.findSon(target);
+            } finally {
+                node.release();
+            }
+            if (res.index > 0) {
+                path[idx] = p;
+                return res.prevSon;
+            }
+            if (res.index == 0) {
+                long pp = before != 0 ? before : previous(level + 1, p);
+                if (pp <= 0) {
+                    return pp;
+                }
+                path[idx] = pp;
+                Node prevNode = Node.loadNode(tree, pp);
+                try {
+                    // 子节点的 UID 不会为 0，这里只需要它的最后一个子节点
+                    return prevNode.findSon(0).lastSon;
+                } finally {
+                    prevNode.release();
+                }
+            }
+            before = p;
+            p = res.siblingUid;
+        }
+        return -1;
+    }
+
+    // 读取叶子节点中还没有返回的范围内的索引项，追加到当前这一批中。叶子节点按从左到右的顺序读取
+    private LeafScanRes scanLeaf(long leaf) throws Exception {
+        if (n + Node.MAX_ENTRIES > uids.length) {
+            uids = Arrays.copyOf(uids, uids.length * 2);
+        }
+        Node node = Node.loadNode(tree, leaf);
+        LeafScanRes res;
+        try {
+            res = node.leafScan(leftKey, leftUid, rightKey, rightUid, uids, n);
+        } finally {
+            node.release();
+        }
+        if (res.n > n) {
+            if (n == 0) {
+                firstKey = res.firstKey;
+                firstUid = res.firstUid;
+            }
+            lastKey = res.lastKey;
+            lastUid = res.lastUid;
+            n = res.n;
+        }
+        return res;
+    }
+}
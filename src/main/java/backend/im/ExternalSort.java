@@ -0,0 +1,254 @@
+package backend.im;
+
+import backend.util.Panic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*
+ExternalSort 对 (key, uid) 做外部归并排序，供 BPlusTree.bulkLoad() 批量建立索引使用。
+
+add() 把索引项放在内存的数组中，攒满 runSize 个或者 key 的总长度达到 RUN_BYTES 之后排序并写入一个临时文件，成为一个有序段；
+finish() 之后用 next() 依次取出全部索引项。只有一段时直接从内存中返回，否则用堆对所有段做多路归并，
+每段只需要顺序读取一遍。内存占用只和一段的大小有关，和索引项的总数无关。
+
+输出的顺序和 BPlusTree.compare() 相反，按 key 从大到小，key 相同时按 uid 从大到小：批量建立时从最右边的节点开始写入，
+这样每个节点写入时它右边的兄弟节点已经存在。
+ */
+public class ExternalSort {
+    // 默认每段最多 512K 个索引项、16MB 的 key，数组按需增长
+    private static final int DEFAULT_RUN_SIZE = 1 << 19;
+    private static final long RUN_BYTES = 1 << 24;
+    private static final int INITIAL_SIZE = 1 << 10;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private int runSize;
+    private byte[][] keys, tmpKeys;
+    private long[] uids, tmpUids;
+    private int n;
+    private long bytes;
+    private long size;
+    private List<File> runs;
+    // 每段中索引项的个数
+    private List<Integer> runCounts;
+
+    private boolean finished;
+    // 只有一段时在内存中的读取位置
+    private int pos;
+    // 多段归并时每段的读取状态
+    private PriorityQueue<Run> heap;
+    private byte[] key;
+    private long uid;
+
+    public ExternalSort() {
+        this(DEFAULT_RUN_SIZE);
+    }
+
+    public ExternalSort(int runSize) {
+        this.runSize = runSize;
+        this.keys = new byte[Math.min(runSize, INITIAL_SIZE)][];
+        this.uids = new long[keys.length];
+        this.runs = new ArrayList<>();
+        this.runCounts = new ArrayList<>();
+    }
+
+    public void add(byte[] key, long uid) {
+        if (n == runSize || bytes >= RUN_BYTES) {
+            spill();
+        } else if (n == keys.length) {
+            keys = Arrays.copyOf(keys, Math.min(runSize, n * 2));
+            uids = Arrays.copyOf(uids, keys.length);
+        }
+        keys[n] = key;
+        uids[n] = uid;
+        n++;
+        bytes += key.length;
+        size++;
+    }
+
+    // 索引项的总数
+    public long size() {
+        return size;
+    }
+
+    public void finish() {
+        sortRun();
+        finished = true;
+        if (runs.isEmpty()) {
+            return;
+        }
+        if (n > 0) {
+            writeRun();
+        }
+        keys = tmpKeys = null;
+        uids = tmpUids = null;
+        heap = new PriorityQueue<>(runs.size(), (a, b) -> BPlusTree.compare(b.key, b.uid, a.key, a.uid));
+        for (int i = 0; i < runs.size(); i++) {
+            Run r = new Run(runs.get(i), runCounts.get(i));
+            if (r.advance()) {
+                heap.add(r);
+            }
+        }
+    }
+
+    // 移动到下一个索引项，全部取完时返回 false
+    public boolean next() {
+        assert finished;
+        if (heap == null) {
+            if (pos == n) {
+                return false;
+            }
+            key = keys[pos];
+            uid = uids[pos];
+            pos++;
+            return true;
+        }
+        Run r = heap.poll();
+        if (r == null) {
+            return false;
+        }
+        key = r.key;
+        uid = r.uid;
+        if (r.advance()) {
+            heap.add(r);
+        }
+        return true;
+    }
+
+    public byte[] key() {
+        return key;
+    }
+
+    public long uid() {
+        return uid;
+    }
+
+    // 删除临时文件，没有全部取完时也需要调用
+    public void close() {
+        if (heap != null) {
+            for (Run r : heap) {
+                r.close();
+            }
+            heap.clear();
+        }
+        for (File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+        runCounts.clear();
+    }
+
+    private void spill() {
+        sortRun();
+        writeRun();
+        Arrays.fill(keys, 0, n, null);
+        Arrays.fill(tmpKeys, 0, n, null);
+        n = 0;
+        bytes = 0;
+    }
+
+    private void writeRun() {
+        try {
+            File f = File.createTempFile("mydb-sort", ".run");
+            f.deleteOnExit();
+            runs.add(f);
+            runCounts.add(n);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE))) {
+                for (int i = 0; i < n; i++) {
+                    out.writeShort(keys[i].length);
+                    out.write(keys[i]);
+                    out.writeLong(uids[i]);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 对 [0, n) 自底向上归并排序，结果在 keys 和 uids 中
+    private void sortRun() {
+        if (tmpKeys == null || tmpKeys.length != keys.length) {
+            tmpKeys = new byte[keys.length][];
+            tmpUids = new long[keys.length];
+        }
+        byte[][] fk = keys, tk = tmpKeys;
+        long[] fu = uids, tu = tmpUids;
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    if (BPlusTree.compare(fk[i], fu[i], fk[j], fu[j]) >= 0) {
+                        tk[k] = fk[i];
+                        tu[k++] = fu[i++];
+                    } else {
+                        tk[k] = fk[j];
+                        tu[k++] = fu[j++];
+                    }
+                }
+                System.arraycopy(fk, i, tk, k, mid - i);
+                System.arraycopy(fu, i, tu, k, mid - i);
+                k += mid - i;
+                System.arraycopy(fk, j, tk, k, hi - j);
+                System.arraycopy(fu, j, tu, k, hi - j);
+            }
+            byte[][] t = fk; fk = tk; tk = t;
+            long[] s = fu; fu = tu; tu = s;
+        }
+        keys = fk;
+        uids = fu;
+        tmpKeys = tk;
+        tmpUids = tu;
+    }
+
+    private static class Run {
+        DataInputStream in;
+        long remaining;
+        byte[] key;
+        long uid;
+
+        Run(File f, int count) {
+            remaining = count;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+
+        boolean advance() {
+            try {
+                if (remaining == 0) {
+                    close();
+                    return false;
+                }
+                remaining--;
+                key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                uid = in.readLong();
+                return true;
+            } catch (IOException e) {
+                Panic.panic(e);
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+}
@@ -5,31 +5,58 @@ import backend.dm.dataItem.DataItem;
 import backend.tm.TMImplement;
 import backend.util.Parser;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * 二叉树由一个个 Node 组成，每个 Node 都存储在一条 DataItem 中
  * <p>
  * Node结构如下：
- * [LeafFlag][KeyNumber][SiblingUid]
- * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * [Flags][KeyNumber][SiblingUid][PrefixLength][HeapStart][HighKeyOffset]
+ * [Prefix][Offset0][Offset1]...[OffsetN]
+ * ...空闲空间...
+ * [EntryN]...[Entry1][Entry0][HighKey]
  * <p>
- * 其中 LeafFlag 标记了该节点是否是个叶子节点；
- * KeyNumber 为该节点中 key 的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
- * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ * key 是变长的字节串，按逐字节无符号比较（memcmp）排序，key 相同时再按 uid 排序，每个索引项 (key, uid) 在树中都是唯一的。
+ * Flags 标记了该节点是否是个叶子节点；KeyNumber 为该节点中索引项的个数；SiblingUid 是其兄弟节点存储在 DM 中的 UID。
+ * 节点中所有 key 的公共前缀只存储一次（Prefix），索引项中只存储去掉前缀之后的部分（Suffix）。
+ * 索引项从节点的末尾向前存放，中间没有空隙，HeapStart 是最前面一个索引项的位置；
+ * OffsetN 为第 N 个索引项的位置，按 (key, uid) 从小到大排列，可以二分查找。
+ * 叶子节点的索引项为 [Uid][SuffixLength][Suffix]；
+ * 内部节点的索引项为 [Son][Uid][SuffixLength][Suffix]，(key, uid) 是子节点 Son 的上界（不含），
+ * 最后一个索引项的上界就是节点本身的上界，每一层最右边的节点为正无穷，SuffixLength 为 INFINITY。
+ * 叶子节点的上界完整地存放在节点的最后：[Uid][KeyLength][Key]，HighKeyOffset 为它的位置，正无穷时为 0。
+ * 节点中的索引项都小于节点的上界，不小于上界的在兄弟节点中。
  */
 
 
 public class Node {
-    static final int IS_LEAF_OFFSET = 0;
-    static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1;
+    static final int FLAGS_OFFSET = 0;
+    static final int NO_KEYS_OFFSET = FLAGS_OFFSET + 1;
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2;
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
-
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+    static final int PREFIX_LENGTH_OFFSET = SIBLING_OFFSET + 8;
+    static final int HEAP_START_OFFSET = PREFIX_LENGTH_OFFSET + 2;
+    static final int HIGH_KEY_OFFSET = HEAP_START_OFFSET + 2;
+    static final int NODE_HEADER_SIZE = HIGH_KEY_OFFSET + 2;
+
+    static final byte FLAG_LEAF = 1;
+    static final byte FLAG_FORMAT = 2;
+    // 旧格式的节点没有 FLAG_FORMAT，头部只有 [LeafFlag][KeyNumber][SiblingUid]，之后是固定的 [Son][Key]，key 为 8 个字节的整数
+    static final int LEGACY_HEADER_SIZE = SIBLING_OFFSET + 8;
+
+    // 索引项中 Suffix 之前的部分
+    static final int LEAF_ENTRY_SIZE = 8 + 2;
+    static final int INTERNAL_ENTRY_SIZE = 8 + 8 + 2;
+    static final int INFINITY = 0xFFFF;
+
+    static final int NODE_SIZE = 2048;
+    // 叶子节点为上界预留的空间，上界在分裂和合并时改变，改变之后也一定放得下
+    static final int HIGH_KEY_RESERVED = LEAF_ENTRY_SIZE + BPlusTree.MAX_KEY_LENGTH;
+    // 节点使用的字节数少于 MIN_BYTES 时视为不足，删除之后需要合并或重新分配
+    static final int MIN_BYTES = NODE_SIZE / 4;
+    // 节点最多能容纳的索引项个数：key 都在公共前缀中时，叶子节点的每个索引项只占 Offset、Uid 和 SuffixLength
+    static final int MAX_ENTRIES = (NODE_SIZE - NODE_HEADER_SIZE) / (2 + LEAF_ENTRY_SIZE);
+    static final int OPTIMISTIC_RETRIES = 8;
 
     BPlusTree tree;
     DataItem dataItem;
@@ -37,161 +64,490 @@ public class Node {
     long uid;
 
     //    于是生成一个根节点的数据可以写成如下
-    static byte[] newRootRaw(long left, long right, long key) {
+    //    该根节点的初始两个子节点为 left 和 right, left 的上界为 (key, uid)
+    static byte[] newRootRaw(long left, long right, byte[] key, long uid) {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-
-        setRawIsLeaf(raw, false);
-        setRawNoKeys(raw, 2);
-        setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
-
+        Entries e = new Entries(2);
+        e.add(key, uid, left);
+        e.add(null, 0, right);
+        encode(raw, false, 0, e, 0, e.n, null, 0);
         return raw.raw;
     }
 
-    //    该根节点的初始两个子节点为 left 和 right, 初始键值为 key
     static byte[] newNilRootRaw() {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        encode(raw, true, 0, new Entries(0), 0, 0, null, 0);
+        return raw.raw;
+    }
 
-        setRawIsLeaf(raw, true);
-        setRawNoKeys(raw, 0);
-        setRawSibling(raw, 0);
+    /*
+    修改节点时，插入和删除直接在节点中完成；公共前缀改变、分裂、合并和重新分配时，
+    先把节点中的索引项解码为完整的 (key, uid)，修改之后再重新编码，同时重新计算公共前缀。
+    叶子节点中 sons 和 uids 相同
+     */
+    static class Entries {
+        byte[][] keys;
+        long[] uids;
+        long[] sons;
+        int n;
+
+        Entries(int capacity) {
+            keys = new byte[Math.max(capacity, 4)][];
+            uids = new long[keys.length];
+            sons = new long[keys.length];
+        }
 
-        return raw.raw;
+        void add(byte[] key, long uid, long son) {
+            insert(n, key, uid, son);
+        }
+
+        void insert(int kth, byte[] key, long uid, long son) {
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, n * 2);
+                uids = Arrays.copyOf(uids, n * 2);
+                sons = Arrays.copyOf(sons, n * 2);
+            }
+            System.arraycopy(keys, kth, keys, kth + 1, n - kth);
+            System.arraycopy(uids, kth, uids, kth + 1, n - kth);
+            System.arraycopy(sons, kth, sons, kth + 1, n - kth);
+            keys[kth] = key;
+            uids[kth] = uid;
+            sons[kth] = son;
+            n++;
+        }
+
+        // 把按从大到小加入的索引项倒过来
+        Entries reversed() {
+            Entries e = new Entries(n);
+            for (int i = n - 1; i >= 0; i--) {
+                e.add(keys[i], uids[i], sons[i]);
+            }
+            return e;
+        }
+    }
+
+    static Entries decode(SubArray raw) {
+        int noKeys = getRawNoKeys(raw);
+        Entries e = new Entries(noKeys + 1);
+        for (int i = 0; i < noKeys; i++) {
+            e.add(getRawKthKey(raw, i), getRawKthUid(raw, i), getRawKthSon(raw, i));
+        }
+        return e;
     }
 
     /*
-    Node 类有两个方法，用于辅助 B+ 树做插入和搜索操作，分别是 searchNext 方法和 leafSearchRange 方法。
-    searchNext 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
+    把 e 中 [from, to) 的索引项编码到 raw 中，isLeaf 时 (highKey, highUid) 为节点的上界，highKey 为 null 表示正无穷。
+    调用方保证编码之后放得下（见 encodedSize()）
      */
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
+    static void encode(SubArray raw, boolean isLeaf, long sibling, Entries e, int from, int to, byte[] highKey, long highUid) {
+        int p = prefixLength(e, from, to);
+        raw.raw[raw.start + FLAGS_OFFSET] = isLeaf ? FLAG_FORMAT | FLAG_LEAF : FLAG_FORMAT;
+        setRawNoKeys(raw, to - from);
+        setRawSibling(raw, sibling);
+        setRawShort(raw, PREFIX_LENGTH_OFFSET, p);
+        int end = NODE_SIZE;
+        int highOffset = 0;
+        if (isLeaf && highKey != null) {
+            end -= LEAF_ENTRY_SIZE + highKey.length;
+            Parser.writeLong(raw.raw, raw.start + end, highUid);
+            setRawShort(raw, end + 8, highKey.length);
+            System.arraycopy(highKey, 0, raw.raw, raw.start + end + LEAF_ENTRY_SIZE, highKey.length);
+            highOffset = end;
+        }
+        setRawShort(raw, HIGH_KEY_OFFSET, highOffset);
+        if (p > 0) {
+            System.arraycopy(e.keys[from], 0, raw.raw, raw.start + NODE_HEADER_SIZE, p);
+        }
+        for (int i = from; i < to; i++) {
+            end -= entrySize(isLeaf, e.keys[i], p);
+            writeEntry(raw, end, isLeaf, e.sons[i], e.uids[i], e.keys[i], p);
+            setRawShort(raw, NODE_HEADER_SIZE + p + 2 * (i - from), end);
+        }
+        setRawShort(raw, HEAP_START_OFFSET, end);
+    }
+
+    private static void writeEntry(SubArray raw, int offset, boolean isLeaf, long son, long uid, byte[] key, int p) {
+        int o = raw.start + offset;
+        Parser.writeLong(raw.raw, o, son);
+        o += 8;
+        if (!isLeaf) {
+            Parser.writeLong(raw.raw, o, uid);
+            o += 8;
+        }
+        if (key == null) {
+            Parser.writeShort(raw.raw, o, (short) INFINITY);
+            return;
+        }
+        Parser.writeShort(raw.raw, o, (short) (key.length - p));
+        System.arraycopy(key, p, raw.raw, o + 2, key.length - p);
+    }
+
+    private static int entrySize(boolean isLeaf, byte[] key, int p) {
+        return (isLeaf ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE) + (key == null ? 0 : key.length - p);
+    }
+
+    // [from, to) 中有限的 key 的公共前缀长度。key 是有序的，只需要比较第一个和最后一个
+    static int prefixLength(Entries e, int from, int to) {
+        int last = to - 1;
+        while (last >= from && e.keys[last] == null) {
+            last--;
+        }
+        return last < from ? 0 : commonPrefix(e.keys[from], e.keys[last]);
+    }
+
+    static int commonPrefix(byte[] a, byte[] b) {
+        int m = Arrays.mismatch(a, b);
+        return m < 0 ? a.length : m;
+    }
+
+    // [from, to) 中的索引项编码之后占用的字节数，不含叶子节点的上界
+    static int encodedSize(boolean isLeaf, Entries e, int from, int to) {
+        int p = prefixLength(e, from, to);
+        int size = NODE_HEADER_SIZE + p;
+        for (int i = from; i < to; i++) {
+            size += 2 + entrySize(isLeaf, e.keys[i], p);
+        }
+        return size;
+    }
+
+    // 节点中索引项最多能占用的字节数，叶子节点去掉为上界预留的空间
+    static int capacity(boolean isLeaf) {
+        return isLeaf ? NODE_SIZE - HIGH_KEY_RESERVED : NODE_SIZE;
+    }
+
+    /*
+    选择分裂的位置 m，使 [from, m) 和 [m, to) 各自编码之后较大的一个尽量小，两边分别计算公共前缀。
+    插入之前的索引项放得下，新的 key 落在它们中间时和它们有同样的公共前缀，平均分开两边都放得下；
+    新的 key 不以公共前缀开头时只会落在两端，这时在它旁边分开，两边也都放得下
+     */
+    static int splitPoint(boolean isLeaf, Entries e, int from, int to) {
+        int fixed = isLeaf ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE;
+        // 不压缩前缀时的字节数和有限的 key 的个数，前缀和
+        int[] full = new int[to - from + 1];
+        int[] finite = new int[to - from + 1];
+        for (int i = from; i < to; i++) {
+            byte[] key = e.keys[i];
+            full[i - from + 1] = full[i - from] + 2 + fixed + (key == null ? 0 : key.length);
+            finite[i - from + 1] = finite[i - from] + (key == null ? 0 : 1);
+        }
+        int best = from + (to - from) / 2, bestSize = Integer.MAX_VALUE;
+        for (int m = from + 1; m < to; m++) {
+            int pl = prefixLength(e, from, m), pr = prefixLength(e, m, to);
+            int sl = NODE_HEADER_SIZE + pl + full[m - from] - finite[m - from] * pl;
+            int sr = NODE_HEADER_SIZE + pr + full[to - from] - full[m - from] - (finite[to - from] - finite[m - from]) * pr;
+            int size = Math.max(sl, sr);
+            if (size < bestSize) {
+                best = m;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    /*
+    Node 类有两个方法，用于辅助 B+ 树做插入和搜索操作，分别是 searchNext 方法和 leafScan 方法。
+    searchNext 寻找对应 (key, uid) 所在子节点的 UID, 如果不在本节点的范围内, 则返回兄弟节点的 UID
+
+    这两个方法不加读锁，而是乐观地读取：先记下 DataItem 的修改计数，读完之后检查期间节点没有被修改，被修改过就重新读取，
+    查找不会阻塞在修改同一个节点的插入上，也不会和其他的查找争用读锁。读取期间的数据可能是不一致的，
+    key 的个数先限制在节点的容量之内，偏移和长度不一致时可能越界，异常和不一致的结果一样会在检查时被丢弃。
+    节点一直在被修改时，重试 OPTIMISTIC_RETRIES 次之后加读锁读取。
+     */
+    public SearchNextRes searchNext(byte[] key, long uid) {
+        return optimisticRead(() -> {
             SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+            int noKeys = readNoKeys();
+            int kth = upperBound(raw, noKeys, key, uid);
+            if (kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth);
+                res.siblingUid = 0;
+                return res;
             }
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
             return res;
-
-        } finally {
-            dataItem.rUnLock();
-        }
+        });
     }
 
     /*
-    leafSearchRange 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，
-    这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
-
+    leafScan 方法在叶子节点中查找 [(leftKey, leftUid), (rightKey, rightUid)] 范围内的索引项，UID 依次写入 uids 中从 n 开始的位置，
+    调用方保证数组从 n 开始还能容纳 MAX_ENTRIES 个。rightKey 为 null 表示没有上界。
+    返回写入之后的个数、写入的第一个和最后一个索引项、兄弟节点的 UID，
+    以及节点中是否有小于范围的索引项、兄弟节点中是否不再有范围内的索引项，供游标判断是否需要继续读取左右的节点。
      */
-    class LeafSearchRangeRes {
-        List<Long> uids;
+    class LeafScanRes {
+        int n;
         long siblingUid;
+        boolean below, beyond;
+        byte[] firstKey, lastKey;
+        long firstUid, lastUid;
     }
 
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
+    public LeafScanRes leafScan(byte[] leftKey, long leftUid, byte[] rightKey, long rightUid, long[] uids, int n) {
+        return optimisticRead(() -> {
+            int noKeys = readNoKeys();
+            int kth = lowerBound(raw, noKeys, leftKey, leftUid);
+            LeafScanRes res = new LeafScanRes();
+            res.below = kth > 0;
+            res.n = n;
+            int first = kth;
             while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
+                if (compareKth(raw, kth, rightKey, rightUid) < 0) {
+                    res.beyond = true;
                     break;
                 }
+                uids[res.n++] = getRawKthUid(raw, kth);
                 kth++;
             }
-            List<Long> uids = new ArrayList<>();
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
+            if (kth > first) {
+                res.firstKey = getRawKthKey(raw, first);
+                res.firstUid = uids[n];
+                res.lastKey = getRawKthKey(raw, kth - 1);
+                res.lastUid = uids[res.n - 1];
+            }
+            // 兄弟节点中的索引项都不小于本节点的上界
+            res.beyond |= compareHigh(raw, rightKey, rightUid) < 0;
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        });
+    }
+
+    /*
+    findSon 方法在内部节点中查找子节点 son 的位置，没有找到时 index 为 -1。
+    同时返回它前一个子节点、最后一个子节点和兄弟节点的 UID，供逆序遍历的游标寻找左边相邻的节点
+     */
+    class FindSonRes {
+        int index;
+        long prevSon, lastSon, siblingUid;
+    }
+
+    public FindSonRes findSon(long son) {
+        return optimisticRead(() -> {
+            int noKeys = readNoKeys();
+            FindSonRes res = new FindSonRes();
+            res.index = -1;
+            for (int i = 0; i < noKeys; i++) {
+                if (getRawKthSon(raw, i) == son) {
+                    res.index = i;
+                    res.prevSon = i > 0 ? getRawKthSon(raw, i - 1) : 0;
                     break;
                 }
             }
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
+            res.lastSon = noKeys > 0 ? getRawKthSon(raw, noKeys - 1) : 0;
+            res.siblingUid = getRawSibling(raw);
             return res;
+        });
+    }
+
+    private <T> T optimisticRead(Supplier<T> reader) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long stamp = dataItem.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    T res = reader.get();
+                    if (dataItem.validate(stamp)) {
+                        return res;
+                    }
+                } catch (RuntimeException e) {
+                    // 读到的是修改到一半的节点时丢弃，否则是真正的错误
+                    if (dataItem.validate(stamp)) {
+                        throw e;
+                    }
+                }
+            }
+            Thread.yield();
+        }
+        dataItem.rLock();
+        try {
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        if (isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 1;
-        } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte) 0;
-        }
+    // 乐观读取时使用，key 的个数限制在节点的容量之内
+    private int readNoKeys() {
+        return Math.min(getRawNoKeys(raw), MAX_ENTRIES);
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return (raw.raw[raw.start + FLAGS_OFFSET] & FLAG_LEAF) != 0;
+    }
+
+    static boolean getRawIfLegacy(SubArray raw) {
+        return (raw.raw[raw.start + FLAGS_OFFSET] & FLAG_FORMAT) == 0;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        setRawShort(raw, NO_KEYS_OFFSET, noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return getRawShort(raw, NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Parser.writeLong(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.readLong(raw.raw, raw.start + SIBLING_OFFSET);
+    }
+
+    private static void setRawShort(SubArray raw, int offset, int value) {
+        Parser.writeShort(raw.raw, raw.start + offset, (short) value);
+    }
+
+    private static int getRawShort(SubArray raw, int offset) {
+        return Parser.readShort(raw.raw, raw.start + offset) & 0xFFFF;
+    }
+
+    static int getRawPrefixLength(SubArray raw) {
+        return getRawShort(raw, PREFIX_LENGTH_OFFSET);
     }
 
-    static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    static int getRawKthOffset(SubArray raw, int kth) {
+        return getRawShort(raw, NODE_HEADER_SIZE + getRawPrefixLength(raw) + 2 * kth);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.readLong(raw.raw, raw.start + getRawKthOffset(raw, kth));
+    }
+
+    static void setRawKthSon(SubArray raw, int kth, long son) {
+        Parser.writeLong(raw.raw, raw.start + getRawKthOffset(raw, kth), son);
+    }
+
+    // 叶子节点中就是索引项的 UID，内部节点中是分隔键的 uid
+    static long getRawKthUid(SubArray raw, int kth) {
+        int offset = raw.start + getRawKthOffset(raw, kth);
+        return Parser.readLong(raw.raw, getRawIfLeaf(raw) ? offset : offset + 8);
+    }
+
+    // 完整的 key，正无穷时返回 null
+    static byte[] getRawKthKey(SubArray raw, int kth) {
+        int fixed = getRawIfLeaf(raw) ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE;
+        int offset = getRawKthOffset(raw, kth);
+        int len = getRawShort(raw, offset + fixed - 2);
+        if (len == INFINITY) {
+            return null;
+        }
+        int p = getRawPrefixLength(raw);
+        byte[] key = new byte[p + len];
+        System.arraycopy(raw.raw, raw.start + NODE_HEADER_SIZE, key, 0, p);
+        System.arraycopy(raw.raw, raw.start + offset + fixed, key, p, len);
+        return key;
+    }
+
+    static long getLegacyKthSon(SubArray raw, int kth) {
+        return Parser.readLong(raw.raw, raw.start + LEGACY_HEADER_SIZE + kth * (8 * 2));
+    }
+
+    // 叶子节点的上界，正无穷时返回 null
+    static byte[] getRawHighKey(SubArray raw) {
+        int offset = getRawShort(raw, HIGH_KEY_OFFSET);
+        if (offset == 0) {
+            return null;
+        }
+        int len = getRawShort(raw, offset + 8);
+        return Arrays.copyOfRange(raw.raw, raw.start + offset + LEAF_ENTRY_SIZE, raw.start + offset + LEAF_ENTRY_SIZE + len);
+    }
+
+    static long getRawHighUid(SubArray raw) {
+        int offset = getRawShort(raw, HIGH_KEY_OFFSET);
+        return offset == 0 ? 0 : Parser.readLong(raw.raw, raw.start + offset);
+    }
+
+    // 节点使用的字节数，不含叶子节点的上界
+    static int getRawSize(SubArray raw) {
+        int high = getRawShort(raw, HIGH_KEY_OFFSET);
+        return NODE_HEADER_SIZE + getRawPrefixLength(raw) + 2 * getRawNoKeys(raw)
+                + (high == 0 ? NODE_SIZE : high) - getRawShort(raw, HEAP_START_OFFSET);
+    }
+
+    /*
+    比较 key 和前缀为 raw 中 [prefix, prefix + prefixLen)、之后为 [suffix, suffix + suffixLen) 的 key，
+    返回值的正负和 Arrays.compareUnsigned() 相同
+     */
+    static int compareKey(byte[] key, byte[] raw, int prefix, int prefixLen, int suffix, int suffixLen) {
+        int m = Math.min(key.length, prefixLen);
+        int c = Arrays.compareUnsigned(key, 0, m, raw, prefix, prefix + m);
+        if (c != 0) {
+            return c;
+        }
+        if (key.length < prefixLen) {
+            return -1;
+        }
+        return Arrays.compareUnsigned(key, prefixLen, key.length, raw, suffix, suffix + suffixLen);
     }
 
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    /*
+    (key, uid) 和第 kth 个索引项比较，前者较小时返回负数。key 为 null 表示正无穷；
+    正无穷的分隔键大于一切，包括正无穷，这样按正无穷查找时会进入每一层最右边的子节点
+     */
+    static int compareKth(SubArray raw, int kth, byte[] key, long uid) {
+        boolean isLeaf = getRawIfLeaf(raw);
+        int fixed = isLeaf ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE;
+        int offset = raw.start + getRawKthOffset(raw, kth);
+        int len = Parser.readShort(raw.raw, offset + fixed - 2) & 0xFFFF;
+        if (len == INFINITY) {
+            return -1;
+        }
+        if (key == null) {
+            return 1;
+        }
+        int c = compareKey(key, raw.raw, raw.start + NODE_HEADER_SIZE, getRawPrefixLength(raw), offset + fixed, len);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(uid, Parser.readLong(raw.raw, isLeaf ? offset : offset + 8));
     }
 
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    // (key, uid) 和叶子节点的上界比较，规则和 compareKth() 相同
+    static int compareHigh(SubArray raw, byte[] key, long uid) {
+        int offset = getRawShort(raw, HIGH_KEY_OFFSET);
+        if (offset == 0) {
+            return -1;
+        }
+        if (key == null) {
+            return 1;
+        }
+        int len = getRawShort(raw, offset + 8);
+        int c = compareKey(key, raw.raw, raw.start + offset + LEAF_ENTRY_SIZE, len, 0, 0);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(uid, Parser.readLong(raw.raw, raw.start + offset));
     }
 
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+    /*
+    节点中的索引项按 (key, uid) 从小到大排列，可以二分查找。
+    lowerBound 返回第一个不小于 (key, uid) 的位置，upperBound 返回第一个大于 (key, uid) 的位置，都不存在时返回 noKeys
+     */
+    static int lowerBound(SubArray raw, int noKeys, byte[] key, long uid) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKth(raw, mid, key, uid) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
+    static int upperBound(SubArray raw, int noKeys, byte[] key, long uid) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKth(raw, mid, key, uid) >= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
+        return lo;
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -209,10 +565,49 @@ public class Node {
         dataItem.release();
     }
 
+    // 节点创建之后不会再改变是否是叶子节点，不需要加锁
     public boolean isLeaf() {
+        return getRawIfLeaf(raw);
+    }
+
+    public boolean isLegacy() {
+        return getRawIfLegacy(raw);
+    }
+
+    public int getNoKeys() {
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return getRawNoKeys(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getSibling() {
+        dataItem.rLock();
+        try {
+            return getRawSibling(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getKthSon(int kth) {
+        dataItem.rLock();
+        try {
+            return getRawKthSon(raw, kth);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 和 searchNext 相同，返回 (key, uid) 所在子节点的位置，需要去兄弟节点查找时返回 -1
+    public int childIndex(byte[] key, long uid) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = upperBound(raw, noKeys, key, uid);
+            return kth < noKeys ? kth : -1;
         } finally {
             dataItem.rUnLock();
         }
@@ -223,35 +618,43 @@ public class Node {
         long siblingUid;
     }
 
+    // 分裂时 newSon 为右边的新节点，(newKey, newUid) 为本节点新的上界，也就是新节点在父节点中的下界
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon, newUid;
+        byte[] newKey;
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    /*
+    叶子节点中插入索引项 (key, uid)，son 没有意义；
+    内部节点中插入子节点 left 分裂出的新节点 son，(key, uid) 为 left 新的上界，新节点接管 left 原来的上界
+     */
+    public InsertAndSplitRes insertAndSplit(long son, byte[] key, long uid, long left) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
-            if (!success) {
+            int kth = insertPosition(key, uid, left);
+            if (kth < 0) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
             }
-            if (needSplit()) {
-                try {
-                    SplitRes r = split();
-                    res.newSon = r.newSon;
-                    res.newKey = r.newKey;
-                    return res;
-                } catch (Exception e) {
-                    err = e;
-                    throw e;
+            success = true;
+            boolean isLeaf = getRawIfLeaf(raw);
+            if (insertInPlace(kth, isLeaf ? uid : left, key, uid)) {
+                if (!isLeaf) {
+                    setRawKthSon(raw, kth + 1, son);
                 }
-            } else {
                 return res;
             }
+            try {
+                rebuild(kth, son, key, uid, left, res);
+                return res;
+            } catch (Exception e) {
+                err = e;
+                throw e;
+            }
         } finally {
             if (err == null && success) {
                 dataItem.after(TMImplement.SUPER_XID);
@@ -261,57 +664,241 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    /*
+    返回插入的位置，应该插入到兄弟节点时返回 -1。
+    叶子节点中不小于上界的 (key, uid) 属于兄弟节点；内部节点中 left 的索引项就是插入的位置，
+    left 已经被其他插入分裂过时，它的上界只会更小，所以从第一个不小于 (key, uid) 的位置开始向后找
+     */
+    private int insertPosition(byte[] key, long uid, long left) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
-            } else {
-                break;
+        if (getRawIfLeaf(raw)) {
+            if (compareHigh(raw, key, uid) >= 0) {
+                return -1;
             }
+            return lowerBound(raw, noKeys, key, uid);
+        }
+        int i = lowerBound(raw, noKeys, key, uid);
+        while (i < noKeys && getRawKthSon(raw, i) != left) {
+            i++;
         }
-        if (kth == noKeys && getRawSibling(raw) != 0) return false;
+        return i < noKeys ? i : -1;
+    }
 
-        if (getRawIfLeaf(raw)) {
-            shiftRawKth(raw, kth);
-            setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
-            setRawNoKeys(raw, noKeys + 1);
-        } else {
-            long kk = getRawKthKey(raw, kth);
-            setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth + 1);
-            setRawKthKey(raw, kk, kth + 1);
-            setRawKthSon(raw, uid, kth + 1);
-            setRawNoKeys(raw, noKeys + 1);
+    // 在第 kth 个位置直接插入索引项，key 不以公共前缀开头或者空间不够时返回 false，节点不变
+    private boolean insertInPlace(int kth, long son, byte[] key, long uid) {
+        boolean isLeaf = getRawIfLeaf(raw);
+        int p = getRawPrefixLength(raw);
+        int prefix = raw.start + NODE_HEADER_SIZE;
+        if (key.length < p || Arrays.mismatch(key, 0, p, raw.raw, prefix, prefix + p) >= 0) {
+            return false;
+        }
+        int len = entrySize(isLeaf, key, p);
+        if (getRawSize(raw) + 2 + len > capacity(isLeaf)) {
+            return false;
         }
+        int noKeys = getRawNoKeys(raw);
+        int offset = getRawShort(raw, HEAP_START_OFFSET) - len;
+        writeEntry(raw, offset, isLeaf, son, uid, key, p);
+        int slot = prefix + p + 2 * kth;
+        System.arraycopy(raw.raw, slot, raw.raw, slot + 2, 2 * (noKeys - kth));
+        setRawShort(raw, NODE_HEADER_SIZE + p + 2 * kth, offset);
+        setRawShort(raw, HEAP_START_OFFSET, offset);
+        setRawNoKeys(raw, noKeys + 1);
         return true;
     }
 
-    private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+    // 删除第 kth 个索引项，把位置在它前面的索引项向后移动，填上空出的位置
+    private void removeInPlace(int kth) {
+        boolean isLeaf = getRawIfLeaf(raw);
+        int p = getRawPrefixLength(raw);
+        int noKeys = getRawNoKeys(raw);
+        int offset = getRawKthOffset(raw, kth);
+        int fixed = isLeaf ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE;
+        int suffixLen = getRawShort(raw, offset + fixed - 2);
+        int len = fixed + (suffixLen == INFINITY ? 0 : suffixLen);
+        int heapStart = getRawShort(raw, HEAP_START_OFFSET);
+        System.arraycopy(raw.raw, raw.start + heapStart, raw.raw, raw.start + heapStart + len, offset - heapStart);
+        int slots = NODE_HEADER_SIZE + p;
+        System.arraycopy(raw.raw, raw.start + slots + 2 * (kth + 1), raw.raw, raw.start + slots + 2 * kth, 2 * (noKeys - kth - 1));
+        for (int i = 0; i < noKeys - 1; i++) {
+            int o = getRawShort(raw, slots + 2 * i);
+            if (o < offset) {
+                setRawShort(raw, slots + 2 * i, o + len);
+            }
+        }
+        setRawShort(raw, HEAP_START_OFFSET, heapStart + len);
+        setRawNoKeys(raw, noKeys - 1);
     }
 
-    class SplitRes {
-        long newSon, newKey;
-    }
+    /*
+    不能直接插入时，解码之后插入并重新编码；放不下时分裂：右半部分写入新节点，接管原来的兄弟节点和上界，
+    左半部分留在本节点，兄弟指针指向新节点。叶子节点的新上界是新节点的第一个索引项，内部节点是左半部分的最后一个分隔键
+     */
+    private void rebuild(int kth, long son, byte[] key, long uid, long left, InsertAndSplitRes res) throws Exception {
+        boolean isLeaf = getRawIfLeaf(raw);
+        Entries e = decode(raw);
+        if (isLeaf) {
+            e.insert(kth, key, uid, uid);
+        } else {
+            e.insert(kth, key, uid, left);
+            e.sons[kth + 1] = son;
+        }
+        byte[] highKey = isLeaf ? getRawHighKey(raw) : null;
+        long highUid = isLeaf ? getRawHighUid(raw) : 0;
+        long sibling = getRawSibling(raw);
+        if (encodedSize(isLeaf, e, 0, e.n) <= capacity(isLeaf)) {
+            encode(raw, isLeaf, sibling, e, 0, e.n, highKey, highUid);
+            return;
+        }
 
-    private SplitRes split() throws Exception {
+        int m = splitPoint(isLeaf, e, 0, e.n);
         SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
-        setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
-        setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TMImplement.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
-        setRawSibling(raw, son);
+        encode(nodeRaw, isLeaf, sibling, e, m, e.n, highKey, highUid);
+        long newSon = tree.dm.insert(TMImplement.SUPER_XID, nodeRaw.raw);
+        int h = isLeaf ? m : m - 1;
+        encode(raw, isLeaf, newSon, e, 0, m, e.keys[h], e.uids[h]);
+
+        res.newSon = newSon;
+        res.newKey = e.keys[h];
+        res.newUid = e.uids[h];
+    }
+
+    /*
+    leafDelete 在叶子节点中删除索引项 (key, uid)。不小于上界的索引项在兄弟节点中，此时返回兄弟节点的 UID，继续在兄弟节点中查找。
+     */
+    class DeleteRes {
+        boolean found;
+        boolean underflow;
+        long siblingUid;
+    }
 
-        SplitRes res = new SplitRes();
-        res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
-        return res;
+    public DeleteRes leafDelete(byte[] key, long uid) {
+        DeleteRes res = new DeleteRes();
+        dataItem.before();
+        try {
+            if (compareHigh(raw, key, uid) >= 0) {
+                res.siblingUid = getRawSibling(raw);
+                return res;
+            }
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key, uid);
+            if (kth < noKeys && compareKth(raw, kth, key, uid) == 0) {
+                removeInPlace(kth);
+                res.found = true;
+                res.underflow = getRawSize(raw) < MIN_BYTES;
+            }
+            return res;
+        } finally {
+            if (res.found) {
+                dataItem.after(TMImplement.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /*
+    rebalanceKth 在父节点中调整第 kth 个子节点：子节点不足 MIN_BYTES 时，和同一个父节点下相邻的子节点 L、R 合并，
+    两者合起来装不下时在两者之间平均分配。返回调整之后本节点是否不足 MIN_BYTES，由上一层继续调整。
+    只在 B+ 树的结构锁（写锁）内调用，此时没有其他查找和插入。
+
+    合并和重新分配需要修改父节点和两个子节点，各自记录日志。修改的顺序保证每一步之后的中间状态都能通过兄弟指针查找到所有的 key：
+    合并时先让父节点中 L 接管 R 的范围，再把 R 的索引项追加到 L 并让 L 的兄弟指针跳过 R，最后释放 R；
+    从 R 移到 L 时先修改父节点中的分隔键，再追加到 L，最后从 R 中删除；从 L 移到 R 时先追加到 R，再从 L 中删除，最后修改分隔键。
+    和分裂一样，L 的上界就是父节点中的分隔键。
+     */
+    public boolean rebalanceKth(int kth) throws Exception {
+        int noKeys = getRawNoKeys(raw);
+        if (noKeys < 2) {
+            return getRawSize(raw) < MIN_BYTES;
+        }
+        int left = kth + 1 < noKeys ? kth : kth - 1;
+        Node l = loadNode(tree, getRawKthSon(raw, left));
+        Node r = null;
+        try {
+            r = loadNode(tree, getRawKthSon(raw, left + 1));
+            Node child = left == kth ? l : r;
+            if (getRawSize(child.raw) >= MIN_BYTES || getRawSibling(l.raw) != r.uid) {
+                return false;
+            }
+            boolean isLeaf = getRawIfLeaf(l.raw);
+            Entries e = decode(l.raw);
+            int nl = e.n;
+            Entries er = decode(r.raw);
+            for (int i = 0; i < er.n; i++) {
+                e.add(er.keys[i], er.uids[i], er.sons[i]);
+            }
+            if (encodedSize(isLeaf, e, 0, e.n) <= capacity(isLeaf)) {
+                merge(left, l, r, e);
+            } else {
+                redistribute(left, l, r, e, nl);
+            }
+        } finally {
+            l.release();
+            if (r != null) {
+                r.release();
+            }
+        }
+        return getRawSize(raw) < MIN_BYTES;
+    }
+
+    private void merge(int left, Node l, Node r, Entries e) throws Exception {
+        // R 的索引项改为指向 L，再删除 L 原来的索引项，L 的上界变为 R 的上界
+        dataItem.before();
+        setRawKthSon(raw, left + 1, l.uid);
+        removeInPlace(left);
+        dataItem.after(TMImplement.SUPER_XID);
+
+        boolean isLeaf = getRawIfLeaf(l.raw);
+        l.dataItem.before();
+        encode(l.raw, isLeaf, getRawSibling(r.raw), e, 0, e.n, getRawHighKey(r.raw), getRawHighUid(r.raw));
+        l.dataItem.after(TMImplement.SUPER_XID);
+
+        tree.freer.free(r.uid);
+    }
+
+    // 变长的分隔键改变之后父节点可能放不下，这时不调整，子节点暂时不足 MIN_BYTES 不影响正确性
+    private void redistribute(int left, Node l, Node r, Entries e, int nl) {
+        boolean isLeaf = getRawIfLeaf(l.raw);
+        int m = splitPoint(isLeaf, e, 0, e.n);
+        if (m == nl) {
+            return;
+        }
+        int h = isLeaf ? m : m - 1;
+        Entries pe = decode(raw);
+        pe.keys[left] = e.keys[h];
+        pe.uids[left] = e.uids[h];
+        if (encodedSize(false, pe, 0, pe.n) > capacity(false)) {
+            return;
+        }
+        long parentSibling = getRawSibling(raw);
+        byte[] rHighKey = getRawHighKey(r.raw);
+        long rHighUid = getRawHighUid(r.raw), rSibling = getRawSibling(r.raw);
+        if (m > nl) {
+            dataItem.before();
+            encode(raw, false, parentSibling, pe, 0, pe.n, null, 0);
+            dataItem.after(TMImplement.SUPER_XID);
+
+            l.dataItem.before();
+            encode(l.raw, isLeaf, r.uid, e, 0, m, e.keys[h], e.uids[h]);
+            l.dataItem.after(TMImplement.SUPER_XID);
+
+            r.dataItem.before();
+            encode(r.raw, isLeaf, rSibling, e, m, e.n, rHighKey, rHighUid);
+            r.dataItem.after(TMImplement.SUPER_XID);
+        } else {
+            r.dataItem.before();
+            encode(r.raw, isLeaf, rSibling, e, m, e.n, rHighKey, rHighUid);
+            r.dataItem.after(TMImplement.SUPER_XID);
+
+            l.dataItem.before();
+            encode(l.raw, isLeaf, r.uid, e, 0, m, e.keys[h], e.uids[h]);
+            l.dataItem.after(TMImplement.SUPER_XID);
+
+            dataItem.before();
+            encode(raw, false, parentSibling, pe, 0, pe.n, null, 0);
+            dataItem.after(TMImplement.SUPER_XID);
+        }
     }
 
     @Override
@@ -321,8 +908,13 @@ public class Node {
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        if (getRawIfLeaf(raw)) {
+            sb.append("high: ").append(Arrays.toString(getRawHighKey(raw))).append("\n");
+        }
         for (int i = 0; i < KeyNumber; i++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            sb.append("son: ").append(getRawKthSon(raw, i))
+                    .append(", key: ").append(Arrays.toString(getRawKthKey(raw, i)))
+                    .append(", uid: ").append(getRawKthUid(raw, i)).append("\n");
         }
         return sb.toString();
     }
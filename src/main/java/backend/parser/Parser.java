@@ -291,7 +291,10 @@ public class Parser {
         return drop;
     }
 
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if ("index".equals(tokenizer.peek())) {
+            return parseCreateIndex(tokenizer);
+        }
         if (!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -367,6 +370,35 @@ public class Parser {
         return create;
     }
 
+    // create index <字段名> on <表名>
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        tokenizer.pop();
+        CreateIndex createIndex = new CreateIndex();
+        String field = tokenizer.peek();
+        if (!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.fieldName = field;
+        tokenizer.pop();
+
+        if (!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String table = tokenizer.peek();
+        if (!isName(table)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.tableName = table;
+        tokenizer.pop();
+
+        if (!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return createIndex;
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
                 "string".equals(tp));
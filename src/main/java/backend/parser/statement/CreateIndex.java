@@ -0,0 +1,6 @@
+package backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String fieldName;
+}
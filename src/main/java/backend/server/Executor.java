@@ -74,6 +74,8 @@ public class Executor {
                 res = tbm.show(xid);
             } else if (Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create) stat);
+            } else if (CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(xid, (CreateIndex) stat);
             } else if (Select.class.isInstance(stat)) {
                 res = tbm.read(xid, (Select) stat);
             } else if (Insert.class.isInstance(stat)) {
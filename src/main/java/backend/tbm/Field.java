@@ -5,10 +5,14 @@ import backend.util.ParseStringRes;
 import backend.util.Parser;
 import com.google.common.primitives.Bytes;
 import backend.im.BPlusTree;
+import backend.im.Cursor;
+import backend.im.ExternalSort;
 import backend.tm.TMImplement;
 import backend.util.Panic;
 import common.Error;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -17,6 +21,7 @@ import java.util.List;
  * 二进制格式为：
  * [FieldName][TypeName][IndexUid]
  * 如果field无索引，IndexUid为0
+ * 之前的版本在最后还有一个字节，表示 string 字段在索引中的 key 的格式，读取时忽略；这样的索引在加载表时重新建立（见 Table.upgradeIndexes()）
  */
 
 public class Field {
@@ -61,7 +66,7 @@ public class Field {
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
         if (index != 0) {
             try {
-                bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+                bt = loadTree(tb, index);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -74,7 +79,7 @@ public class Field {
         Field f = new Field(tb, fieldName, fieldType, 0);
         if (indexed) {
             long index = BPlusTree.create(((TableManagerImpl) tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+            BPlusTree bt = loadTree(tb, index);
             f.index = index;
             f.bt = bt;
         }
@@ -89,6 +94,38 @@ public class Field {
         this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
     }
 
+    /*
+    给已有的字段加上索引：更新字段记录，指向批量建立好的 B+ 树。字段记录在建立索引的事务中更新，事务撤销时由 clearIndex() 恢复内存中的字段。
+    旧格式的字段记录不能组成版本链，更新之后 UID 会改变，而表中记录的是原来的 UID，所以不能在这样的字段上建立索引
+     */
+    void setIndex(long xid, long index) throws Exception {
+        byte[] nameRaw = Parser.string2Byte(fieldName);
+        byte[] typeRaw = Parser.string2Byte(fieldType);
+        byte[] indexRaw = Parser.long2Byte(index);
+        long newUid = ((TableManagerImpl) tb.tbm).vm.update(xid, uid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        if (newUid != uid) {
+            throw Error.IndexBuildException;
+        }
+        this.bt = loadTree(tb, index);
+        this.index = index;
+    }
+
+    // 撤销 setIndex() 在内存中的修改，返回原来的 B+ 树
+    BPlusTree clearIndex() {
+        BPlusTree t = bt;
+        this.bt = null;
+        this.index = 0;
+        return t;
+    }
+
+    // 加载索引的 B+ 树，释放的节点交给 TableManagerImpl.freeNode()
+    private static BPlusTree loadTree(Table tb, long index) throws Exception {
+        TableManagerImpl tbm = (TableManagerImpl) tb.tbm;
+        BPlusTree bt = BPlusTree.load(index, tbm.dm);
+        bt.setNodeFreer(tbm::freeNode);
+        return bt;
+    }
+
     private static void typeCheck(String fieldType) throws Exception {
         if (!"int32".equals(fieldType) && !"int64".equals(fieldType) && !"string".equals(fieldType)) {
             throw Error.InvalidFieldException;
@@ -100,12 +137,41 @@ public class Field {
     }
 
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        bt.insert(value2Key(key), uid);
     }
 
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    public void remove(Object key, long uid) throws Exception {
+        bt.delete(value2Key(key), uid);
+    }
+
+    public List<Long> search(FieldCalRes res) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        Cursor cursor = scan(res, false);
+        while (cursor.next()) {
+            uids.add(cursor.uid());
+        }
+        return uids;
+    }
+
+    public Cursor scan(FieldCalRes res, boolean reverse) {
+        return bt.scan(res.left, res.leftUid, res.right, res.rightUid, reverse);
+    }
+
+    // 遍历索引中所有的记录
+    public Cursor scanAll() {
+        return bt.scan(null, null, false);
+    }
+
+    boolean hasLegacyIndex() {
+        return bt != null && bt.isLegacy();
+    }
+
+    void forEachLegacyUid(BPlusTree.UidVisitor visitor) throws Exception {
+        bt.forEachLegacyUid(visitor);
+    }
+
+    void upgradeIndex(ExternalSort sorted, double fillFactor) throws Exception {
+        bt.upgrade(sorted, fillFactor);
     }
 
     public Object string2Value(String str) {
@@ -120,20 +186,24 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
-        long uid = 0;
+    // 字段的值在索引中的 key，key 的顺序和值的顺序一致。string 超过 MAX_KEY_LENGTH 个字节时截断，截断之后不同的值可能得到相同的 key
+    public byte[] value2Key(Object v) {
+        byte[] key = null;
         switch (fieldType) {
-            case "string":
-                uid = Parser.str2Uid((String) key);
-                break;
             case "int32":
-                int uint = (int) key;
-                return (long) uint;
+                key = Parser.int2Key((int) v);
+                break;
             case "int64":
-                uid = (long) key;
+                key = Parser.long2Key((long) v);
+                break;
+            case "string":
+                key = Parser.str2Key((String) v);
+                if (key.length > BPlusTree.MAX_KEY_LENGTH) {
+                    key = Arrays.copyOf(key, BPlusTree.MAX_KEY_LENGTH);
+                }
                 break;
         }
-        return uid;
+        return key;
     }
 
     public byte[] value2Raw(Object v) {
@@ -204,29 +274,62 @@ public class Field {
                 .toString();
     }
 
+    /*
+    计算单个条件在索引上的范围。索引项按 (key, uid) 排序，UID 都在 (0, Long.MAX_VALUE) 之间，
+    (key, Long.MIN_VALUE) 在 key 的所有索引项之前，(key, Long.MAX_VALUE) 在它们之后，用来包含或者排除 key 本身。
+    key 和值一一对应时范围是精确的；只有 string 的值达到 MAX_KEY_LENGTH 个字节时，截断之后的 key 可能对应多个值，
+    此时范围包含这个 key 的所有索引项，由调用方按 satisfies() 重新检查
+     */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        Object v = string2Value(exp.value);
+        byte[] key = value2Key(v);
         FieldCalRes res = new FieldCalRes();
+        res.left = BPlusTree.MIN_KEY;
+        res.leftUid = Long.MIN_VALUE;
+        res.right = null;
+        res.rightUid = Long.MAX_VALUE;
+        res.recheck = "string".equals(fieldType) && key.length == BPlusTree.MAX_KEY_LENGTH;
         switch (exp.compareOp) {
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if (res.right > 0) {
-                    res.right--;
-                }
+                res.right = key;
+                res.rightUid = res.recheck ? Long.MAX_VALUE : Long.MIN_VALUE;
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = key;
+                res.right = key;
                 break;
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = key;
+                res.leftUid = res.recheck ? Long.MIN_VALUE : Long.MAX_VALUE;
                 break;
         }
         return res;
     }
+
+    // 字段的值 v 是否满足条件，string 按 UTF-8 编码逐字节比较，和 key 的顺序一致
+    public boolean satisfies(Object v, SingleExpression exp) {
+        Object value = string2Value(exp.value);
+        int c;
+        switch (fieldType) {
+            case "int32":
+                c = Integer.compare((int) v, (int) value);
+                break;
+            case "int64":
+                c = Long.compare((long) v, (long) value);
+                break;
+            default:
+                c = Arrays.compareUnsigned(((String) v).getBytes(StandardCharsets.UTF_8),
+                        ((String) value).getBytes(StandardCharsets.UTF_8));
+                break;
+        }
+        switch (exp.compareOp) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
 }
@@ -1,6 +1,11 @@
 package backend.tbm;
 
+// 条件在索引上的范围 [(left, leftUid), (right, rightUid)]，两端都包含，right 为 null 表示没有上界
 public class FieldCalRes {
-    public long left;
-    public long right;
+    public byte[] left;
+    public long leftUid;
+    public byte[] right;
+    public long rightUid;
+    // 范围中可能有不满足条件的记录，需要逐条检查
+    public boolean recheck;
 }
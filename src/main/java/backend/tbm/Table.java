@@ -1,15 +1,21 @@
 package backend.tbm;
 
+import backend.im.BPlusTree;
+import backend.im.Cursor;
+import backend.im.ExternalSort;
 import backend.util.ParseStringRes;
 import backend.util.Parser;
 import com.google.common.primitives.Bytes;
 import backend.parser.statement.*;
 import backend.tm.TMImplement;
 import backend.util.Panic;
+import backend.vm.Vacuum;
 import backend.tbm.Field.ParseValueRes;
 import common.Error;
 
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Table 维护了表结构
@@ -26,6 +32,11 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    // 建立索引时持有写锁，此时不能修改表中的记录和索引；其他操作持有读锁
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 批量建立索引时节点的填充率，为之后的插入留出空间
+    private static final double INDEX_FILL_FACTOR = 0.9;
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -36,10 +47,20 @@ public class Table {
         }
         assert raw != null;
         Table tb = new Table(tbm, uid);
-        return tb.parseSelf(raw);
+        tb.parseSelf(raw);
+        try {
+            tb.upgradeIndexes();
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return tb;
     }
 
     public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
+        // 查询和建立索引都要从某个有索引的字段找到记录，没有索引的表中的记录不能被找到
+        if (Collections.disjoint(Arrays.asList(create.fieldName), Arrays.asList(create.index))) {
+            throw Error.TableNoIndexException;
+        }
         Table tb = new Table(tbm, create.tableName, nextUid);
         for (int i = 0; i < create.fieldName.length; i++) {
             String fieldName = create.fieldName[i];
@@ -96,71 +117,270 @@ public class Table {
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
-        int count = 0;
-        for (Long uid : uids) {
-            if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
-                count++;
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            ScanRes scan = parseWhere(delete.where);
+            for (int i = 0; i < scan.cursors.length; i++) {
+                Cursor cursor = scan.cursors[i];
+                while (cursor.next()) {
+                    if (scan.recheck) {
+                        byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, cursor.uid());
+                        if (raw == null || !scan.matches(i, parseEntry(raw))) continue;
+                    }
+                    if (((TableManagerImpl) tbm).vm.delete(xid, cursor.uid())) {
+                        count++;
+                    }
+                }
             }
+            return count;
+        } finally {
+            lock.readLock().unlock();
         }
-        return count;
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if (f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
+        lock.readLock().lock();
+        try {
+            ScanRes scan = parseWhere(update.where);
+            Field fd = null;
+            for (Field f : fields) {
+                if (f.fieldName.equals(update.fieldName)) {
+                    fd = f;
+                    break;
+                }
             }
-        }
-        if (fd == null) {
-            throw Error.FieldNotFoundException;
-        }
-        Object value = fd.string2Value(update.value);
-        int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
+            if (fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            Object value = fd.string2Value(update.value);
+            // 更新的字段没有索引时，新版本接在原来的版本链上，索引仍然指向链头，不需要修改；
+            // 更新的字段有索引时，原来的键仍然指向原来的链头，只能删除原来的记录、插入新的记录并更新所有索引
+            boolean inChain = !fd.isIndexed();
+            // 游标边遍历边读取索引，新插入的记录可能出现在还没遍历到的位置，需要跳过，否则会被再次更新；
+            // OR 的两个范围重叠时同一条记录会被两个游标找到，新版本接在链上时链头不变，已经更新过的链头同样跳过
+            Set<Long> handled = new HashSet<>();
+            int count = 0;
+            for (int i = 0; i < scan.cursors.length; i++) {
+                Cursor cursor = scan.cursors[i];
+                while (cursor.next()) {
+                    long uid = cursor.uid();
+                    if (handled.contains(uid)) continue;
+                    byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+                    if (raw == null) continue;
+
+                    Map<String, Object> entry = parseEntry(raw);
+                    if (!scan.matches(i, entry)) continue;
+                    entry.put(fd.fieldName, value);
+                    raw = entry2Raw(entry);
+                    long uuid;
+                    if (inChain) {
+                        uuid = ((TableManagerImpl) tbm).vm.update(xid, uid, raw);
+                        if (uuid == 0) continue;
+                    } else {
+                        ((TableManagerImpl) tbm).vm.delete(xid, uid);
+                        uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+                    }
 
-            ((TableManagerImpl) tbm).vm.delete(xid, uid);
+                    count++;
 
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+                    handled.add(uid);
+                    if (uuid == uid) {
+                        continue;
+                    }
+                    handled.add(uuid);
+                    for (Field field : fields) {
+                        if (field.isIndexed()) {
+                            field.insert(entry.get(field.fieldName), uuid);
+                        }
+                    }
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            count++;
+    public String read(long xid, Select read) throws Exception {
+        lock.readLock().lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            ScanRes scan = parseWhere(read.where);
+            for (int i = 0; i < scan.cursors.length; i++) {
+                Cursor cursor = scan.cursors[i];
+                while (cursor.next()) {
+                    byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, cursor.uid());
+                    if (raw == null) continue;
+                    Map<String, Object> entry = parseEntry(raw);
+                    if (!scan.matches(i, entry)) continue;
+                    sb.append(printEntry(entry)).append("\n");
+                }
+            }
+            return sb.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
+    public void insert(long xid, Insert insert) throws Exception {
+        lock.readLock().lock();
+        try {
+            Map<String, Object> entry = string2Entry(insert.values);
+            byte[] raw = entry2Raw(entry);
+            long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
             for (Field field : fields) {
                 if (field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+                    field.insert(entry.get(field.fieldName), uid);
                 }
             }
+        } finally {
+            lock.readLock().unlock();
         }
-        return count;
     }
 
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+    /*
+    扫描第一个有索引的字段找出已死的记录，从所有索引中删除它们的索引项，再交给 Vacuum 清理记录。
+    被扫描的索引最后删除：中途崩溃时记录仍然能在下一次清理中被找到。
+     */
+    void vacuumIndexes(Vacuum vacuum, long horizon) throws Exception {
+        lock.readLock().lock();
+        try {
+            Field scan = null;
+            for (Field field : fields) {
+                if (field.isIndexed()) {
+                    scan = field;
+                    break;
+                }
+            }
+            if (scan == null) {
+                return;
+            }
+            Cursor cursor = scan.scanAll();
+            while (cursor.next()) {
+                long uid = cursor.uid();
+                byte[] raw = vacuum.deadRow(uid, horizon);
+                if (raw == null) {
+                    continue;
+                }
+                Map<String, Object> entry = parseEntry(raw);
+                Field sc = scan;
+                vacuum.freeRow(uid, () -> {
+                    for (Field field : fields) {
+                        if (field.isIndexed() && field != sc) {
+                            field.remove(entry.get(field.fieldName), uid);
+                        }
+                    }
+                    sc.remove(entry.get(sc.fieldName), uid);
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        return sb.toString();
     }
 
-    public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if (field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+    /*
+    给已有的字段建立索引：扫描第一个有索引的字段得到所有记录，(key, uid) 经过外部排序之后批量建立 B+ 树，再更新字段记录。
+    索引项指向链头，版本链中可能被看到的各个版本在这个字段上必须相同，否则按索引查到的记录可能和条件不符。
+    以前更新没有索引的字段时，新版本接在原来的链上，这样的链在旧版本被 Vacuum 清理之前不能建立索引，此时放弃，稍后再试。
+    以前的版本允许建立没有索引的表，这样的表中的记录不能被任何查询找到，建立的索引是空的。
+    建立之后其他事务插入的记录也会加入新的索引；事务撤销时 TableManagerImpl 调用 dropIndex() 恢复字段
+     */
+    void createIndex(long xid, String fieldName) throws Exception {
+        lock.writeLock().lock();
+        try {
+            Field fd = null, scan = null;
+            for (Field field : fields) {
+                if (field.fieldName.equals(fieldName)) {
+                    fd = field;
+                }
+                if (scan == null && field.isIndexed()) {
+                    scan = field;
+                }
+            }
+            if (fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            if (fd.isIndexed()) {
+                throw Error.FieldIndexedException;
+            }
+            ExternalSort sorted = new ExternalSort();
+            try {
+                Cursor cursor = scan == null ? null : scan.scanAll();
+                while (cursor != null && cursor.next()) {
+                    long uid = cursor.uid();
+                    List<byte[]> versions = ((TableManagerImpl) tbm).vm.liveVersions(uid);
+                    if (versions.isEmpty()) {
+                        continue;
+                    }
+                    byte[] key = fd.value2Key(parseEntry(versions.get(0)).get(fd.fieldName));
+                    for (int i = 1; i < versions.size(); i++) {
+                        if (!Arrays.equals(fd.value2Key(parseEntry(versions.get(i)).get(fd.fieldName)), key)) {
+                            throw Error.IndexBuildException;
+                        }
+                    }
+                    sorted.add(key, uid);
+                }
+                sorted.finish();
+                long index = BPlusTree.bulkLoad(((TableManagerImpl) tbm).dm, sorted, INDEX_FILL_FACTOR);
+                try {
+                    fd.setIndex(xid, index);
+                } catch (Exception e) {
+                    BPlusTree.load(index, ((TableManagerImpl) tbm).dm).drop();
+                    throw e;
+                }
+            } finally {
+                sorted.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 撤销没有提交的 createIndex()：字段记录的修改已经随事务撤销，这里恢复内存中的字段并释放建立的 B+ 树
+    void dropIndex(String fieldName) throws Exception {
+        lock.writeLock().lock();
+        try {
+            for (Field field : fields) {
+                if (field.fieldName.equals(fieldName) && field.isIndexed()) {
+                    field.clearIndex().drop();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+    之前版本的索引中 key 是 8 个字节的整数，string 字段只保留了哈希值或者前 8 个字节，不能直接使用。
+    加载表时按旧索引中的 UID 读出记录，用仍可能被看到的各个版本重新计算 key，批量建立新的索引替换旧的索引。
+    旧索引中同一条记录的各个版本可能有不同的 key（更新有索引的字段以前会接在版本链上），这里为每个不同的 key 各保留一个索引项
+     */
+    private void upgradeIndexes() throws Exception {
+        for (Field fd : fields) {
+            if (!fd.hasLegacyIndex()) {
+                continue;
+            }
+            ExternalSort sorted = new ExternalSort();
+            try {
+                fd.forEachLegacyUid(uid -> {
+                    List<byte[]> keys = new ArrayList<>();
+                    for (byte[] raw : ((TableManagerImpl) tbm).vm.liveVersions(uid)) {
+                        byte[] key = fd.value2Key(parseEntry(raw).get(fd.fieldName));
+                        boolean seen = false;
+                        for (byte[] k : keys) {
+                            seen |= Arrays.equals(k, key);
+                        }
+                        if (!seen) {
+                            keys.add(key);
+                            sorted.add(key, uid);
+                        }
+                    }
+                });
+                sorted.finish();
+                fd.upgradeIndex(sorted, INDEX_FILL_FACTOR);
+            } finally {
+                sorted.close();
             }
         }
     }
@@ -178,9 +398,34 @@ public class Table {
         return entry;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
-        boolean single = false;
+    class ScanRes {
+        // or 连接的两个范围各一个游标
+        Cursor[] cursors;
+        boolean recheck;
+        Field fd;
+        Where where;
+
+        // 第 i 个游标返回的记录是否满足条件，范围精确时不需要检查
+        boolean matches(int i, Map<String, Object> entry) {
+            if (!recheck) {
+                return true;
+            }
+            Object v = entry.get(fd.fieldName);
+            switch (where.logicOp) {
+                case "or":
+                    return fd.satisfies(v, i == 0 ? where.singleExp1 : where.singleExp2);
+                case "and":
+                    return fd.satisfies(v, where.singleExp1) && fd.satisfies(v, where.singleExp2);
+                default:
+                    return fd.satisfies(v, where.singleExp1);
+            }
+        }
+    }
+
+    // 返回 where 条件对应的索引游标，以及范围是否需要逐条检查
+    private ScanRes parseWhere(Where where) throws Exception {
+        FieldCalRes r0 = null, r1 = null;
+        boolean single = false, recheck = false;
         Field fd = null;
         if (where == null) {
             for (Field field : fields) {
@@ -189,8 +434,6 @@ public class Table {
                     break;
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
             single = true;
         } else {
             for (Field field : fields) {
@@ -206,23 +449,29 @@ public class Table {
                 throw Error.FieldNotFoundException;
             }
             CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0;
             r0 = res.r0;
-            l1 = res.l1;
             r1 = res.r1;
             single = res.single;
+            recheck = res.recheck;
         }
-        List<Long> uids = fd.search(l0, r0);
-        if (!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        ScanRes scan = new ScanRes();
+        scan.fd = fd;
+        scan.where = where;
+        scan.recheck = recheck;
+        if (r0 == null) {
+            scan.cursors = new Cursor[]{fd.scanAll()};
+        } else if (single) {
+            scan.cursors = new Cursor[]{fd.scan(r0, false)};
+        } else {
+            scan.cursors = new Cursor[]{fd.scan(r0, false), fd.scan(r1, false)};
         }
-        return uids;
+        return scan;
     }
 
     class CalWhereRes {
-        long l0, r0, l1, r1;
+        FieldCalRes r0, r1;
         boolean single;
+        boolean recheck;
     }
 
     private CalWhereRes calWhere(Field fd, Where where) throws Exception {
@@ -230,29 +479,30 @@ public class Table {
         switch (where.logicOp) {
             case "":
                 res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
+                res.r0 = fd.calExp(where.singleExp1);
+                res.recheck = res.r0.recheck;
                 break;
             case "or":
                 res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
+                res.r0 = fd.calExp(where.singleExp1);
+                res.r1 = fd.calExp(where.singleExp2);
+                res.recheck = res.r0.recheck || res.r1.recheck;
                 break;
             case "and":
                 res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left;
-                res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left;
-                res.r1 = r.right;
-                if (res.l1 > res.l0) res.l0 = res.l1;
-                if (res.r1 < res.r0) res.r0 = res.r1;
+                FieldCalRes r = fd.calExp(where.singleExp1);
+                FieldCalRes r1 = fd.calExp(where.singleExp2);
+                res.recheck = r.recheck || r1.recheck;
+                // 两个范围的交集：下界取较大的，上界取较小的
+                if (BPlusTree.compare(r1.left, r1.leftUid, r.left, r.leftUid) > 0) {
+                    r.left = r1.left;
+                    r.leftUid = r1.leftUid;
+                }
+                if (BPlusTree.compare(r1.right, r1.rightUid, r.right, r.rightUid) < 0) {
+                    r.right = r1.right;
+                    r.rightUid = r1.rightUid;
+                }
+                res.r0 = r;
                 break;
             default:
                 throw Error.InvalidLogOpException;
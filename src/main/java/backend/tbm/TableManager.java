@@ -16,6 +16,8 @@ public interface TableManager {
 
     byte[] create(long xid, Create create) throws Exception;
 
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
+
     byte[] insert(long xid, Insert insert) throws Exception;
 
     byte[] read(long xid, Select select) throws Exception;
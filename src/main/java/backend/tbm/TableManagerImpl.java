@@ -2,7 +2,9 @@ package backend.tbm;
 
 import backend.dm.DataManager;
 import backend.parser.statement.*;
+import backend.util.Panic;
 import backend.util.Parser;
+import backend.vm.Vacuum;
 import backend.vm.VersionManager;
 import common.Error;
 
@@ -13,13 +15,16 @@ import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class TableManagerImpl implements TableManager {
+public class TableManagerImpl implements TableManager, Vacuum.IndexCleaner {
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
+    // 事务中建立的索引，事务撤销时需要恢复字段
+    private Map<Long, List<CreateIndex>> xidIndexCache;
     private Lock lock;
+    private volatile Vacuum vacuum;
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -27,6 +32,7 @@ public class TableManagerImpl implements TableManager {
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
+        this.xidIndexCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
     }
@@ -61,16 +67,45 @@ public class TableManagerImpl implements TableManager {
 
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        // 提交失败说明事务已经被自动撤销，其中建立的索引同样要撤销
+        try {
+            vm.commit(xid);
+        } catch (Exception e) {
+            dropIndexes(xid);
+            throw e;
+        }
+        lock.lock();
+        xidIndexCache.remove(xid);
+        lock.unlock();
         return "commit".getBytes();
     }
 
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        dropIndexes(xid);
         return "abort".getBytes();
     }
 
+    private void dropIndexes(long xid) {
+        lock.lock();
+        List<CreateIndex> created = xidIndexCache.remove(xid);
+        lock.unlock();
+        if (created == null) {
+            return;
+        }
+        for (CreateIndex createIndex : created) {
+            lock.lock();
+            Table table = tableCache.get(createIndex.tableName);
+            lock.unlock();
+            try {
+                table.dropIndex(createIndex.fieldName);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
     @Override
     public byte[] show(long xid) {
         lock.lock();
@@ -112,6 +147,21 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(createIndex.tableName);
+        lock.unlock();
+        if (table == null) {
+            throw Error.TableNotFoundException;
+        }
+        table.createIndex(xid, createIndex.fieldName);
+        lock.lock();
+        xidIndexCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(createIndex);
+        lock.unlock();
+        return ("create index " + createIndex.fieldName).getBytes();
+    }
+
     @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
         lock.lock();
@@ -159,4 +209,35 @@ public class TableManagerImpl implements TableManager {
         return ("delete " + count).getBytes();
     }
 
+
+    // 启用 Vacuum：清理索引中指向已死记录的索引项，索引释放的节点也交给它回收
+    public void attachVacuum(Vacuum vacuum) {
+        this.vacuum = vacuum;
+        vacuum.addIndexCleaner(this);
+    }
+
+    // 释放索引中不再使用的节点，有 Vacuum 时等之前的读者都结束之后再回收空间
+    void freeNode(long uid) throws Exception {
+        Vacuum v = vacuum;
+        if (v != null) {
+            v.free(uid);
+        } else {
+            dm.free(uid);
+        }
+    }
+
+    // 由 Vacuum 调用，清理各个表的索引中指向已死记录的索引项
+    @Override
+    public void clean(Vacuum vacuum, long horizon) throws Exception {
+        List<Table> tables;
+        lock.lock();
+        try {
+            tables = new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+        for (Table tb : tables) {
+            tb.vacuumIndexes(vacuum, horizon);
+        }
+    }
 }
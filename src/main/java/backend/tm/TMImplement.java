@@ -8,6 +8,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,18 +37,56 @@ public class TMImplement implements TransactionManager {
     private long xidCounter;
     private Lock counterLock;
 
+    /*
+    XID 按段预留：XID 文件头中记录的是已经预留的最大 XID，而不是已经分配的最大 XID。
+    预留一段 XID 时先把文件扩展到这一段的末尾（扩展部分全为 0，即 active），再写文件头，只 force 一次；
+    begin() 在预留的范围内分配 XID 时不需要写文件，也不需要 force。
+    崩溃重启后从预留范围之后开始分配，预留范围内没有用到的 XID 在文件中为 active，但不会有任何数据引用它们；
+    正常关闭时文件头改回实际分配的最大 XID，并截掉多余的部分。
+     */
+    static final int XID_RESERVE = 1024;
+    private long reservedEnd;
+
+    /*
+    提交和撤销时写入状态后，由并发的事务共同 force：第一个等待的线程负责 force，
+    在它 force 期间写入状态的线程等待下一次 force，一次 force 让之前写入的所有状态落盘。
+     */
+    private Lock syncLock;
+    private Condition synced;
+    private long writeSeq;
+    private long syncedSeq;
+    private boolean syncing;
+
+    /*
+    事务状态表：XID 文件中所有事务的状态在启动时读入内存，每个事务占 2 位，一个 long 保存 32 个事务的状态。
+    isActive()、isCommitted() 和 isAborted() 只查询状态表，不再读文件；修改状态时先写文件并 force，再修改状态表。
+    状态表分段保存，扩容时只替换保存各段引用的数组，已有的段不会被拷贝，扩容期间对已有段的修改不会丢失。
+    还没有分配的事务状态为 0，即 active，与读取 XID 文件末尾之后的位置结果一致。
+     */
+    private static final int SEGMENT_SHIFT = 12;
+    static final int SEGMENT_LONGS = 1 << SEGMENT_SHIFT;
+    private volatile AtomicLongArray[] status;
+    private Lock growLock;
+
     //    constructor
     TMImplement(RandomAccessFile file, FileChannel fc) {
         this.file = file;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        syncLock = new ReentrantLock();
+        synced = syncLock.newCondition();
+        status = new AtomicLongArray[0];
+        growLock = new ReentrantLock();
         //  对 XID 文件进行校验，以保证这是一个合法的 XID 文件
         checkXIDCounter();
+        loadStatus();
     }
 
     /*
     通过文件头的 8 字节数字反推文件的理论长度，与文件的实际长度做对比
     读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+    预留 XID 时文件长度和文件头在同一次 force 中落盘，崩溃时可能只有其中之一生效，
+    因此允许两者相差不超过一段预留的长度，并将文件长度修正为文件头对应的长度
 
     对于校验没有通过的，会直接通过 panic 方法，强制停机
     在一些基础模块中出现错误都会如此处理，无法恢复的错误只能直接停机。
@@ -63,16 +104,90 @@ public class TMImplement implements TransactionManager {
 
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
         try {
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
         this.xidCounter = Parser.parseLong(buf.array());
+        this.reservedEnd = xidCounter;
         long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
+        if (end < LEN_XID_HEADER_LENGTH || Math.abs(end - fileLen) > XID_RESERVE * XID_FIELD_SIZE) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if (end != fileLen) {
+            try {
+                file.setLength(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 将 XID 文件中所有事务的状态读入状态表
+    private void loadStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = 1;
+        while (xid <= xidCounter) {
+            buf.clear();
+            try {
+                fc.read(buf, getXidPosition(xid));
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            for (int i = 0; i < buf.position() && xid <= xidCounter; i++, xid++) {
+                setStatus(xid, buf.get(i));
+            }
+        }
+    }
+
+    // 查询状态表中事务的状态
+    private byte getStatus(long xid) {
+        long index = xid >>> 5;
+        AtomicLongArray[] segments = status;
+        int seg = (int) (index >>> SEGMENT_SHIFT);
+        if (seg >= segments.length) {
+            return FIELD_TRAN_ACTIVE;
+        }
+        long word = segments[seg].get((int) (index & (SEGMENT_LONGS - 1)));
+        return (byte) ((word >>> ((xid & 31) << 1)) & 3);
+    }
+
+    // 修改状态表中事务的状态，需要时扩容
+    private void setStatus(long xid, byte s) {
+        long index = xid >>> 5;
+        int seg = (int) (index >>> SEGMENT_SHIFT);
+        AtomicLongArray[] segments = status;
+        if (seg >= segments.length) {
+            segments = grow(seg);
+        }
+        AtomicLongArray words = segments[seg];
+        int i = (int) (index & (SEGMENT_LONGS - 1));
+        int shift = (int) ((xid & 31) << 1);
+        while (true) {
+            long word = words.get(i);
+            long updated = (word & ~(3L << shift)) | ((long) s << shift);
+            if (words.compareAndSet(i, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    private AtomicLongArray[] grow(int seg) {
+        growLock.lock();
+        try {
+            AtomicLongArray[] segments = status;
+            if (seg < segments.length) {
+                return segments;
+            }
+            AtomicLongArray[] grown = Arrays.copyOf(segments, seg + 1);
+            for (int i = segments.length; i <= seg; i++) {
+                grown[i] = new AtomicLongArray(SEGMENT_LONGS);
+            }
+            status = grown;
+            return grown;
+        } finally {
+            growLock.unlock();
+        }
     }
 
     //    根据事务XID取得其在XID文件中对应的位置
@@ -85,8 +200,10 @@ public class TMImplement implements TransactionManager {
         counterLock.lock();
         try {
             long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
+            if (xid > reservedEnd) {
+                reserveXID(xid + XID_RESERVE - 1);
+            }
+            xidCounter = xid;
             return xid;
         } finally {
             counterLock.unlock();
@@ -104,37 +221,69 @@ public class TMImplement implements TransactionManager {
     }
 
 
-    //更新xid事务的状态为status
+    //更新xid事务的状态为status，落盘之后才修改状态表，其他事务不会看到尚未持久化的状态
     private void updateXID(long xid, byte status) {
         long offset = getXidPosition(xid);
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
+        long seq;
+        syncLock.lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            try {
+                fc.write(buf, offset);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            seq = ++writeSeq;
+        } finally {
+            syncLock.unlock();
         }
+        syncTo(seq);
+        setStatus(xid, status);
     }
 
-    //将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 等待第 seq 次写入落盘，没有其他线程正在 force 时由当前线程 force
+    private void syncTo(long seq) {
+        syncLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while (syncedSeq < seq) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = writeSeq;
+                syncLock.unlock();
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    syncLock.lock();
+                }
+                syncedSeq = target;
+                syncing = false;
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
         }
+    }
+
+    // 预留 XID 到 end 为止：扩展文件，更新 XID Header，一起 force，调用时持有 counterLock
+    private void reserveXID(long end) {
+        writeHeader(end);
+        reservedEnd = end;
+    }
+
+    // 将文件头改为 counter，文件长度与之对应
+    private void writeHeader(long counter) {
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(counter));
         try {
-            fc.force(false);
+            file.setLength(getXidPosition(counter + 1));
+            fc.write(buf, 0);
+            fc.force(true);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -148,17 +297,9 @@ public class TMImplement implements TransactionManager {
     isActive()、isCommitted() 和 isAborted() 都是检查一个 xid 的状态，可以用一个通用的方法解决
      */
 
-    //    检测XID事务是否处于status状态
+    //    检测XID事务是否处于status状态，只查询内存中的状态表
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return getStatus(xid) == status;
     }
 
     //    排除super
@@ -179,8 +320,14 @@ public class TMImplement implements TransactionManager {
     }
 
 
-    //    close
+    //    close，文件头改回实际分配的最大 XID
     public void close() {
+        counterLock.lock();
+        try {
+            writeHeader(xidCounter);
+        } finally {
+            counterLock.unlock();
+        }
         try {
             fc.close();
             file.close();
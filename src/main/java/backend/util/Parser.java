@@ -2,10 +2,34 @@ package backend.util;
 
 import com.google.common.primitives.Bytes;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class Parser {
+    // 以大端序直接读写数组中的 short 和 long，和下面的方法格式相同，但不需要复制出新的数组
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short readShort(byte[] raw, int offset) {
+        return (short) SHORT.get(raw, offset);
+    }
+
+    public static void writeShort(byte[] raw, int offset, short value) {
+        SHORT.set(raw, offset, value);
+    }
+
+    public static long readLong(byte[] raw, int offset) {
+        return (long) LONG.get(raw, offset);
+    }
+
+    public static void writeLong(byte[] raw, int offset, long value) {
+        LONG.set(raw, offset, value);
+    }
+
     public static byte[] short2Byte(short value) {
         return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
     }
@@ -44,12 +68,19 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
-        long res = 0;
-        for (byte b : key.getBytes()) {
-            res = res * seed + (long) b;
-        }
-        return res;
+    /*
+    索引中的 key 按逐字节无符号比较（memcmp）的顺序排列，下面的方法把字段的值编码为顺序一致的 key。
+    整数按大端序写入并翻转符号位，负数排在正数之前；string 直接使用 UTF-8 编码，逐字节比较就是字符串的顺序
+     */
+    public static byte[] int2Key(int value) {
+        return int2Byte(value ^ Integer.MIN_VALUE);
+    }
+
+    public static byte[] long2Key(long value) {
+        return long2Byte(value ^ Long.MIN_VALUE);
+    }
+
+    public static byte[] str2Key(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
     }
 }
@@ -2,15 +2,18 @@ package backend.vm;
 
 /*
 对于一条记录来说，DB 使用 Entry 类维护了其结构。
-虽然理论上，MVCC 实现了多版本，但是在实现中，VM 并没有提供 Update 操作，对于字段的更新操作由后面的表和字段管理（TBM）实现。
-所以在 VM 的实现中，一条记录只有一个版本。
+一条记录的每个版本存储在一条 Data Item 中，所以 Entry 中保存一个 DataItem 的引用即可。
 
-一条记录存储在一条 Data Item 中，所以 Entry 中保存一个 DataItem 的引用即可
+同一条记录的多个版本组成版本链：第一个版本是链头，它的 UID 就是记录的 UID，索引始终指向链头；
+之后的每个版本用 LINK 指向上一个版本，链头的 LINK 则指向最新的版本（没有其他版本时为 0）。
+读取时从最新的版本开始，沿着 LINK 向旧版本查找，直到回到链头，见 VersionManagerImpl.update()
  */
 
 import com.google.common.primitives.Bytes;
 import backend.common.SubArray;
 import backend.dm.dataItem.DataItem;
+import backend.tm.TMImplement;
+import backend.tm.TransactionManager;
 import backend.util.Parser;
 
 import java.util.Arrays;
@@ -18,14 +21,31 @@ import java.util.Arrays;
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [LINK] [data]
+ * XMIN 和 XMAX 的最高两位是提示位，见 isCommitted()
+ * 旧格式的记录没有 LINK，XMIN 的第三高位（FLAG_LINK）表示记录是否带有 LINK，第四高位（FLAG_VERSION）表示记录不是链头
  */
 
 
 public class Entry {
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN + 8;
+    private static final int OF_LINK = OF_XMAX + 8;
     private static final int OF_DATA = OF_XMAX + 8;
+    private static final int OF_LINK_DATA = OF_LINK + 8;
+
+    /*
+    提示位：XMIN 和 XMAX 字段最高字节的最高两位，分别表示该字段中的事务已经提交、已经撤销。
+    XID 不会达到 2^62，因此这两位原本总是 0，旧的记录不需要转换。
+    第一个向 TM 查询到字段中事务最终状态的读者设置提示位，之后的读者直接从记录中得到结果，不再访问 TM。
+    提示位可以随时从 TM 推导出来，所以设置时不记日志，只把页面标记为脏页；
+    丢失提示位（比如崩溃前页面没有写回，或者恢复时被日志中的旧数据覆盖）只会让读者重新查询 TM。
+     */
+    private static final byte HINT_COMMITTED = (byte) 0x80;
+    private static final byte HINT_ABORTED = 0x40;
+    private static final byte FLAG_LINK = 0x20;
+    private static final byte FLAG_VERSION = 0x10;
+    private static final long XID_MASK = 0x0FFFFFFFFFFFFFFFL;
 
     private long uid;
     private DataItem dataItem;
@@ -41,6 +61,9 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl) vm).dm.read(uid);
+        if (di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -57,9 +80,19 @@ public class Entry {
     DATA 就是这条记录持有的数据
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
+        return wrapVersionRaw(xid, 0, data);
+    }
+
+    // 版本链中的新版本，prev 为上一个版本的 UID，为 0 时是链头
+    public static byte[] wrapVersionRaw(long xid, long prev, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);
+        xmin[0] |= FLAG_LINK;
+        if (prev != 0) {
+            xmin[0] |= FLAG_VERSION;
+        }
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] link = Parser.long2Byte(prev);
+        return Bytes.concat(xmin, xmax, link, data);
     }
 
     // 同样，如果要获取记录中持有的数据，也就需要按照这个结构来解析：
@@ -68,8 +101,9 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start + OF_DATA, data, 0, data.length);
+            int offset = (sa.raw[sa.start + OF_XMIN] & FLAG_LINK) != 0 ? OF_LINK_DATA : OF_DATA;
+            byte[] data = new byte[sa.end - sa.start - offset];
+            System.arraycopy(sa.raw, sa.start + offset, data, 0, data.length);
             return data;
         } finally {
             dataItem.rUnLock();
@@ -92,12 +126,63 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_LINK)) & XID_MASK;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 记录是否带有 LINK，旧格式的记录不能组成版本链
+    public boolean hasLink() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return (sa.raw[sa.start + OF_XMIN] & FLAG_LINK) != 0;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 链头返回最新版本的 UID，其他版本返回上一个版本的 UID；没有 LINK 时返回 0
+    public long getLink() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            if ((sa.raw[sa.start + OF_XMIN] & FLAG_LINK) == 0) {
+                return 0;
+            }
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_LINK, sa.start + OF_LINK_DATA));
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // 是否是已经有其他版本的链头
+    public boolean isChainHead() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            byte flags = sa.raw[sa.start + OF_XMIN];
+            if ((flags & FLAG_LINK) == 0 || (flags & FLAG_VERSION) != 0) {
+                return false;
+            }
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_LINK, sa.start + OF_LINK_DATA)) != 0;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 修改 LINK：链头指向新的最新版本，或者清理时让版本跳过被清理的旧版本。和 setXmax() 一样通过 before() 和 after() 记录日志
+    public void setLink(long xid, long uid) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(uid), 0, sa.raw, sa.start + OF_LINK, 8);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
@@ -106,12 +191,61 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX)) & XID_MASK;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // 创建该版本的事务是否已经提交
+    public boolean isXminCommitted(TransactionManager tm) {
+        return isCommitted(tm, OF_XMIN);
+    }
+
+    // 删除该版本的事务是否已经提交
+    public boolean isXmaxCommitted(TransactionManager tm) {
+        return isCommitted(tm, OF_XMAX);
+    }
+
+    /*
+    先检查提示位，没有提示位时查询 TM，查询到最终状态（提交或撤销）时设置提示位。
+    设置提示位时持有 DataItem 的读锁：修改 XMAX 的 setXmax() 持有写锁，因此提示位不会被设置到新写入的 XID 上；
+    并发设置同一个字段提示位的读者写入的是同一个值。
+     */
+    private boolean isCommitted(TransactionManager tm, int offset) {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            int pos = sa.start + offset;
+            byte hint = sa.raw[pos];
+            if ((hint & HINT_COMMITTED) != 0) {
+                return true;
+            }
+            if ((hint & HINT_ABORTED) != 0) {
+                return false;
+            }
+            long xid = Parser.parseLong(Arrays.copyOfRange(sa.raw, pos, pos + 8)) & XID_MASK;
+            if (tm.isCommitted(xid)) {
+                // XMAX 为 0 表示没有被删除，不设置提示位
+                if (xid != TMImplement.SUPER_XID) {
+                    setHint(sa.raw, pos, HINT_COMMITTED);
+                }
+                return true;
+            }
+            if (tm.isAborted(xid)) {
+                setHint(sa.raw, pos, HINT_ABORTED);
+            }
+            return false;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    private void setHint(byte[] raw, int pos, byte hint) {
+        raw[pos] |= hint;
+        dataItem.page().setDirty(true);
+    }
+
 
 
 }
@@ -7,185 +7,461 @@ package backend.vm;
   检测死锁也就简单了，只需要查看这个图中是否有环即可。
 */
 
+import backend.common.LongMap;
+import backend.util.Panic;
 import common.Error;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 /*
 上一节提到了 2PL 会阻塞事务，直至持有锁的线程释放锁。
 可以将这种等待关系抽象成有向边，例如 Tj 在等待 Ti，就可以表示为 Tj –> Ti。这样，无数有向边就可以形成一个图（不一定是连通图）。
 检测死锁也就简单了，只需要查看这个图中是否有环即可。
 
-DB 使用一个 LockTable 对象，在内存中维护这张图。维护结构如下
+DB 使用一个 LockTable 对象，在内存中维护这张图。
+资源按 UID 的哈希分到若干个分片中，每个分片有自己的锁，记录分片内每个 UID 的持有者和等待队列（先来先得），
+不同分片的加锁和释放互不影响。每个事务对应一个 Txn，记录它持有的 UID、正在等待的 UID，
+等待时线程在 Txn 上 park，获得资源或者放弃等待时被 unpark，不需要为每次等待创建锁。
+只有死锁检测需要跨越分片，沿着等待链逐个查看各个分片。
+
+除了检测死锁（DETECT），还可以用事务的先后（XID 的大小）来预防死锁，此时不需要检测：
+WAIT_DIE：较老的事务可以等待较新的事务，较新的事务请求较老事务持有的资源时直接放弃；
+WOUND_WAIT：较新的事务可以等待较老的事务，较老的事务请求较新事务持有的资源时抢占（wound）持有者，
+被抢占的事务如果正在等待，会立刻放弃等待；刚刚获得资源时，在 add() 返回之前放弃；
+否则通过 onWound 通知 VM 立刻撤销它，撤销后释放资源，不需要等它的下一次操作。
+三种方式下都可以给等待设置超时。
+DETECT 下除了在加入等待边时检测，资源换了持有者之后也会从剩下的等待者出发检测；
+此外等待超过 DETECT_INTERVAL 的事务会定期从自己出发再检测一次，即使没有设置超时也不会因为漏检而永远等待。
  */
 
 public class LockTable {
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
+    public static final int DETECT = 0;
+    public static final int WAIT_DIE = 1;
+    public static final int WOUND_WAIT = 2;
+
+    private static final int SHARD_COUNT = 64;
+    private static final long NO_UID = -1;
+    // DETECT 下等待超过这个时间（纳秒）仍未获得资源时，从自己出发再检测一次死锁
+    private static final long DETECT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    // 等待的状态
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    // 一个事务的加锁状态，除了 wounded 之外都在所属分片的锁内修改
+    private static class Txn {
+        long xid;
+        long[] held = new long[4];  // 已经获得的资源的UID
+        int heldCount;
+        volatile long waitUid = NO_UID; // 正在等待的UID
+        volatile int state;
+        volatile Thread thread;
+        volatile boolean wounded;   // WOUND_WAIT 下被抢占、还没有撤销
+        Exception err;              // 放弃等待的原因
+        Txn next;                   // 等待队列中的下一个事务
+
+        Txn(long xid) {
+            this.xid = xid;
+        }
+
+        void hold(long uid) {
+            if (heldCount == held.length) {
+                held = Arrays.copyOf(held, heldCount * 2);
+            }
+            held[heldCount++] = uid;
+        }
+    }
+
+    // 一个资源的等待队列
+    private static class WaitQueue {
+        Txn head, tail;
+    }
+
+    private static class Shard {
+        Lock lock = new ReentrantLock();
+        LongMap<Txn> holders = new LongMap<>(); // UID被某个事务持有
+        LongMap<WaitQueue> queues = new LongMap<>(); // 正在等待UID的事务
+    }
+
+    private Shard[] shards;
+    private ConcurrentHashMap<Long, Txn> txns;
+    // 死锁检测互斥进行，保证同时形成环的两条等待边中，后检测的一方能看到另一条边
+    private Lock detectLock;
+    private int mode;
+    // WOUND_WAIT 下抢占了一个没有在等待的事务时调用，参数为被抢占的 XID，调用时不持有任何锁
+    private LongConsumer onWound;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
-    }
-
-    // 在每次出现等待的情况时，就尝试向图中增加一条边，并进行死锁检测。如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务
-    // 不需要等待则返回null，否则返回锁对象
-    // 会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+        this(DETECT);
+    }
+
+    public LockTable(int mode) {
+        this(mode, xid -> {
+        });
+    }
+
+    public LockTable(int mode, LongConsumer onWound) {
+        shards = new Shard[SHARD_COUNT];
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+        txns = new ConcurrentHashMap<>();
+        detectLock = new ReentrantLock();
+        this.mode = mode;
+        this.onWound = onWound;
+    }
+
+    // 根据名称选择处理锁等待的方式，用于启动参数
+    public static int parseMode(String name) {
+        if (name == null || "".equals(name) || "detect".equals(name)) {
+            return DETECT;
+        }
+        if ("waitdie".equals(name)) {
+            return WAIT_DIE;
+        }
+        if ("woundwait".equals(name)) {
+            return WOUND_WAIT;
+        }
+        Panic.panic(Error.InvalidDeadlockModeException);
+        return DETECT;
+    }
+
+    private Shard shard(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return shards[(int) (h >>> 58)];
+    }
+
+    /*
+    在每次出现等待的情况时，就尝试向图中增加一条边，并进行死锁检测。如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务
+    不需要等待时直接返回，否则阻塞到获得资源为止；等待时不持有任何锁。
+    会造成死锁（WAIT_DIE 下放弃等待、WOUND_WAIT 下被抢占）时抛出 DeadlockException，
+    timeout 毫秒内没有获得资源时抛出 LockTimeoutException，timeout 为 0 表示一直等待
+     */
+    public void add(long xid, long uid, long timeout) throws Exception {
+        Txn me = txns.computeIfAbsent(xid, Txn::new);
+        Shard s = shard(uid);
+        Txn victim = null;
+        s.lock.lock();
         try {
-            if (isInList(x2u, xid, uid)) {
-                return null;
-            }
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
-                return null;
-            }
-            waitU.put(xid, uid);
-            //putIntoList(wait, xid, uid);
-            putIntoList(wait, uid, xid);
-            if (hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            Txn holder = s.holders.get(uid);
+            if (holder == me) {
+                return;
+            }
+            if (holder == null) {
+                s.holders.put(uid, me);
+                me.hold(uid);
+                return;
+            }
+            if (mode == WAIT_DIE && xid > holder.xid) {
                 throw Error.DeadlockException;
             }
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
-
+            if (mode == WOUND_WAIT && xid < holder.xid && wound(holder) && holder.waitUid == NO_UID) {
+                victim = holder;
+            }
+            me.thread = Thread.currentThread();
+            me.state = WAITING;
+            me.err = null;
+            me.waitUid = uid;
+            enqueue(s, uid, me);
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
-    }
-
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
 
+        if (victim != null) {
+            onWound.accept(victim.xid);
+        }
+        if (mode == DETECT && hasDeadLock(me)) {
+            cancel(me, Error.DeadlockException);
+        }
+        await(me, timeout);
+        if (me.state == CANCELLED) {
+            throw me.err;
+        }
+        // 获得资源的同时被抢占（见 recheckWaiters()），资源已经记在 me 名下，由撤销释放
+        if (me.wounded) {
+            throw Error.DeadlockException;
+        }
+    }
 
-    //调用 add，如果需要等待的话，会返回一个上了锁的 Lock 对象。
-    //调用方在获取到该对象时，需要尝试获取该对象的锁，由此实现阻塞线程的目的
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for (long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if (s != null && s > 0) {
+    private void await(Txn me, long timeout) {
+        long now = System.nanoTime();
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long nextDetect = now + DETECT_INTERVAL;
+        while (me.state == WAITING) {
+            if (me.wounded) {
+                cancel(me, Error.DeadlockException);
+                break;
+            }
+            now = System.nanoTime();
+            if (timeout > 0 && deadline - now <= 0) {
+                cancel(me, Error.LockTimeoutException);
+                break;
+            }
+            if (mode != DETECT) {
+                if (timeout <= 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, deadline - now);
+                }
                 continue;
             }
-            stamp++;
-            if (dfs(xid)) {
-                return true;
+            if (nextDetect - now <= 0) {
+                if (hasDeadLock(me)) {
+                    cancel(me, Error.DeadlockException);
+                    break;
+                }
+                nextDetect = now + DETECT_INTERVAL;
+            }
+            long park = nextDetect - now;
+            if (timeout > 0) {
+                park = Math.min(park, deadline - now);
             }
+            LockSupport.parkNanos(this, park);
         }
-        return false;
     }
 
-    //深搜
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if (stp != null && stp == stamp) {
+    // 不等待地获取资源：资源空闲或者已经持有时返回 true，被其他事务持有时返回 false
+    public boolean tryAdd(long xid, long uid) {
+        Txn me = txns.computeIfAbsent(xid, Txn::new);
+        Shard s = shard(uid);
+        s.lock.lock();
+        try {
+            Txn holder = s.holders.get(uid);
+            if (holder == me) {
+                return true;
+            }
+            if (holder != null) {
+                return false;
+            }
+            s.holders.put(uid, me);
+            me.hold(uid);
             return true;
+        } finally {
+            s.lock.unlock();
         }
-        if (stp != null && stp < stamp) {
+    }
+
+    /*
+    新加入的边只可能形成经过 me 的环，所以只需要从 me 出发检测，不需要遍历整张图。
+    每个事务最多等待一个资源，每个资源只有一个持有者，从 me 出发的等待链是唯一的：
+    沿着链走到一个没有在等待的事务就说明没有环，走回 me 就说明有环。
+    链上的资源可能在不同的分片中，每次只持有一个分片的锁查看持有者。
+     */
+    private boolean hasDeadLock(Txn me) {
+        detectLock.lock();
+        try {
+            Txn x = me;
+            for (int i = 0; i <= txns.size(); i++) {
+                long uid = x.waitUid;
+                if (uid == NO_UID) {
+                    return false;
+                }
+                Shard s = shard(uid);
+                Txn holder;
+                s.lock.lock();
+                try {
+                    holder = x.waitUid == uid ? s.holders.get(uid) : null;
+                } finally {
+                    s.lock.unlock();
+                }
+                if (holder == null) {
+                    return false;
+                }
+                if (holder == me) {
+                    return true;
+                }
+                x = holder;
+            }
+            return false;
+        } finally {
+            detectLock.unlock();
+        }
+    }
+
+    // 抢占 holder：设置标记并唤醒，正在等待的话会自己放弃等待；第一次抢占时返回 true
+    private boolean wound(Txn holder) {
+        if (holder.wounded) {
             return false;
         }
-        xidStamp.put(xid, stamp);
+        holder.wounded = true;
+        Thread t = holder.thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        return true;
+    }
 
-        Long uid = waitU.get(xid);
-        if (uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+    // xid 是否已经被抢占，VM 在每次操作前检查，不需要加锁
+    public boolean isWounded(long xid) {
+        Txn t = txns.get(xid);
+        return t != null && t.wounded;
     }
 
-    //在一个事务 commit 或者 abort 时，就可以释放所有它持有的锁，并将自身从等待图中删除。
-    public void remove(long xid) {
-        lock.lock();
+    // 让 t 放弃等待；与获得资源同时发生时，以先在分片锁内完成的一方为准
+    private void cancel(Txn t, Exception err) {
+        long uid = t.waitUid;
+        if (uid == NO_UID) {
+            return;
+        }
+        Shard s = shard(uid);
+        s.lock.lock();
         try {
-            List<Long> l = x2u.get(xid);
-            if (l != null) {
-                while (l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
-                }
+            if (t.state != WAITING || t.waitUid != uid) {
+                return;
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-
+            dequeue(s, uid, t);
+            t.waitUid = NO_UID;
+            t.err = err;
+            t.state = CANCELLED;
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
+        LockSupport.unpark(t.thread);
     }
 
-    //while 循环释放掉了这个线程所有持有的资源的锁，这些资源可以被等待的线程所获取
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if (l == null) return;
-        assert l.size() > 0;
+    //在一个事务 commit 或者 abort 时，就可以释放所有它持有的锁，并将自身从等待图中删除。
+    public void remove(long xid) {
+        Txn t = txns.remove(xid);
+        if (t == null) {
+            return;
+        }
+        // 事务在等待时被其他线程撤销，唤醒等待的线程
+        cancel(t, Error.DeadlockException);
+        // 换了持有者、仍有事务在等待的资源，在 held 中前移保存
+        int contended = 0;
+        for (int i = 0; i < t.heldCount; i++) {
+            long uid = t.held[i];
+            Shard s = shard(uid);
+            s.lock.lock();
+            try {
+                if (selectNewXID(s, uid)) {
+                    t.held[contended++] = uid;
+                }
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        t.heldCount = 0;
+        if (mode == DETECT) {
+            for (int i = 0; i < contended; i++) {
+                detectAfterGrant(t.held[i]);
+            }
+        }
+    }
 
-        while (l.size() > 0) {
-            long xid = l.remove(0);
-            if (!waitLock.containsKey(xid)) {
-                continue;
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
+    /*
+    资源交给等待队列的队首之后，队列中其余的事务都改为等待新的持有者，等待图中出现了新的边，
+    新的环不一定经过某个刚加入的等待者，所以从这些事务出发重新检测，检测到死锁的事务放弃等待。
+    检测会跨越分片，调用时不能持有分片的锁。
+     */
+    private void detectAfterGrant(long uid) {
+        Shard s = shard(uid);
+        Txn[] waiters = null;
+        int n = 0;
+        s.lock.lock();
+        try {
+            WaitQueue q = s.queues.get(uid);
+            if (q == null) {
+                return;
+            }
+            waiters = new Txn[4];
+            for (Txn w = q.head; w != null; w = w.next) {
+                if (n == waiters.length) {
+                    waiters = Arrays.copyOf(waiters, n * 2);
+                }
+                waiters[n++] = w;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+        for (int i = 0; i < n; i++) {
+            Txn w = waiters[i];
+            if (w.state == WAITING && w.waitUid == uid && hasDeadLock(w)) {
+                cancel(w, Error.DeadlockException);
             }
         }
+    }
+
+    // 从等待队列中选择最先开始等待的事务来占用uid，调用时持有分片的锁；之后仍有事务在等待uid时返回 true
+    private boolean selectNewXID(Shard s, long uid) {
+        s.holders.remove(uid);
+        WaitQueue q = s.queues.get(uid);
+        if (q == null) return false;
 
-        if (l.size() == 0) wait.remove(uid);
+        Txn t = q.head;
+        dequeue(s, uid, t);
+        s.holders.put(uid, t);
+        t.hold(uid);
+        t.waitUid = NO_UID;
+        // 在设置 GRANTED 之前抢占，t 看到自己获得资源时一定也能看到自己被抢占
+        recheckWaiters(s, uid, t);
+        t.state = GRANTED;
+        LockSupport.unpark(t.thread);
+        return s.queues.get(uid) != null;
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                i.remove();
-                break;
-            }
+    // 资源换了持有者之后，剩下的等待者和新的持有者之间同样要满足 WAIT_DIE 或者 WOUND_WAIT 的规则
+    private void recheckWaiters(Shard s, long uid, Txn holder) {
+        WaitQueue q = s.queues.get(uid);
+        if (q == null || mode == DETECT) {
+            return;
         }
-        if (l.size() == 0) {
-            listMap.remove(uid0);
+        for (Txn t = q.head; t != null; ) {
+            Txn next = t.next;
+            if (mode == WAIT_DIE && t.xid > holder.xid) {
+                dequeue(s, uid, t);
+                t.waitUid = NO_UID;
+                t.err = Error.DeadlockException;
+                t.state = CANCELLED;
+                LockSupport.unpark(t.thread);
+            } else if (mode == WOUND_WAIT && t.xid < holder.xid) {
+                wound(holder);
+            }
+            t = next;
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if (!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void enqueue(Shard s, long uid, Txn t) {
+        WaitQueue q = s.queues.get(uid);
+        if (q == null) {
+            q = new WaitQueue();
+            s.queues.put(uid, q);
+        }
+        t.next = null;
+        if (q.tail == null) {
+            q.head = t;
+        } else {
+            q.tail.next = t;
         }
-        listMap.get(uid0).add(0, uid1);
+        q.tail = t;
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                return true;
+    private void dequeue(Shard s, long uid, Txn t) {
+        WaitQueue q = s.queues.get(uid);
+        Txn prev = null;
+        for (Txn cur = q.head; cur != null; prev = cur, cur = cur.next) {
+            if (cur != t) {
+                continue;
+            }
+            if (prev == null) {
+                q.head = cur.next;
+            } else {
+                prev.next = cur.next;
+            }
+            if (q.tail == cur) {
+                q.tail = prev;
             }
+            break;
+        }
+        t.next = null;
+        if (q.head == null) {
+            s.queues.remove(uid);
         }
-        return false;
     }
 }
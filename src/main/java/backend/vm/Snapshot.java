@@ -0,0 +1,48 @@
+package backend.vm;
+
+/*
+可重复读事务的快照：事务开始时仍在进行中的事务。
+快照由两个边界和一个有序的 XID 数组表示：
+xmin 是快照中最小的进行中事务，比它小的事务在快照建立时都已经结束；
+xmax 是快照建立时下一个要分配的 XID，不小于它的事务在快照建立时还没有开始，同样视为进行中；
+active 是 [xmin, xmax) 中进行中的事务，按 XID 排序，判断时二分查找。
+
+快照建立之后，只要没有事务提交，之后开始的事务看到的进行中事务与它相同
+（新开始的事务都不小于 xmax，撤销的事务无论如何都不可见），因此可以共享同一个快照。
+ */
+import java.util.Arrays;
+
+public class Snapshot {
+    private long xmin;
+    private long xmax;
+    private long[] active;
+
+    // xids 为进行中事务的 XID，nextXid 为快照建立时下一个要分配的 XID
+    public static Snapshot newSnapshot(long[] xids, int n, long nextXid) {
+        Snapshot s = new Snapshot();
+        s.active = Arrays.copyOf(xids, n);
+        Arrays.sort(s.active);
+        s.xmax = nextXid;
+        s.xmin = n > 0 ? s.active[0] : nextXid;
+        return s;
+    }
+
+    // xid 在快照建立时是否仍在进行中（或者还没有开始）
+    public boolean isActive(long xid) {
+        if (xid < xmin) {
+            return false;
+        }
+        if (xid >= xmax) {
+            return true;
+        }
+        return Arrays.binarySearch(active, xid) >= 0;
+    }
+
+    public long getXmin() {
+        return xmin;
+    }
+
+    public long getXmax() {
+        return xmax;
+    }
+}
@@ -11,29 +11,32 @@ package backend.vm;
 如果记录的某个版本，XMIN 在 SP(Ti) 中，也应当对 Ti 不可见。
 
 于是，需要提供一个结构，来抽象一个事务，以保存快照数据：
+快照 SP(Ti) 用 Snapshot 表示，没有事务提交时，先后开始的事务共享同一个快照
  */
 
 import backend.tm.TMImplement;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public Snapshot snapshot;
     public Exception err;
     public boolean autoAborted;
+    // 等待锁的超时时间（毫秒），0 表示一直等待
+    public long lockTimeout;
+    // WOUND_WAIT 下事务的每个操作持有 opLock，见 VersionManagerImpl
+    Lock opLock;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, Snapshot snapshot) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.opLock = new ReentrantLock();
         if (level != 0) {
-            t.snapshot = new HashMap<>();
-            for (Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = snapshot;
         }
         return t;
     }
@@ -42,6 +45,6 @@ public class Transaction {
         if (xid == TMImplement.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        return snapshot.isActive(xid);
     }
 }
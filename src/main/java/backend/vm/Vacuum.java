@@ -0,0 +1,403 @@
+package backend.vm;
+
+import backend.tm.TMImplement;
+import backend.util.Panic;
+import common.Error;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Vacuum 是清理旧版本的后台线程。
+
+每一轮按页号遍历所有页面，对页面上有其他版本的链头，找到链上最新的一个 XMIN 已提交、且小于清理界限的版本 K：
+K 对所有活跃事务和之后开始的事务都可见，读取时从最新版本向旧版本查找，最晚在 K 处停下
+（K 被删除时更旧的版本同样不可见），所以 K 之后的旧版本（不包括链头）都不会再被读到。
+清理时把 K 的 LINK 直接指向链头，再把这些旧版本的 DataItem 标记为已清理。
+链头被索引引用，这一步不会清理链头。
+
+整条记录对所有事务都不可见时（最后一个可见的版本被清理界限之前提交的事务删除，或者创建所有版本的事务都已撤销），
+记录在索引中的索引项也不会再有用。VM 不知道记录属于哪张表，由上层登记的 IndexCleaner 在每一轮开始时
+通过 deadRow() 找出这样的记录，调用 freeRow() 在链头的锁内删除它们的索引项，再清理链头和所有版本。
+
+清理期间以一个特殊的 XID 不等待地对链头加锁，链头正在被事务修改时跳过这条链，下一轮再处理。
+
+已清理的 DataItem 不会立刻回收：清理之前开始的读者可能已经读到了指向它们的 LINK。
+页面上有新清理的 DataItem 时记下当时最大的活跃 XID，等所有活跃事务都比它新之后，
+再让 DM 回收页面末尾被清理的 DataItem 所占的空间，之后的插入就可以重新使用这部分空间。
+索引合并之后不再使用的节点也通过 free() 同样处理，乐观读取索引的读者可能还持有它们的 UID。
+重启之后没有旧的读者，上次运行中清理的 DataItem 可以直接回收。
+
+为了不影响前台的事务，每处理 PAGES_PER_ROUND 个页面暂停 ROUND_PAUSE_MILLIS 毫秒，两轮之间间隔 interval 毫秒。
+ */
+public class Vacuum implements Runnable {
+    private static final int PAGES_PER_ROUND = 64;
+    private static final long ROUND_PAUSE_MILLIS = 5;
+    // 清理时对链头加锁使用的 XID，比所有事务都新，WAIT_DIE 下请求它持有的资源的事务会等待而不是放弃
+    private static final long VACUUM_XID = Long.MAX_VALUE;
+
+    // deadRow() 中版本的状态：可能被看到、已被删除、被撤销
+    private static final int LIVE = 0;
+    private static final int DEAD = 1;
+    private static final int ABORTED = 2;
+
+    // 上层登记的索引清理，在每一轮清理页面之前调用
+    public interface IndexCleaner {
+        void clean(Vacuum vacuum, long horizon) throws Exception;
+    }
+
+    // 删除一条已死记录的索引项，见 freeRow()
+    public interface KeyRemover {
+        void remove() throws Exception;
+    }
+
+    private VersionManagerImpl vm;
+    private long interval;
+    private List<IndexCleaner> cleaners;
+
+    // 页号 -> 回收空间之前需要等待结束的最大 XID
+    private Map<Integer, Long> pending;
+    // 保护 pending：索引释放节点在前台线程中进行，登记和释放与检查和回收都在锁内，回收不会越过刚登记的界限
+    private Lock pendingLock;
+
+    private Lock lock;
+    private Condition wakeup;
+    private volatile boolean closed;
+    private Thread thread;
+
+    // 统计信息
+    private AtomicLong passes;          // 完成的轮数
+    private AtomicLong chainsPruned;    // 清理过的版本链数
+    private AtomicLong versionsFreed;   // 清理的版本数
+    private AtomicLong pagesCompacted;  // 回收过空间的页面数
+    private AtomicLong bytesReclaimed;  // 回收的字节数
+    private AtomicLong rowsFreed;       // 从索引中删除并清理的记录数
+
+    public Vacuum(VersionManagerImpl vm, long interval) {
+        this.vm = vm;
+        this.interval = interval;
+        this.pending = new HashMap<>();
+        this.pendingLock = new ReentrantLock();
+        this.cleaners = new CopyOnWriteArrayList<>();
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.passes = new AtomicLong();
+        this.chainsPruned = new AtomicLong();
+        this.versionsFreed = new AtomicLong();
+        this.pagesCompacted = new AtomicLong();
+        this.bytesReclaimed = new AtomicLong();
+        this.rowsFreed = new AtomicLong();
+    }
+
+    public void addIndexCleaner(IndexCleaner cleaner) {
+        cleaners.add(cleaner);
+    }
+
+    public void start() {
+        thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    // 清理中出现的错误都来自下层模块，和前台操作中同样的错误一样无法恢复，直接停机
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                vacuum();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pause(interval);
+        }
+    }
+
+    private void pause(long millis) {
+        lock.lock();
+        try {
+            if (!closed) {
+                wakeup.await(millis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 完整地清理一轮，同一时刻只有一个线程进行
+    public synchronized void vacuum() throws Exception {
+        long horizon = vm.vacuumHorizon();
+        for (IndexCleaner cleaner : cleaners) {
+            cleaner.clean(this, horizon);
+        }
+        int pageNumber = vm.dm.getPageNumber();
+        for (int pgno = 2; pgno <= pageNumber && !closed; pgno++) {
+            reclaim(pgno, horizon);
+            long[] uids = vm.dm.uidsOfPage(pgno);
+            if (uids != null) {
+                for (long uid : uids) {
+                    prune(uid, horizon);
+                }
+            }
+            if (pgno % PAGES_PER_ROUND == 0) {
+                pause(ROUND_PAUSE_MILLIS);
+            }
+        }
+        // 清理之后还没有机会回收的页面，在这里再尝试一次
+        horizon = vm.vacuumHorizon();
+        pendingLock.lock();
+        try {
+            Iterator<Map.Entry<Integer, Long>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> e = it.next();
+                if (e.getValue() < horizon) {
+                    it.remove();
+                    compact(e.getKey());
+                }
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+        passes.incrementAndGet();
+    }
+
+    // 页面上清理过的 DataItem 不会再被读到时，回收它们的空间
+    private void reclaim(int pgno, long horizon) throws Exception {
+        pendingLock.lock();
+        try {
+            Long fence = pending.get(pgno);
+            if (fence != null) {
+                if (fence >= horizon) {
+                    return;
+                }
+                pending.remove(pgno);
+            }
+            compact(pgno);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    private void compact(int pgno) throws Exception {
+        int freed = vm.dm.compact(pgno);
+        if (freed > 0) {
+            pagesCompacted.incrementAndGet();
+            bytesReclaimed.addAndGet(freed);
+        }
+    }
+
+    // 清理 uid 为链头的版本链中不会再被读到的旧版本
+    private void prune(long uid, long horizon) throws Exception {
+        Entry head;
+        try {
+            head = vm.getEntry(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return;
+            }
+            throw e;
+        }
+        try {
+            if (!head.isChainHead() || !vm.lt.tryAdd(VACUUM_XID, uid)) {
+                return;
+            }
+            try {
+                pruneLocked(head, horizon);
+            } finally {
+                vm.lt.remove(VACUUM_XID);
+            }
+        } finally {
+            head.release();
+        }
+    }
+
+    private void pruneLocked(Entry head, long horizon) throws Exception {
+        long headUid = head.getUid();
+        long uid = head.getLink();
+        Entry k = null;
+        while (uid != headUid) {
+            Entry v = vm.getEntry(uid);
+            if (v.getXmin() < horizon && v.isXminCommitted(vm.tm)) {
+                k = v;
+                break;
+            }
+            uid = v.getLink();
+            v.release();
+        }
+        if (k == null) {
+            return;
+        }
+        long prev;
+        try {
+            prev = k.getLink();
+            if (prev == headUid) {
+                return;
+            }
+            k.setLink(TMImplement.SUPER_XID, headUid);
+        } finally {
+            k.release();
+        }
+
+        long fence = vm.maxActiveXid();
+        while (prev != headUid) {
+            Entry v = vm.getEntry(prev);
+            long next;
+            try {
+                next = v.getLink();
+            } finally {
+                v.release();
+            }
+            free(prev, fence);
+            versionsFreed.incrementAndGet();
+            prev = next;
+        }
+        chainsPruned.incrementAndGet();
+    }
+
+    /*
+    uid 为链头的记录对所有事务都不可见时，返回它最后一个版本的数据，用来计算记录在各个索引中的 key；否则返回 null。
+    从最新的版本向旧版本查找：XMIN 不小于清理界限的版本还可能被看到（包括被自动撤销、但还没有结束的事务创建的版本）；
+    遇到第一个 XMIN 已提交的版本时，它被清理界限之前提交的事务删除，记录才是已死的；全部版本都被撤销的记录同样是已死的。
+    已死的记录不会再被修改，之后也不会再变成可见的。
+     */
+    public byte[] deadRow(long uid, long horizon) throws Exception {
+        Entry head;
+        try {
+            head = vm.getEntry(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            long next = head.getLink();
+            while (next != 0 && next != uid) {
+                Entry v = vm.getEntry(next);
+                try {
+                    int state = versionState(v, horizon);
+                    if (state != ABORTED) {
+                        return state == DEAD ? v.data() : null;
+                    }
+                    next = v.getLink();
+                } finally {
+                    v.release();
+                }
+            }
+            int state = versionState(head, horizon);
+            return state == LIVE ? null : head.data();
+        } finally {
+            head.release();
+        }
+    }
+
+    private int versionState(Entry v, long horizon) {
+        long xmin = v.getXmin();
+        if (xmin >= horizon) {
+            return LIVE;
+        }
+        if (v.isXminCommitted(vm.tm)) {
+            long xmax = v.getXmax();
+            return xmax != 0 && xmax < horizon && v.isXmaxCommitted(vm.tm) ? DEAD : LIVE;
+        }
+        return vm.tm.isAborted(xmin) ? ABORTED : LIVE;
+    }
+
+    /*
+    清理 deadRow() 找出的记录：先不等待地对链头加锁，加锁成功之后由 removeKeys 删除记录的全部索引项，再清理链头和所有版本。
+    链头正被事务锁住时什么也不做，索引项保留，返回 false，下一轮再处理；先删除索引项的话，加锁失败时记录就再也找不到了
+     */
+    public boolean freeRow(long uid, KeyRemover removeKeys) throws Exception {
+        Entry head = vm.getEntry(uid);
+        try {
+            if (!vm.lt.tryAdd(VACUUM_XID, uid)) {
+                return false;
+            }
+            try {
+                removeKeys.remove();
+                long fence = vm.maxActiveXid();
+                long next = head.getLink();
+                while (next != 0 && next != uid) {
+                    Entry v = vm.getEntry(next);
+                    try {
+                        next = v.getLink();
+                    } finally {
+                        v.release();
+                    }
+                    free(v.getUid(), fence);
+                    versionsFreed.incrementAndGet();
+                }
+                free(uid, fence);
+                rowsFreed.incrementAndGet();
+                return true;
+            } finally {
+                vm.lt.remove(VACUUM_XID);
+            }
+        } finally {
+            head.release();
+        }
+    }
+
+    private void free(long uid, long fence) throws Exception {
+        pendingLock.lock();
+        try {
+            pending.merge((int) (uid >>> 32), fence, Math::max);
+            vm.dm.free(uid);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // 释放不属于任何记录的 DataItem（比如索引合并之后不再使用的节点），同样等当前的活跃事务都结束之后再回收空间
+    public void free(long uid) throws Exception {
+        free(uid, vm.maxActiveXid());
+    }
+
+    public long getPasses() {
+        return passes.get();
+    }
+
+    public long getChainsPruned() {
+        return chainsPruned.get();
+    }
+
+    public long getVersionsFreed() {
+        return versionsFreed.get();
+    }
+
+    public long getPagesCompacted() {
+        return pagesCompacted.get();
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long getRowsFreed() {
+        return rowsFreed.get();
+    }
+}
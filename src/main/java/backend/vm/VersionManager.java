@@ -8,6 +8,8 @@ VM 层通过 VersionManager 接口，向上层提供功能
 import backend.dm.DataManager;
 import backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
 
@@ -15,6 +17,12 @@ public interface VersionManager {
 
     boolean delete(long xid, long uid) throws Exception;
 
+    // 更新记录，返回更新后记录的 UID，通常与 uid 相同；记录对事务不可见时返回 0
+    long update(long xid, long uid, byte[] data) throws Exception;
+
+    // 返回记录中仍可能被事务看到的各个版本的数据，从新到旧，不做可见性判断，供建立新的索引使用
+    List<byte[]> liveVersions(long uid) throws Exception;
+
     long begin(int level);
 
     void commit(long xid) throws Exception;
@@ -7,8 +7,11 @@ import backend.tm.TransactionManager;
 import backend.util.Panic;
 import common.Error;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,34 +19,121 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    /*
+    活跃事务表，按 XID 排序的并发跳表：read()、insert()、delete()、commit() 和 abort() 查找自己的 Transaction 不需要加锁，
+    最小的活跃 XID 就是表中的第一个 XID（SUPER_XID 除外）。
+
+    lock 只在 begin() 中使用，保证分配 XID、登记到活跃事务表和建立快照三者是原子的：
+    否则一个事务可能已经拿到 XID 但还没有登记，同时建立的快照会把它当作已经结束。
+     */
+    ConcurrentSkipListMap<Long, Transaction> activeTransaction;
+    /*
+    最近建立的快照，在此之后没有事务提交的话，可重复读事务共享这个快照。
+    commitSeq 在事务提交后加一，快照记录建立之前读到的 commitSeq，两者不相等时快照不能再共享。
+     */
+    Snapshot latestSnapshot;
+    long latestSnapshotSeq;
+    AtomicLong commitSeq;
     Lock lock;
     LockTable lt;
+    // 新事务默认的锁等待超时（毫秒），0 表示一直等待
+    long lockTimeout;
+    /*
+    WOUND_WAIT 下被抢占的事务由抢占者所在的线程撤销，与被抢占事务自己的操作互斥：
+    事务的每个操作都持有它的 opLock，抢占者只在 tryLock 成功（事务没有在进行操作）时替它撤销；
+    否则事务在这次操作结束时自己撤销，见 exit()。其他方式下事务只由自己的线程撤销，不需要 opLock
+     */
+    boolean woundWait;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, LockTable.DETECT, 0);
+    }
+
+    // lockMode 为 LockTable 处理锁等待的方式
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, int lockMode, long lockTimeout) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentSkipListMap<>();
+        this.commitSeq = new AtomicLong();
         activeTransaction.put(TMImplement.SUPER_XID, Transaction.newTransaction(TMImplement.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.lt = new LockTable(lockMode, this::abortWounded);
+        this.lockTimeout = lockTimeout;
+        this.woundWait = lockMode == LockTable.WOUND_WAIT;
     }
 
-    //read() 方法读取一个 entry，注意判断下可见性即可
-    @Override
-    public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
+    // 单独设置某个事务的锁等待超时
+    public void setLockTimeout(long xid, long millis) {
+        activeTransaction.get(xid).lockTimeout = millis;
+    }
+
+    // 开始事务 xid 的一次操作
+    private Transaction enter(long xid) {
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        if (woundWait && t != null && xid != TMImplement.SUPER_XID) {
+            t.opLock.lock();
+        }
+        return t;
+    }
+
+    // 结束一次操作，操作期间被抢占的话现在撤销
+    private void exit(Transaction t) {
+        if (!woundWait || t == null || t.xid == TMImplement.SUPER_XID) {
+            return;
+        }
+        t.opLock.unlock();
+        if (t.err == null && lt.isWounded(t.xid)) {
+            abortWounded(t.xid);
+        }
+    }
+
+    // 撤销被抢占的事务 xid，释放它持有的资源；事务正在进行操作时什么也不做
+    void abortWounded(long xid) {
+        Transaction t = activeTransaction.get(xid);
+        if (t == null || !t.opLock.tryLock()) {
+            return;
+        }
+        try {
+            if (t.err == null && activeTransaction.containsKey(xid)) {
+                t.err = Error.ConcurrentUpdateException;
+                internAbort(xid, true);
+                t.autoAborted = true;
+            }
+        } finally {
+            t.opLock.unlock();
+        }
+    }
 
+    // 事务已经出错时抛出错误；在 WOUND_WAIT 下被抢占的事务在这里撤销，释放它持有的资源
+    private void checkErr(Transaction t) throws Exception {
+        if (t.err == null && lt.isWounded(t.xid)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(t.xid, true);
+            t.autoAborted = true;
+        }
         if (t.err != null) {
             throw t.err;
         }
+    }
+
+    //read() 方法读取一个 entry，注意判断下可见性即可：沿着版本链找到对事务可见的版本
+    @Override
+    public byte[] read(long xid, long uid) throws Exception {
+        Transaction t = enter(xid);
+        try {
+            return read(t, uid);
+        } finally {
+            exit(t);
+        }
+    }
 
-        Entry entry = null;
+    private byte[] read(Transaction t, long uid) throws Exception {
+        checkErr(t);
+
+        Entry head = null;
         try {
-            entry = super.get(uid);
+            head = super.get(uid);
         } catch (Exception e) {
             if (e == Error.NullEntryException) {
                 return null;
@@ -52,85 +142,212 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         }
         try {
-            if (Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
+            Entry entry = visibleVersion(t, head);
+            if (entry == null) {
                 return null;
             }
+            try {
+                return entry.data();
+            } finally {
+                entry.release();
+            }
         } finally {
-            entry.release();
+            head.release();
         }
     }
 
-    //insert() 则是将数据包裹成 Entry，无脑交给 DM 插入即可
+    /*
+    沿着版本链从最新的版本向旧版本查找对 t 可见的版本，找不到时返回 null。返回的 Entry 由调用方释放
+    读到的 LINK 可能恰好指向刚被 Vacuum 清理的版本，此时更旧的版本都对 t 不可见，直接检查链头
+     */
+    private Entry visibleVersion(Transaction t, Entry head) throws Exception {
+        long uid = head.getLink();
+        while (uid != 0 && uid != head.getUid()) {
+            Entry v = null;
+            try {
+                v = super.get(uid);
+            } catch (Exception e) {
+                if (e != Error.NullEntryException) {
+                    throw e;
+                }
+                break;
+            }
+            if (Visibility.isVisible(tm, t, v)) {
+                return v;
+            }
+            uid = v.getLink();
+            v.release();
+        }
+        if (Visibility.isVisible(tm, t, head)) {
+            return super.get(head.getUid());
+        }
+        return null;
+    }
+
+    /*
+    沿着版本链收集没有被撤销、也没有被所有事务都看不到的删除所覆盖的版本，判断方法和 Vacuum 清理时相同。
+    记录不存在时返回空的列表
+     */
     @Override
-    public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+    public List<byte[]> liveVersions(long uid) throws Exception {
+        List<byte[]> versions = new ArrayList<>();
+        Entry head;
+        try {
+            head = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return versions;
+            }
+            throw e;
+        }
+        try {
+            long horizon = vacuumHorizon();
+            long next = head.getLink();
+            while (next != 0 && next != uid) {
+                Entry v;
+                try {
+                    v = super.get(next);
+                } catch (Exception e) {
+                    if (e != Error.NullEntryException) {
+                        throw e;
+                    }
+                    break;
+                }
+                try {
+                    if (isLive(v, horizon)) {
+                        versions.add(v.data());
+                    }
+                    next = v.getLink();
+                } finally {
+                    v.release();
+                }
+            }
+            if (isLive(head, horizon)) {
+                versions.add(head.data());
+            }
+            return versions;
+        } finally {
+            head.release();
+        }
+    }
 
-        if (t.err != null) {
-            throw t.err;
+    private boolean isLive(Entry v, long horizon) {
+        long xmin = v.getXmin();
+        if (xmin >= horizon) {
+            return true;
+        }
+        if (v.isXminCommitted(tm)) {
+            long xmax = v.getXmax();
+            return xmax == 0 || xmax >= horizon || !v.isXmaxCommitted(tm);
         }
+        return !tm.isAborted(xmin);
+    }
 
-        byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+    //insert() 则是将数据包裹成 Entry，无脑交给 DM 插入即可
+    @Override
+    public long insert(long xid, byte[] data) throws Exception {
+        Transaction t = enter(xid);
+        try {
+            checkErr(t);
+            byte[] raw = Entry.wrapEntryRaw(xid, data);
+            return dm.insert(xid, raw);
+        } finally {
+            exit(t);
+        }
     }
 
     // 实际上主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。删除的操作只有一个设置 XMAX
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = enter(xid);
+        try {
+            return modify(t, uid, null) != 0;
+        } finally {
+            exit(t);
+        }
+    }
 
-        if (t.err != null) {
-            throw t.err;
+    // 更新的前置检查和删除相同，之后插入新版本接在版本链上，并给原来可见的版本设置 XMAX，链头的 UID 不变
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        Transaction t = enter(xid);
+        try {
+            return modify(t, uid, data);
+        } finally {
+            exit(t);
         }
-        Entry entry = null;
+    }
+
+    /*
+    删除和更新的共同部分。版本链上的修改都以链头的 UID 加锁，获得锁之后重新查找可见的版本：
+    读提交下，等待期间提交的新版本此时已经可见；可重复读下，可见的版本如果已经被快照之外的事务修改，就是版本跳跃。
+    data 为 null 时删除，否则更新。成功时返回记录的 UID，没有可以修改的版本时返回 0。
+    旧格式的记录没有 LINK，不能组成版本链，更新时只能删除后插入新的记录，此时返回新记录的 UID
+     */
+    private long modify(Transaction t, long uid, byte[] data) throws Exception {
+        long xid = t.xid;
+        checkErr(t);
+        Entry head = null;
         try {
-            entry = super.get(uid);
+            head = super.get(uid);
         } catch (Exception e) {
             if (e == Error.NullEntryException) {
-                return false;
+                return 0;
             } else {
                 throw e;
             }
         }
         try {
-            if (!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            Entry entry = visibleVersion(t, head);
+            if (entry == null) {
+                return 0;
             }
-            Lock l = null;
+            entry.release();
             try {
-                l = lt.add(xid, uid);
+                lt.add(xid, uid, t.lockTimeout);
             } catch (Exception e) {
-                t.err = Error.ConcurrentUpdateException;
+                t.err = e == Error.LockTimeoutException ? e : Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            if (l != null) {
-                l.lock();
-                l.unlock();
-            }
 
-            if (entry.getXmax() == xid) {
-                return false;
+            entry = visibleVersion(t, head);
+            if (entry == null) {
+                return 0;
             }
+            try {
+                if (entry.getXmax() == xid) {
+                    return 0;
+                }
 
-            if (Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
+                if (Visibility.isVersionSkip(tm, t, entry)) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
 
-            entry.setXmax(xid);
-            return true;
+                if (data == null) {
+                    entry.setXmax(xid);
+                    return uid;
+                }
+                if (!head.hasLink()) {
+                    long newUid = dm.insert(xid, Entry.wrapEntryRaw(xid, data));
+                    entry.setXmax(xid);
+                    return newUid;
+                }
+                long newest = head.getLink();
+                long newUid = dm.insert(xid, Entry.wrapVersionRaw(xid, newest == 0 ? uid : newest, data));
+                entry.setXmax(xid);
+                head.setLink(xid, newUid);
+                return uid;
+            } finally {
+                entry.release();
+            }
 
         } finally {
-            entry.release();
+            head.release();
         }
     }
 
@@ -140,7 +357,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            Snapshot snapshot = null;
+            if (level != 0) {
+                long seq = commitSeq.get();
+                if (latestSnapshot == null || latestSnapshotSeq != seq) {
+                    latestSnapshot = newSnapshot(xid);
+                    latestSnapshotSeq = seq;
+                }
+                snapshot = latestSnapshot;
+            }
+            Transaction t = Transaction.newTransaction(xid, level, snapshot);
+            t.lockTimeout = lockTimeout;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -148,36 +375,87 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
-    //commit() 方法提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，并修改 TM 状态
-    @Override
-    public void commit(long xid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+    // 以当前的活跃事务建立快照，调用时持有 lock
+    // 并发提交的事务可能出现在快照中，也可能不出现：出现时视为进行中，不出现时它已经提交，两种结果都是一致的
+    private Snapshot newSnapshot(long nextXid) {
+        long[] xids = new long[16];
+        int n = 0;
+        for (long x : activeTransaction.tailMap(TMImplement.SUPER_XID, false).keySet()) {
+            if (n == xids.length) {
+                xids = Arrays.copyOf(xids, n * 2);
+            }
+            xids[n++] = x;
+        }
+        return Snapshot.newSnapshot(xids, n, nextXid);
+    }
 
+    /*
+    清理的界限：XID 比它小的已提交事务，对所有活跃事务和之后开始的事务都可见。
+    除了活跃事务本身，还要考虑活跃事务快照的 xmin：快照建立时进行中的事务之后提交了，对快照仍然不可见。
+    持有 lock，避免漏掉已经建立快照、但还没有登记到活跃事务表的事务。没有活跃事务时返回 Long.MAX_VALUE
+     */
+    long vacuumHorizon() {
+        lock.lock();
         try {
-            if (t.err != null) {
-                throw t.err;
+            long horizon = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.tailMap(TMImplement.SUPER_XID, false).values()) {
+                horizon = Math.min(horizon, t.xid);
+                if (t.snapshot != null) {
+                    horizon = Math.min(horizon, t.snapshot.getXmin());
+                }
             }
-        } catch (NullPointerException n) {
-            System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
-            Panic.panic(n);
+            return horizon;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+    // 最大的活跃 XID，没有活跃事务时返回 SUPER_XID
+    long maxActiveXid() {
+        return activeTransaction.lastKey();
+    }
 
-        lt.remove(xid);
-        tm.commit(xid);
+    // 最小的活跃 XID，没有活跃事务时返回 Long.MAX_VALUE
+    public long minActiveXid() {
+        Long xid = activeTransaction.higherKey(TMImplement.SUPER_XID);
+        return xid == null ? Long.MAX_VALUE : xid;
+    }
+
+    //commit() 方法提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，并修改 TM 状态
+    //先修改 TM 状态，再将事务移出活跃事务：否则在两者之间建立的快照既不包含这个事务，又看不到它已提交，
+    //等到它提交之后，快照的结果就会改变。之后再让之前的快照失效，释放持有的锁。
+    //快照在事务移出之后才失效，提交返回之后开始的事务一定能看到这次提交
+    @Override
+    public void commit(long xid) throws Exception {
+        Transaction t = enter(xid);
+        try {
+            try {
+                checkErr(t);
+            } catch (NullPointerException n) {
+                System.out.println(xid);
+                System.out.println(activeTransaction.keySet());
+                Panic.panic(n);
+            }
+
+            tm.commit(xid);
+            activeTransaction.remove(xid);
+            commitSeq.incrementAndGet();
+            lt.remove(xid);
+        } finally {
+            exit(t);
+        }
     }
 
     //abort 事务的方法则有两种，手动和自动。
     //手动指的是调用 abort() 方法，而自动，则是在事务被检测出出现死锁时，会自动撤销回滚事务；或者出现版本跳跃时，也会自动回滚：
     @Override
     public void abort(long xid) {
-        internAbort(xid, false);
+        Transaction t = enter(xid);
+        try {
+            internAbort(xid, false);
+        } finally {
+            exit(t);
+        }
     }
 
     public void releaseEntry(Entry entry) {
@@ -185,12 +463,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
         if (!autoAborted) {
             activeTransaction.remove(xid);
         }
-        lock.unlock();
 
         if (t.autoAborted) return;
         lt.remove(xid);
@@ -199,6 +475,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
 
     //VM 的实现类还被设计为 Entry 的缓存，需要继承 AbstractCache<Entry>。需要实现的获取到缓存和从缓存释放的方法很简单
+    // 供 Vacuum 读取版本，不做可见性判断
+    Entry getEntry(long uid) throws Exception {
+        return super.get(uid);
+    }
+
     @Override
     protected Entry getForCache(long uid) throws Exception {
         Entry entry = Entry.loadEntry(this, uid);
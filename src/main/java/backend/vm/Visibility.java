@@ -14,6 +14,10 @@ package backend.vm;
 
 import backend.tm.TransactionManager;
 
+/*
+ * 事务是否已提交通过 Entry 的 isXminCommitted() 和 isXmaxCommitted() 判断，它们优先使用记录中的提示位，
+ * 热点数据上的可见性判断基本不需要访问 TM。
+ */
 public class Visibility {
 
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
@@ -30,10 +34,10 @@ public class Visibility {
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true;
 
-        if (tm.isCommitted(xmin)) {
+        if (e.isXminCommitted(tm)) {
             if (xmax == 0) return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax)) {
+                if (!e.isXmaxCommitted(tm)) {
                     return true;
                 }
             }
@@ -49,10 +53,10 @@ public class Visibility {
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true;
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (e.isXminCommitted(tm) && xmin < xid && !t.isInSnapshot(xmin)) {
             if (xmax == 0) return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (!e.isXmaxCommitted(tm) || xmax > xid || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
@@ -71,7 +75,7 @@ public class Visibility {
         if (t.level == 0) {
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return e.isXmaxCommitted(tm) && (xmax > t.xid || t.isInSnapshot(xmax));
         }
     }
 }
@@ -20,6 +20,10 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
+
+    // im
+    public static final Exception KeyTooLongException = new RuntimeException("Index key too long!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -29,6 +33,8 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception FieldIndexedException = new RuntimeException("Field already indexed!");
+    public static final Exception IndexBuildException = new RuntimeException("Cannot build index now, retry later!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -43,5 +49,7 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidEvictionPolicyException = new RuntimeException("Invalid eviction policy!");
+    public static final Exception InvalidDeadlockModeException = new RuntimeException("Invalid deadlock mode!");
 
 }
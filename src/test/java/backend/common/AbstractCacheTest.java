@@ -0,0 +1,275 @@
+package backend.common;
+
+import common.Error;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AbstractCacheTest {
+    private static final int THREADS = 16;
+
+    // 获取资源时阻塞在 gate 上，fail 为 true 时获取失败
+    static class GatedCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger released = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        volatile boolean fail;
+
+        GatedCache(int maxResource) {
+            super(maxResource);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            gate.await();
+            if (fail) {
+                throw new IllegalStateException("load failed: " + key);
+            }
+            return key * 10;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            released.incrementAndGet();
+        }
+    }
+
+    // 每次获取都创建新的对象，记录每个资源被获取的次数
+    static class ObjectCache extends AbstractCache<Object> {
+        ConcurrentHashMap<Long, AtomicInteger> loads = new ConcurrentHashMap<>();
+
+        ObjectCache(int maxResource) {
+            super(maxResource);
+        }
+
+        @Override
+        protected Object getForCache(long key) {
+            loads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            return new Object();
+        }
+
+        @Override
+        protected void releaseForCache(Object obj) {
+        }
+    }
+
+    // 多个线程同时请求同一个资源，直到获取完成之前都在等待
+    private static List<Future<Long>> getConcurrently(ExecutorService pool, GatedCache cache, long key) throws Exception {
+        CountDownLatch started = new CountDownLatch(THREADS);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(pool.submit(() -> {
+                started.countDown();
+                return cache.get(key);
+            }));
+        }
+        started.await();
+        // 给所有线程时间进入 get()，第一个线程正阻塞在获取中
+        while (cache.loads.get() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        return results;
+    }
+
+    private void concurrentMissesLoadOnce(int maxResource) throws Exception {
+        GatedCache cache = new GatedCache(maxResource);
+        cache.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Long>> results = getConcurrently(pool, cache, 7);
+            cache.gate.countDown();
+            for (Future<Long> f : results) {
+                assertEquals(70L, f.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, cache.loads.get());
+            assertEquals(1, cache.getMissCount());
+            assertEquals(THREADS - 1, cache.getHitCount());
+            for (int i = 0; i < THREADS; i++) {
+                cache.release(7);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentMissesLoadOnceUnbounded() throws Exception {
+        concurrentMissesLoadOnce(0);
+    }
+
+    @Test
+    public void concurrentMissesLoadOnceBounded() throws Exception {
+        concurrentMissesLoadOnce(4);
+    }
+
+    /*
+    没有门闩的真实竞争：每一轮 THREADS 个线程在屏障处同时请求同一个新的资源，所有线程都拿到之后才释放。
+    每个资源只获取一次，所有线程得到的是同一个对象。有上限的缓存容量较小，之前各轮的资源不断被驱逐
+     */
+    private void racingMissesShareOneObject(int maxResource) throws Exception {
+        ObjectCache cache = new ObjectCache(maxResource);
+        int rounds = 200;
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        Object[][] seen = new Object[rounds][THREADS];
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int id = t;
+                workers.add(pool.submit(() -> {
+                    for (int round = 0; round < rounds; round++) {
+                        barrier.await();
+                        seen[round][id] = cache.get(round);
+                        barrier.await();
+                        cache.release(round);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : workers) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int round = 0; round < rounds; round++) {
+            assertEquals(1, cache.loads.get((long) round).get(), "round " + round);
+            for (int t = 1; t < THREADS; t++) {
+                assertSame(seen[round][0], seen[round][t], "round " + round);
+            }
+        }
+        assertEquals(rounds, cache.getMissCount());
+        assertEquals((long) rounds * (THREADS - 1), cache.getHitCount());
+    }
+
+    @Test
+    public void racingMissesShareOneObjectUnbounded() throws Exception {
+        racingMissesShareOneObject(0);
+    }
+
+    @Test
+    public void racingMissesShareOneObjectBounded() throws Exception {
+        racingMissesShareOneObject(4);
+    }
+
+    // 获取失败时所有等待的线程都得到同一个异常，失败的结果不会留在缓存中，之后的请求重新获取
+    @Test
+    public void failedLoadIsNotCached() throws Exception {
+        GatedCache cache = new GatedCache(1);
+        cache.gate = new CountDownLatch(1);
+        cache.fail = true;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Long>> results = getConcurrently(pool, cache, 3);
+            cache.gate.countDown();
+            for (Future<Long> f : results) {
+                Exception e = assertThrows(Exception.class, () -> f.get(10, TimeUnit.SECONDS));
+                assertInstanceOf(IllegalStateException.class, e.getCause());
+            }
+            assertEquals(1, cache.loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        cache.fail = false;
+        assertEquals(30L, cache.get(3));
+        assertEquals(2, cache.loads.get());
+        cache.release(3);
+        // 失败的缓存项没有占用容量：容量为 1 的缓存仍然可以驱逐 3 并放入其他资源
+        assertEquals(40L, cache.get(4));
+        assertEquals(1, cache.released.get());
+        cache.release(4);
+    }
+
+    // 挑选驱逐对象很慢并且没有可以驱逐的资源
+    static class SlowNoVictimPolicy implements EvictionPolicy {
+        CountDownLatch choosing = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void access(long key) {
+        }
+
+        @Override
+        public void unpin(long key) {
+        }
+
+        @Override
+        public long victim() {
+            choosing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return NONE;
+        }
+
+        @Override
+        public void remove(long key) {
+        }
+    }
+
+    /*
+    缓存满了并且没有可以驱逐的资源：第一个线程已经放入了缓存项，正在挑选驱逐对象；
+    第二个线程这时找到了这个缓存项，等待它获取完成。驱逐失败之后两个线程都得到 CacheFullException，而不是一直等待
+     */
+    @Test
+    public void waiterFailsWhenEvictionFails() throws Exception {
+        SlowNoVictimPolicy policy = new SlowNoVictimPolicy();
+        AbstractCache<Long> cache = new AbstractCache<>(1, policy) {
+            @Override
+            protected Long getForCache(long key) {
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {
+            }
+        };
+        assertEquals(1L, cache.get(1));
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> first = pool.submit(() -> cache.get(2));
+            policy.choosing.await();
+            Future<Long> second = pool.submit(() -> cache.get(2));
+            Thread.sleep(100);
+            policy.gate.countDown();
+            for (Future<Long> f : List.of(first, second)) {
+                Exception e = assertThrows(Exception.class, () -> f.get(5, TimeUnit.SECONDS));
+                assertSame(Error.CacheFullException, e.getCause());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        cache.release(1);
+    }
+
+    // 没有上限的缓存中引用归零就驱逐，再次获取时重新加载
+    @Test
+    public void unboundedCacheEvictsOnLastRelease() throws Exception {
+        GatedCache cache = new GatedCache(0);
+        cache.get(1);
+        cache.get(1);
+        cache.release(1);
+        assertEquals(0, cache.released.get());
+        cache.release(1);
+        assertEquals(1, cache.released.get());
+        cache.get(1);
+        assertEquals(2, cache.loads.get());
+        cache.release(1);
+    }
+}
@@ -0,0 +1,118 @@
+package backend.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+不同驱逐策略在 Zipfian 访问和 Zipfian 中夹杂顺序扫描时的表现。
+缓存容量 CAPACITY，key 的范围 KEYS，未命中时用 consumeCPU 模拟读取页面的开销，吞吐量直接反映命中率；
+hits 和 misses 作为辅助计数一起输出。
+
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main CacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+    static final int CAPACITY = 1000;
+    static final int KEYS = 100_000;
+    static final int TRACE = 1 << 20;
+    // 每隔 SCAN_EVERY 次访问插入一次长度为 SCAN_LENGTH 的顺序扫描
+    static final int SCAN_EVERY = 10_000;
+    static final int SCAN_LENGTH = CAPACITY * 2;
+    static final long MISS_PENALTY = 2_000;
+
+    @Param({"lru1", "lru2", "slru"})
+    String policy;
+
+    @Param({"zipf", "scan"})
+    String pattern;
+
+    long[] trace;
+    Cache cache;
+
+    static class Cache extends AbstractCache<Long> {
+        Cache(String policy) {
+            super(CAPACITY, EvictionPolicy.of(policy, CAPACITY));
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            Blackhole.consumeCPU(MISS_PENALTY);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long hits, misses;
+        int pos;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = new Cache(policy);
+        trace = "zipf".equals(pattern) ? zipf(new Random(1)) : withScans(zipf(new Random(1)));
+    }
+
+    // 指数为 0.99 的 Zipf 分布，热点分散在整个 key 范围内
+    static long[] zipf(Random random) {
+        double[] cdf = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, 0.99);
+            cdf[i] = sum;
+        }
+        long[] t = new long[TRACE];
+        for (int i = 0; i < TRACE; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            rank = rank >= 0 ? rank : -rank - 1;
+            t[i] = (rank * 2654435761L) % KEYS;
+        }
+        return t;
+    }
+
+    // 扫描的 key 在 Zipf 的范围之外，每次扫描的都是新的 key
+    static long[] withScans(long[] t) {
+        long next = KEYS;
+        for (int i = 0; i + SCAN_LENGTH <= t.length; i += SCAN_EVERY) {
+            for (int j = 0; j < SCAN_LENGTH; j++) {
+                t[i + j] = next++;
+            }
+        }
+        return t;
+    }
+
+    @Benchmark
+    public Long access(Counters counters) throws Exception {
+        long key = trace[counters.pos];
+        counters.pos = (counters.pos + 1) & (TRACE - 1);
+        long misses = cache.getMissCount();
+        Long v = cache.get(key);
+        cache.release(key);
+        if (cache.getMissCount() != misses) {
+            counters.misses++;
+        } else {
+            counters.hits++;
+        }
+        return v;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(CacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package backend.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvictionPolicyTest {
+    private static final int CAPACITY = 100;
+    private static final int HOT = 50;
+
+    // 资源就是 key 本身，记录从数据源获取的次数
+    static class CountingCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger();
+
+        CountingCache(int maxResource, EvictionPolicy policy) {
+            super(maxResource, policy);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            loads.incrementAndGet();
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+
+        Long access(long key) throws Exception {
+            Long v = get(key);
+            release(key);
+            return v;
+        }
+    }
+
+    // 先反复访问热点，再顺序扫描大量只访问一次的资源，返回扫描之后重新访问热点时从数据源获取的次数
+    private static int hotReloadsAfterScan(EvictionPolicy policy) throws Exception {
+        CountingCache cache = new CountingCache(CAPACITY, policy);
+        for (int round = 0; round < 3; round++) {
+            for (long k = 0; k < HOT; k++) {
+                assertEquals(k, cache.access(k));
+            }
+        }
+        for (long k = 1000; k < 1000 + CAPACITY * 10; k++) {
+            cache.access(k);
+        }
+        int before = cache.loads.get();
+        for (long k = 0; k < HOT; k++) {
+            cache.access(k);
+        }
+        return cache.loads.get() - before;
+    }
+
+    @Test
+    public void lru2KeepsHotSetAcrossScan() throws Exception {
+        assertEquals(0, hotReloadsAfterScan(EvictionPolicy.lruK(CAPACITY)));
+    }
+
+    @Test
+    public void segmentedLruKeepsHotSetAcrossScan() throws Exception {
+        assertEquals(0, hotReloadsAfterScan(EvictionPolicy.segmentedLru(CAPACITY)));
+    }
+
+    // 对照：普通的 LRU 会被扫描冲掉全部热点
+    @Test
+    public void plainLruLosesHotSetToScan() throws Exception {
+        assertEquals(HOT, hotReloadsAfterScan(EvictionPolicy.of("lru1", CAPACITY)));
+    }
+
+    // 被引用的资源不会被驱逐，全部被引用时缓存报错
+    @Test
+    public void pinnedResourcesAreNotEvicted() throws Exception {
+        for (String name : new String[]{"lru1", "lru2", "slru"}) {
+            CountingCache cache = new CountingCache(4, EvictionPolicy.of(name, 4));
+            for (long k = 0; k < 4; k++) {
+                cache.get(k);
+            }
+            assertThrows(Exception.class, () -> cache.get(100L), name);
+            cache.release(2);
+            assertEquals(100L, cache.get(100L));
+            int loads = cache.loads.get();
+            for (long k : new long[]{0, 1, 3}) {
+                assertEquals(k, cache.get(k));
+            }
+            assertEquals(loads, cache.loads.get(), name);
+        }
+    }
+
+    @Test
+    public void hitRatioCounters() throws Exception {
+        CountingCache cache = new CountingCache(CAPACITY, EvictionPolicy.lruK(CAPACITY));
+        for (int i = 0; i < 4; i++) {
+            for (long k = 0; k < 10; k++) {
+                cache.access(k);
+            }
+        }
+        assertEquals(10, cache.getMissCount());
+        assertEquals(30, cache.getHitCount());
+        assertEquals(0.75, cache.getHitRatio(), 1e-9);
+    }
+}
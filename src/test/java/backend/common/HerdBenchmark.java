@@ -0,0 +1,85 @@
+package backend.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+惊群（thundering herd）下的获取延迟：所有线程访问同一个热点资源，热点每 HOT_OPS 次访问换成一个新的、不在缓存中的 key，
+新热点出现时所有线程几乎同时未命中。获取资源用 parkNanos 模拟一次 loadMicros 微秒的 I/O。
+合并未命中时每个热点只获取一次，其余线程等待同一个 future，p99 延迟接近一次获取的时间；
+loads 辅助计数为实际获取的次数。
+
+SampleTime 模式输出延迟的分位数，看 p0.99。
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main HerdBenchmark -t 16
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Threads(8)
+@Fork(1)
+public class HerdBenchmark {
+    static final int HOT_OPS = 256;
+
+    @Param({"200"})
+    long loadMicros;
+
+    @Param({"0", "64"})
+    int capacity;
+
+    Cache cache;
+    AtomicLong ops = new AtomicLong();
+    // 获取资源的线程在这里做标记，用于统计每个线程实际获取的次数
+    static final ThreadLocal<boolean[]> loaded = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    class Cache extends AbstractCache<Long> {
+        Cache(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(loadMicros));
+            loaded.get()[0] = true;
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long loads;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = new Cache(capacity);
+    }
+
+    @Benchmark
+    public Long get(Counters counters) throws Exception {
+        long key = ops.getAndIncrement() / HOT_OPS;
+        Long v = cache.get(key);
+        cache.release(key);
+        boolean[] flag = loaded.get();
+        if (flag[0]) {
+            flag[0] = false;
+            counters.loads++;
+        }
+        return v;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(HerdBenchmark.class.getSimpleName()).build()).run();
+    }
+}
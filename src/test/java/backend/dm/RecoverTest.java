@@ -0,0 +1,271 @@
+package backend.dm;
+
+import backend.dm.dataItem.DataItem;
+import backend.dm.logger.Logger;
+import backend.dm.logger.LoggerImpl;
+import backend.dm.page.PageOne;
+import backend.dm.pageCache.PageCache;
+import backend.dm.pageCache.PageCacheImp;
+import backend.common.SubArray;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecoverTest {
+    // 使用较小的日志段，少量数据就能跨越多个段
+    private static final int SEGMENT_SIZE = 1 << 16;
+    private static final long MEM = 1 << 22;
+
+    @TempDir
+    Path dir;
+
+    private String path(String name) {
+        return dir.resolve(name).resolve("d").toString();
+    }
+
+    private static DataManagerImpl create(String path, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, MEM);
+        Logger lg = Logger.create(path, SEGMENT_SIZE, LoggerImpl.DEFAULT_MAX_BATCH_SIZE, 0);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.initPageOne();
+        return dm;
+    }
+
+    // 和 DataManager.open() 相同，只是日志段更小
+    private static DataManagerImpl open(String path, TransactionManager tm) {
+        PageCache pc = PageCache.open(path, MEM);
+        Logger lg = Logger.open(path, SEGMENT_SIZE, LoggerImpl.DEFAULT_MAX_BATCH_SIZE, 0);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        if (!dm.loadCheckPageOne()) {
+            Recover.recover(tm, lg, pc);
+            dm.checkpoint();
+        }
+        dm.fillPageIndex();
+        PageOne.setVcOpen(dm.pageOne);
+        dm.pc.flushPage(dm.pageOne);
+        return dm;
+    }
+
+    /*
+    模拟崩溃：把 from 目录中的文件复制到新的目录，之后只打开复制出的文件。
+    dbImage 不为 null 时用它代替数据文件，得到页面还没有写回时崩溃的状态
+     */
+    private String crash(String from, String name, Path dbImage) throws IOException {
+        Path src = new File(from).getParentFile().toPath();
+        Path dst = dir.resolve(name);
+        Files.createDirectories(dst);
+        try (var files = Files.list(src)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.copy(f, dst.resolve(f.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (dbImage != null) {
+            Files.copy(dbImage, dst.resolve("d" + PageCacheImp.DB_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return dst.resolve("d").toString();
+    }
+
+    // 日志段的起始 LSN，从段文件名中解析
+    private static TreeSet<Long> segments(String path) {
+        File prefix = new File(path);
+        TreeSet<Long> bases = new TreeSet<>();
+        for (File f : prefix.getParentFile().listFiles()) {
+            String fn = f.getName();
+            if (fn.startsWith(prefix.getName() + "_") && fn.endsWith(LoggerImpl.LOG_SUFFIX)) {
+                bases.add(Long.parseUnsignedLong(fn.substring(prefix.getName().length() + 1, fn.length() - LoggerImpl.LOG_SUFFIX.length()), 16));
+            }
+        }
+        return bases;
+    }
+
+    private static long insert(DataManager dm, long xid, long value, int size) throws Exception {
+        byte[] raw = new byte[size];
+        Parser.writeLong(raw, 0, value);
+        return dm.insert(xid, raw);
+    }
+
+    private static void update(DataManager dm, long xid, long uid, long value) throws Exception {
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        Parser.writeLong(sa.raw, sa.start, value);
+        di.after(xid);
+        di.release();
+    }
+
+    // 返回 DataItem 中的值，DataItem 不存在（插入被撤销）时返回 null
+    private static Long value(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if (di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            return Parser.readLong(sa.raw, sa.start);
+        } finally {
+            di.release();
+        }
+    }
+
+    // 检查点之后的修改只在日志中：已提交的事务被重做，活跃的事务被撤销
+    @Test
+    public void redoCommittedAndUndoActive() throws Exception {
+        String p = path("db");
+        Files.createDirectories(dir.resolve("db"));
+        TransactionManager tm = TransactionManager.create(p);
+        DataManagerImpl dm = create(p, tm);
+
+        long[] a = new long[200], b = new long[200], c = new long[100];
+        long x1 = tm.begin();
+        for (int i = 0; i < a.length; i++) {
+            a[i] = insert(dm, x1, i, 64);
+        }
+        tm.commit(x1);
+        dm.checkpoint();
+        Path image = dir.resolve("db.image");
+        Files.copy(Path.of(p + PageCacheImp.DB_SUFFIX), image);
+
+        long x2 = tm.begin();
+        for (int i = 0; i < b.length; i++) {
+            b[i] = insert(dm, x2, 1000 + i, 64);
+        }
+        for (int i = 0; i < 50; i++) {
+            update(dm, x2, a[i], -i);
+        }
+        tm.commit(x2);
+        long x3 = tm.begin();
+        for (int i = 0; i < c.length; i++) {
+            c[i] = insert(dm, x3, 5000 + i, 64);
+        }
+        for (int i = 50; i < 100; i++) {
+            update(dm, x3, a[i], 777);
+        }
+
+        String cp = crash(p, "crash", image);
+        TransactionManager tm2 = TransactionManager.open(cp);
+        DataManager dm2 = open(cp, tm2);
+        for (int i = 0; i < a.length; i++) {
+            assertEquals(i < 50 ? -i : i, value(dm2, a[i]));
+        }
+        for (int i = 0; i < b.length; i++) {
+            assertEquals(1000 + i, value(dm2, b[i]));
+        }
+        for (long uid : c) {
+            assertNull(value(dm2, uid));
+        }
+        assertTrue(tm2.isAborted(x3));
+        dm2.close();
+        tm2.close();
+    }
+
+    /*
+    恢复之后没有正常关闭就再次崩溃：第一次恢复重做和撤销的页面必须在恢复之后的检查点删除日志之前写回，
+    否则第二次恢复既没有这些页面，也没有产生它们的日志
+     */
+    @Test
+    public void crashAgainAfterRecovery() throws Exception {
+        String p = path("db");
+        Files.createDirectories(dir.resolve("db"));
+        TransactionManager tm = TransactionManager.create(p);
+        DataManagerImpl dm = create(p, tm);
+        dm.checkpoint();
+        Path image = dir.resolve("db.image");
+        Files.copy(Path.of(p + PageCacheImp.DB_SUFFIX), image);
+
+        long[] rows = new long[200];
+        long x1 = tm.begin();
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = insert(dm, x1, i, 64);
+        }
+        tm.commit(x1);
+        long x2 = tm.begin();
+        long aborted = insert(dm, x2, -1, 64);
+        for (int i = 0; i < 20; i++) {
+            update(dm, x2, rows[i], 777);
+        }
+
+        String cp = crash(p, "crash1", image);
+        TransactionManager tm1 = TransactionManager.open(cp);
+        DataManager dm1 = open(cp, tm1);
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(i, value(dm1, rows[i]));
+        }
+        assertNull(value(dm1, aborted));
+
+        String cp2 = crash(cp, "crash2", null);
+        TransactionManager tm2 = TransactionManager.open(cp2);
+        DataManager dm2 = open(cp2, tm2);
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(i, value(dm2, rows[i]));
+        }
+        assertNull(value(dm2, aborted));
+        dm2.close();
+        tm2.close();
+        dm1.close();
+        tm1.close();
+        dm.close();
+        tm.close();
+    }
+
+    /*
+    检查点删除 undoLsn 之前的日志段，但保留活跃事务的日志：
+    活跃事务在检查点之前的插入已经随页面写回，崩溃之后仍然需要它的日志才能撤销
+     */
+    @Test
+    public void checkpointKeepsLogsOfActiveTransactions() throws Exception {
+        String p = path("db");
+        Files.createDirectories(dir.resolve("db"));
+        TransactionManager tm = TransactionManager.create(p);
+        DataManagerImpl dm = create(p, tm);
+
+        long old = tm.begin();
+        long u = insert(dm, old, 42, 64);
+        long[] rows = new long[400];
+        for (int i = 0; i < rows.length; i++) {
+            long x = tm.begin();
+            rows[i] = insert(dm, x, i, 1024);
+            tm.commit(x);
+        }
+        int segments = segments(p).size();
+        assertTrue(segments > 2);
+        dm.checkpoint();
+        assertEquals(0L, segments(p).first());
+
+        String cp = crash(p, "crash1", null);
+        TransactionManager tm1 = TransactionManager.open(cp);
+        DataManager dm1 = open(cp, tm1);
+        assertNull(value(dm1, u));
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(i, value(dm1, rows[i]));
+        }
+        dm1.close();
+        tm1.close();
+
+        tm.commit(old);
+        dm.checkpoint();
+        assertTrue(segments(p).first() > 0);
+        assertTrue(segments(p).size() < segments);
+
+        cp = crash(p, "crash2", null);
+        TransactionManager tm2 = TransactionManager.open(cp);
+        DataManager dm2 = open(cp, tm2);
+        assertEquals(42L, value(dm2, u));
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(i, value(dm2, rows[i]));
+        }
+        dm2.close();
+        tm2.close();
+        dm.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,138 @@
+package backend.dm;
+
+import backend.dm.logger.Logger;
+import backend.dm.pageCache.PageCache;
+import backend.tm.TransactionManager;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+崩溃恢复的耗时。准备阶段生成一个崩溃时的数据库：一个长事务一直没有提交，检查点无法删除它之后的日志段，
+其他事务不断插入和更新，直到日志达到 logBytes 字节，然后不关闭数据库直接复制出全部文件。
+每次测量前重新复制一份，测量对它执行 Recover.recover() 的时间：单遍扫描全部日志、并行重做最后一个检查点之后的修改、撤销长事务。
+
+logBytes 默认 256MB，多 GB 的日志用 -p logBytes=4294967296 运行，需要相应的磁盘空间。
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main RecoveryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class RecoveryBenchmark {
+    private static final long MEM = 1L << 26;
+    private static final int ROW_SIZE = 1000;
+
+    @Param({"268435456"})
+    long logBytes;
+
+    private Path image;
+    private Path run;
+    private TransactionManager tm;
+    private PageCache pc;
+    private Logger lg;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        Path source = Files.createTempDirectory("mydb-recover-src");
+        String path = source.resolve("d").toString();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm);
+        Random random = new Random(1);
+        byte[] row = new byte[ROW_SIZE];
+
+        long longRunning = tm.begin();
+        long[] uids = new long[1 << 16];
+        int n = 0;
+        while (dm.logger.nextLsn() < logBytes) {
+            long xid = tm.begin();
+            for (int i = 0; i < 16; i++) {
+                random.nextBytes(row);
+                long uid = dm.insert(xid, row);
+                if (n < uids.length) {
+                    uids[n++] = uid;
+                } else {
+                    uids[random.nextInt(n)] = uid;
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                var di = dm.read(uids[random.nextInt(n)]);
+                di.before();
+                di.data().raw[di.data().start] ^= 1;
+                di.after(xid);
+                di.release();
+            }
+            tm.commit(xid);
+            dm.insert(longRunning, row);
+        }
+        // 写回页面不影响崩溃时的状态，只是避免复制文件时后台线程正在写页面
+        dm.pc.flushDirtyPages();
+
+        image = Files.createTempDirectory("mydb-recover-image");
+        copy(source, image);
+        delete(source);
+        run = Files.createTempDirectory("mydb-recover-run");
+    }
+
+    @Setup(Level.Invocation)
+    public void crash() throws IOException {
+        delete(run);
+        Files.createDirectories(run);
+        copy(image, run);
+        String path = run.resolve("d").toString();
+        tm = TransactionManager.open(path);
+        pc = PageCache.open(path, MEM);
+        lg = Logger.open(path);
+    }
+
+    @Benchmark
+    public void recover() {
+        Recover.recover(tm, lg, pc);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        lg.close();
+        pc.close();
+        tm.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        delete(run);
+        delete(image);
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.copy(f, to.resolve(f.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(RecoveryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,70 @@
+package backend.dm.logger;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+组提交的吞吐量：不同的并发写入线程数下每秒落盘的日志条数。
+每次 log() 返回时日志都已经 force 到磁盘，线程越多，一次 force 分摊到的日志越多。
+maxWaitMicros 为 leader 等待凑批的时间，0 表示不等待。
+
+mvn -B test-compile 之后运行 main()，或者直接使用 JMH 的命令行，如 org.openjdk.jmh.Main GroupCommitBenchmark -t 8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class GroupCommitBenchmark {
+    @Param({"128"})
+    int recordSize;
+
+    @Param({"0", "50"})
+    long maxWaitMicros;
+
+    private File dir;
+    private Logger lg;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("mydb-log-bench").toFile();
+        lg = Logger.create(new File(dir, "log").getPath(), LoggerImpl.DEFAULT_SEGMENT_SIZE,
+                LoggerImpl.DEFAULT_MAX_BATCH_SIZE, maxWaitMicros);
+        record = new byte[recordSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lg.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long log() {
+        return lg.log(record);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            Options opt = new OptionsBuilder()
+                    .include(GroupCommitBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
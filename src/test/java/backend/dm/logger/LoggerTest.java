@@ -0,0 +1,207 @@
+package backend.dm.logger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoggerTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] record(int writer, int seq) {
+        return ByteBuffer.allocate(8).putInt(writer).putInt(seq).array();
+    }
+
+    // 多个线程并发写入日志，返回 LSN 的日志都已写入文件
+    private Map<Long, byte[]> writeConcurrently(Logger lg, int writers, int perWriter) throws Exception {
+        Map<Long, byte[]> written = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perWriter; i++) {
+                    byte[] data = record(writer, i);
+                    assertNull(written.put(lg.log(data), data));
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        return written;
+    }
+
+    // 按 LSN 顺序读出所有日志，检查和写入时返回的 LSN 一致，并且每个线程的日志保持写入的先后顺序
+    private void checkLog(Logger lg, Map<Long, byte[]> written, int writers) {
+        lg.rewind();
+        int[] nextSeq = new int[writers];
+        long lastLsn = -1;
+        int count = 0;
+        byte[] data;
+        while ((data = lg.next()) != null) {
+            long lsn = lg.lsn();
+            assertTrue(lsn > lastLsn);
+            lastLsn = lsn;
+            assertArrayEquals(written.get(lsn), data);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int writer = buf.getInt();
+            assertEquals(nextSeq[writer]++, buf.getInt());
+            count++;
+        }
+        assertEquals(written.size(), count);
+    }
+
+    @Test
+    public void concurrentWritersAreDurableAndOrdered() throws Exception {
+        String path = dir.resolve("log").toString();
+        Logger lg = Logger.create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE, 4096, 200);
+        Map<Long, byte[]> written = writeConcurrently(lg, 8, 500);
+        checkLog(lg, written, 8);
+
+        // 不调用 close()，模拟崩溃之后重新打开
+        Logger reopened = Logger.open(path);
+        checkLog(reopened, written, 8);
+        reopened.close();
+    }
+
+    @Test
+    public void batchesSpanningSegments() throws Exception {
+        String path = dir.resolve("log").toString();
+        Logger lg = Logger.create(path, 1024, 1 << 16, 100);
+        Map<Long, byte[]> written = writeConcurrently(lg, 4, 300);
+        lg.close();
+        assertTrue(LoggerImpl.listSegments(path).size() > 1);
+
+        Logger reopened = Logger.open(path, 1024, 1 << 16, 100);
+        checkLog(reopened, written, 4);
+        long next = reopened.nextLsn();
+        byte[] data = record(0, 300);
+        long lsn = reopened.log(data);
+        assertTrue(lsn >= next);
+        reopened.close();
+    }
+
+    @Test
+    public void nextLsnDoesNotGoBackwards() {
+        Logger lg = Logger.create(dir.resolve("log").toString());
+        Map<Long, Long> seen = new HashMap<>();
+        long last = lg.nextLsn();
+        for (int i = 0; i < 100; i++) {
+            long lsn = lg.log(record(0, i));
+            assertTrue(lsn >= last);
+            assertNull(seen.put(lsn, lsn));
+            last = lg.nextLsn();
+            assertTrue(last > lsn);
+        }
+        lg.close();
+    }
+
+    private static List<byte[]> readAll(Logger lg) {
+        lg.rewind();
+        List<byte[]> logs = new ArrayList<>();
+        byte[] data;
+        while ((data = lg.next()) != null) {
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    private static File lastSegment(String path) {
+        return LoggerImpl.listSegments(path).lastEntry().getValue();
+    }
+
+    // 崩溃时最后一条日志只写了一半：打开时丢弃半条日志，之后的日志接着写在完整日志的末尾
+    @Test
+    public void tornTailIsRemoved() throws Exception {
+        String path = dir.resolve("log").toString();
+        Logger lg = Logger.create(path);
+        long end = 0;
+        for (int i = 0; i < 10; i++) {
+            lg.log(record(0, i));
+            end = lg.nextLsn();
+        }
+        byte[] torn = LoggerImpl.wrapLog(end, record(0, 10));
+        try (RandomAccessFile raf = new RandomAccessFile(lastSegment(path), "rw")) {
+            raf.seek(raf.length());
+            raf.write(torn, 0, torn.length - 3);
+        }
+
+        Logger reopened = Logger.open(path);
+        assertEquals(10, readAll(reopened).size());
+        assertEquals(end, reopened.nextLsn());
+        assertEquals(end, reopened.log(record(0, 10)));
+        reopened.close();
+
+        Logger again = Logger.open(path);
+        List<byte[]> logs = readAll(again);
+        assertEquals(11, logs.size());
+        assertArrayEquals(record(0, 10), logs.get(10));
+        again.close();
+    }
+
+    // 校验和不符的日志及其之后的内容都被截断
+    @Test
+    public void checksumMismatchTruncatesTail() throws Exception {
+        String path = dir.resolve("log").toString();
+        Logger lg = Logger.create(path);
+        long[] lsns = new long[10];
+        for (int i = 0; i < 10; i++) {
+            lsns[i] = lg.log(record(0, i));
+        }
+        File seg = lastSegment(path);
+        long base = LoggerImpl.listSegments(path).lastKey();
+        try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            // 修改第 6 条日志 Data 中的一个字节
+            long pos = lsns[6] - base + (LoggerImpl.wrapLog(0, new byte[0]).length) + 5;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        }
+
+        Logger reopened = Logger.open(path);
+        List<byte[]> logs = readAll(reopened);
+        assertEquals(6, logs.size());
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(record(0, i), logs.get(i));
+        }
+        assertEquals(lsns[6] - base, seg.length());
+        assertEquals(lsns[6], reopened.log(record(0, 6)));
+        reopened.close();
+    }
+
+    // 正常关闭之后再打开不会丢失日志
+    @Test
+    public void cleanCloseKeepsAllLogs() {
+        String path = dir.resolve("log").toString();
+        Logger lg = Logger.create(path);
+        for (int i = 0; i < 20; i++) {
+            lg.log(record(0, i));
+        }
+        lg.close();
+        Logger reopened = Logger.open(path);
+        assertEquals(20, readAll(reopened).size());
+        reopened.close();
+    }
+}
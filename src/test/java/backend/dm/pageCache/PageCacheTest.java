@@ -0,0 +1,200 @@
+package backend.dm.pageCache;
+
+import backend.dm.page.Page;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PageCacheTest {
+    // 缓存只放得下一小部分页面，大部分读取都会未命中
+    private static final long MEM = PageCache.PAGE_SIZE * 32L;
+    private static final int PAGES = 300;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] pageData(int pgno, int version) {
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        for (int i = 0; i < data.length; i += 997) {
+            data[i] = (byte) (pgno * 31 + version + i);
+        }
+        return data;
+    }
+
+    private static void checkPages(PageCache pc, int version) throws Exception {
+        assertEquals(PAGES, pc.getPageNumber());
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            Page pg = pc.getPage(pgno);
+            try {
+                assertArrayEquals(pageData(pgno, pgno % 2 == 0 ? version : 0), pg.getData(), "page " + pgno);
+            } finally {
+                pg.release();
+            }
+        }
+    }
+
+    // 在一种模式下创建并修改页面，在两种模式下重新打开都能读到同样的内容
+    private void roundTrip(boolean createMmap) throws Exception {
+        String path = dir.resolve("d").toString();
+        PageCache pc = PageCache.create(path, MEM, null, createMmap);
+        assertEquals(createMmap, pc instanceof MappedPageCache);
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            assertEquals(pgno, pc.newPage(pageData(pgno, 0)));
+        }
+        for (int pgno = 2; pgno <= PAGES; pgno += 2) {
+            Page pg = pc.getPage(pgno);
+            System.arraycopy(pageData(pgno, 1), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+            pg.setDirty(true);
+            pg.release();
+        }
+        checkPages(pc, 1);
+        pc.close();
+        assertEquals((long) PAGES * PageCache.PAGE_SIZE, new File(path + PageCacheImp.DB_SUFFIX).length());
+
+        for (boolean mmap : new boolean[]{false, true}) {
+            PageCache reopened = PageCache.open(path, MEM, null, mmap);
+            checkPages(reopened, 1);
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void createWithFileIo() throws Exception {
+        roundTrip(false);
+    }
+
+    @Test
+    public void createWithMmap() throws Exception {
+        roundTrip(true);
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        for (boolean mmap : new boolean[]{false, true}) {
+            String path = dir.resolve("t" + mmap).toString();
+            PageCache pc = PageCache.create(path, MEM, "slru", mmap);
+            for (int pgno = 1; pgno <= 10; pgno++) {
+                pc.newPage(pageData(pgno, 0));
+            }
+            pc.truncateByBgno(4);
+            assertEquals(4, pc.getPageNumber());
+            assertEquals(5, pc.newPage(pageData(5, 7)));
+            pc.close();
+            PageCache reopened = PageCache.open(path, MEM, null, mmap);
+            assertEquals(5, reopened.getPageNumber());
+            Page pg = reopened.getPage(5);
+            assertArrayEquals(pageData(5, 7), pg.getData());
+            pg.release();
+            reopened.close();
+        }
+    }
+
+    /*
+    偏移超过 Integer.MAX_VALUE 的页面：截断到 2GB 之外的页号（稀疏文件），新建的页面在 2GB 之后，
+    关闭之后在两种模式下重新打开，页数和各页的内容都正确
+     */
+    @Test
+    public void pagesBeyondTwoGigabytes() throws Exception {
+        int high = (int) (Integer.MAX_VALUE / PageCache.PAGE_SIZE) + 10;
+        for (boolean mmap : new boolean[]{false, true}) {
+            String path = dir.resolve("big" + mmap).toString();
+            PageCache pc = PageCache.create(path, MEM, null, mmap);
+            assertEquals(1, pc.newPage(pageData(1, 0)));
+            pc.truncateByBgno(high);
+            int pgno = pc.newPage(pageData(high + 1, 3));
+            assertEquals(high + 1, pgno);
+            assertTrue(PageCacheImp.pageOffset(pgno) > Integer.MAX_VALUE);
+            Page pg = pc.getPage(pgno);
+            assertArrayEquals(pageData(pgno, 3), pg.getData());
+            pg.release();
+            pc.close();
+            assertEquals((long) (high + 1) * PageCache.PAGE_SIZE, new File(path + PageCacheImp.DB_SUFFIX).length());
+
+            for (boolean reopenMmap : new boolean[]{false, true}) {
+                PageCache reopened = PageCache.open(path, MEM, null, reopenMmap);
+                assertEquals(high + 1, reopened.getPageNumber());
+                for (int n : new int[]{1, high, high + 1}) {
+                    Page p = reopened.getPage(n);
+                    byte[] expected = n == 1 ? pageData(1, 0) : n == high ? new byte[PageCache.PAGE_SIZE] : pageData(n, 3);
+                    assertArrayEquals(expected, p.getData(), "page " + n);
+                    p.release();
+                }
+                reopened.close();
+            }
+        }
+    }
+
+    /*
+    读写不同页面的线程同时进行：读者不断从文件读取（缓存很小，几乎都未命中）一直不变的页面，
+    写者不断改写另一部分页面。读者读到的页面总是完整的，写者最后一次写入的内容都在文件中
+     */
+    @Test
+    public void concurrentReadsAndWritesOfDifferentPages() throws Exception {
+        int stable = 200, hot = 64, readers = 4, versions = 50;
+        for (boolean mmap : new boolean[]{false, true}) {
+            PageCacheImp pc = PageCache.create(dir.resolve("c" + mmap).toString(), MEM, null, mmap);
+            for (int pgno = 1; pgno <= stable + hot; pgno++) {
+                pc.newPage(pageData(pgno, 0));
+            }
+            pc.getWriter().flush();
+
+            ExecutorService pool = Executors.newFixedThreadPool(readers + 1);
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                tasks.add(pool.submit(() -> {
+                    for (int v = 1; v <= versions; v++) {
+                        // 一次写入若干个连续的页面
+                        for (int pgno = stable + 1; pgno <= stable + hot; pgno += 8) {
+                            ByteBuffer buf = ByteBuffer.allocate(8 * PageCache.PAGE_SIZE);
+                            for (int k = 0; k < 8; k++) {
+                                buf.put(pageData(pgno + k, v));
+                            }
+                            buf.flip();
+                            pc.writePages(pgno, buf);
+                        }
+                        pc.sync();
+                    }
+                    return null;
+                }));
+                for (int r = 0; r < readers; r++) {
+                    long seed = r;
+                    tasks.add(pool.submit(() -> {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            int pgno = 1 + random.nextInt(stable);
+                            Page pg = pc.getPage(pgno);
+                            try {
+                                assertArrayEquals(pageData(pgno, 0), pg.getData(), "page " + pgno);
+                            } finally {
+                                pg.release();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : tasks) {
+                    f.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            for (int pgno = stable + 1; pgno <= stable + hot; pgno++) {
+                assertArrayEquals(pageData(pgno, versions), pc.readPage(pgno), "page " + pgno);
+            }
+            assertTrue(pc.getMissCount() > pc.getHitCount());
+            pc.close();
+        }
+    }
+}
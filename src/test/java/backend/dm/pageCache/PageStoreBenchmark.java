@@ -0,0 +1,92 @@
+package backend.dm.pageCache;
+
+import backend.dm.page.Page;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+内存映射和基于 FileChannel 的页面读写的对比。
+页面文件有 pages 页，缓存只能容纳其中的 cacheMB，随机访问时大部分读取都不命中，比较的是未命中时读取页面的开销；
+update 在读取之后修改页面并标记为脏页，驱逐时交给 PageWriter 写回，同时比较写回的开销。
+两种模式使用同一个页面文件格式，也可以在同一个数据库上切换。
+
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main PageStoreBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class PageStoreBenchmark {
+    @Param({"false", "true"})
+    boolean mmap;
+
+    @Param({"32768"})
+    int pages;
+
+    @Param({"16"})
+    int cacheMB;
+
+    private File dir;
+    private PageCache pc;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("mydb-page-bench").toFile();
+        String path = new File(dir, "d").getPath();
+        PageCache init = PageCache.create(path, (long) cacheMB << 20, null, false);
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        for (int i = 0; i < pages; i++) {
+            data[0] = (byte) i;
+            init.newPage(data);
+        }
+        init.close();
+        pc = PageCache.open(path, (long) cacheMB << 20, null, mmap);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public byte read() throws Exception {
+        Page pg = pc.getPage(ThreadLocalRandom.current().nextInt(pages) + 1);
+        try {
+            return pg.getData()[0];
+        } finally {
+            pg.release();
+        }
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        Page pg = pc.getPage(ThreadLocalRandom.current().nextInt(pages) + 1);
+        pg.lock();
+        try {
+            pg.getData()[1]++;
+            pg.setDirty(true);
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PageStoreBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,163 @@
+package backend.dm.pageCache;
+
+import backend.dm.page.Page;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+测试使用单独的 PageWriter（不启动后台线程），直接调用 add() 和 flush()，写回的时机和统计都是确定的。
+页面缓存自己的 PageWriter 只在建立页面时写回一次，之后页面都是干净的
+ */
+public class PageWriterTest {
+    private static final long MEM = PageCache.PAGE_SIZE * 1024L;
+
+    @TempDir
+    Path dir;
+
+    private PageCacheImp pc;
+    private PageWriter writer;
+
+    @BeforeEach
+    public void setUp() {
+        pc = PageCache.create(dir.resolve("w").toString(), MEM);
+        for (int pgno = 1; pgno <= 600; pgno++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.getWriter().flush();
+        writer = new PageWriter(pc);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pc.close();
+    }
+
+    private Page modify(int pgno, int version) throws Exception {
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        try {
+            Arrays.fill(pg.getData(), 0, 64, (byte) version);
+            pg.setDirty(true);
+        } finally {
+            pg.unlock();
+        }
+        return pg;
+    }
+
+    private byte onDisk(int pgno) {
+        return pc.readPage(pgno)[0];
+    }
+
+    // 写回前多次变脏的页面只写一次，页号连续的页面合并为一次写操作，整批只 force 一次
+    @Test
+    public void coalescesRepeatedAndAdjacentPages() throws Exception {
+        List<Page> pages = new ArrayList<>();
+        for (int version = 1; version <= 3; version++) {
+            for (int pgno = 11; pgno <= 18; pgno++) {
+                Page pg = modify(pgno, version);
+                writer.add(pg);
+                pages.add(pg);
+            }
+            Page pg = modify(40, version);
+            writer.add(pg);
+            pages.add(pg);
+        }
+        assertEquals(9, writer.getDirtyPageCount());
+        writer.flush();
+
+        assertEquals(9, writer.getPagesWritten());
+        assertEquals(2, writer.getWriteCalls());
+        assertEquals(1, writer.getSyncs());
+        assertEquals(3.0, writer.getCoalescingRatio());
+        assertEquals(0, writer.getDirtyPageCount());
+        for (int pgno = 11; pgno <= 18; pgno++) {
+            assertEquals(3, onDisk(pgno));
+        }
+        assertEquals(3, onDisk(40));
+        assertEquals(0, onDisk(19));
+        for (Page pg : pages) {
+            assertFalse(pg.isDirty());
+            pg.release();
+        }
+    }
+
+    /*
+    先写日志：页面上有进行中的修改时（对应的日志还没有落盘），页面不会被写回，而是留在列表中。
+    flushIdle() 跳过这样的页面；修改结束之后页面才写回，写回的是修改之后的内容
+     */
+    @Test
+    public void doesNotWritePagesWithUpdatesInProgress() throws Exception {
+        Page pg = pc.getPage(7);
+        pg.lock();
+        pg.beginUpdate();
+        Arrays.fill(pg.getData(), 0, 64, (byte) 9);
+        pg.setDirty(true);
+        pg.unlock();
+        writer.add(pg);
+        Page other = modify(8, 5);
+        writer.add(other);
+
+        writer.flushIdle();
+        assertEquals(0, onDisk(7));
+        assertEquals(5, onDisk(8));
+        assertSame(pg, writer.pending(7));
+        assertNull(writer.pending(8));
+        assertTrue(pg.isDirty());
+
+        pg.lock();
+        pg.endUpdate();
+        pg.unlock();
+        writer.flushIdle();
+        assertEquals(9, onDisk(7));
+        assertNull(writer.pending(7));
+        pg.release();
+        other.release();
+    }
+
+    /*
+    flush() 返回时调用时列表中的所有页面都已经落盘：页面比一批能写回的多，其中一页有进行中的修改，
+    flush() 一直等到修改结束、这一页写回之后才返回
+     */
+    @Test
+    public void flushWaitsForEveryDirtyPage() throws Exception {
+        List<Page> pages = new ArrayList<>();
+        for (int pgno = 1; pgno <= 600; pgno++) {
+            Page pg = modify(pgno, 1);
+            writer.add(pg);
+            pages.add(pg);
+        }
+        Page busy = pages.get(299);
+        busy.lock();
+        busy.beginUpdate();
+        busy.getData()[0] = 2;
+        busy.unlock();
+
+        Thread flusher = new Thread(writer::flush);
+        flusher.start();
+        flusher.join(200);
+        assertTrue(flusher.isAlive());
+        for (int pgno = 1; pgno <= 600; pgno++) {
+            assertEquals(pgno == 300 ? 0 : 1, onDisk(pgno), "page " + pgno);
+        }
+
+        busy.lock();
+        busy.endUpdate();
+        busy.unlock();
+        flusher.join(10_000);
+        assertFalse(flusher.isAlive());
+        assertEquals(2, onDisk(300));
+        assertEquals(0, writer.getDirtyPageCount());
+        for (Page pg : pages) {
+            pg.release();
+        }
+    }
+}
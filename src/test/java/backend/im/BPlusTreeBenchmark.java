@@ -0,0 +1,100 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+B+ 树的等值查找和插入。准备阶段批量建立一棵有 keys 个索引项的树，缓存能容纳整棵树，比较的是节点内的查找和编码的开销。
+keyType 为 int64 时 key 是 8 个字节的整数；为 string 时 key 有一段很长的公共前缀，节点中只存一次，查找时只比较剩下的部分。
+lookup 查找随机的一个已有的 key；insert 插入随机的新 key，树随着测量不断长大，节点会分裂。
+
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main BPlusTreeBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class BPlusTreeBenchmark {
+    private static final long MEM = 1L << 28;
+
+    @Param({"int64", "string"})
+    String keyType;
+
+    @Param({"262144"})
+    int keys;
+
+    private File dir;
+    private TransactionManager tm;
+    private DataManager dm;
+    private BPlusTree tree;
+    private AtomicLong next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("mydb-btree-bench").toFile();
+        String path = new File(dir, "d").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        ExternalSort sorted = new ExternalSort();
+        try {
+            for (long i = 0; i < keys; i++) {
+                sorted.add(key(2 * i), 2 * i + 1);
+            }
+            sorted.finish();
+            tree = BPlusTree.load(BPlusTree.bulkLoad(dm, sorted, 0.9), dm);
+        } finally {
+            sorted.close();
+        }
+        next = new AtomicLong();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dm.close();
+        tm.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private byte[] key(long k) {
+        if ("string".equals(keyType)) {
+            return Parser.str2Key("customer-account-reference-" + k);
+        }
+        return Parser.long2Key(k);
+    }
+
+    @Benchmark
+    public int lookup() throws Exception {
+        long k = 2L * ThreadLocalRandom.current().nextInt(keys);
+        return tree.search(key(k)).size();
+    }
+
+    // 奇数的 key 不在准备阶段建立的树中，UID 各不相同，插入的索引项不会重复
+    @Benchmark
+    public void insert() throws Exception {
+        long uid = next.incrementAndGet();
+        long k = 2L * ThreadLocalRandom.current().nextInt(keys) + 1;
+        tree.insert(key(k), uid);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(BPlusTreeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
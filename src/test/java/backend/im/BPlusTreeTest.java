@@ -0,0 +1,401 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BPlusTreeTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+
+    @BeforeEach
+    public void setUp() {
+        String path = dir.resolve("b").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 24, tm);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private BPlusTree newTree() throws Exception {
+        return BPlusTree.load(BPlusTree.create(dm), dm);
+    }
+
+    private static byte[] key(long k) {
+        return Parser.long2Key(k);
+    }
+
+    private static long uidOf(long key) {
+        return key * 10 + 7;
+    }
+
+    private static List<Long> uids(long from, long to) {
+        List<Long> res = new ArrayList<>();
+        for (long k = from; k <= to; k++) {
+            res.add(uidOf(k));
+        }
+        return res;
+    }
+
+    private static List<Long> shuffled(int n, long seed) {
+        List<Long> keys = new ArrayList<>();
+        for (long k = 0; k < n; k++) {
+            keys.add(k);
+        }
+        Collections.shuffle(keys, new Random(seed));
+        return keys;
+    }
+
+    private boolean rootIsLeaf(BPlusTree tree) throws Exception {
+        Node root = Node.loadNode(tree, tree.rootUid());
+        try {
+            return root.isLeaf();
+        } finally {
+            root.release();
+        }
+    }
+
+    // 删除大部分索引项之后节点合并、树高降低，释放的节点都交给 freer，剩下的索引项仍然都能查到
+    @Test
+    public void deletesMergeNodesAndCollapseRoot() throws Exception {
+        BPlusTree tree = newTree();
+        AtomicInteger freed = new AtomicInteger();
+        tree.setNodeFreer(uid -> {
+            freed.incrementAndGet();
+            dm.free(uid);
+        });
+        int n = 5000;
+        for (long k : shuffled(n, 1)) {
+            tree.insert(key(k), uidOf(k));
+        }
+        assertFalse(rootIsLeaf(tree));
+        assertEquals(uids(0, n - 1), tree.searchRange(key(0), key(n)));
+
+        // 保留 [1000, 1010]
+        for (long k : shuffled(n, 2)) {
+            if (k < 1000 || k > 1010) {
+                assertTrue(tree.delete(key(k), uidOf(k)));
+            }
+        }
+        assertTrue(freed.get() > 0);
+        assertTrue(rootIsLeaf(tree));
+        assertEquals(uids(1000, 1010), tree.searchRange(null, null));
+        for (long k = 1000; k <= 1010; k++) {
+            assertEquals(List.of(uidOf(k)), tree.search(key(k)));
+        }
+        assertFalse(tree.delete(key(5), uidOf(5)));
+        assertEquals(List.of(), tree.search(key(5)));
+
+        // 合并之后的树可以继续插入
+        for (long k = 0; k < n; k += 3) {
+            if (k < 1000 || k > 1010) {
+                tree.insert(key(k), uidOf(k));
+            }
+        }
+        List<Long> all = tree.searchRange(null, null);
+        int expected = 0;
+        for (long k = 0; k < n; k++) {
+            if ((k >= 1000 && k <= 1010) || k % 3 == 0) {
+                expected++;
+            }
+        }
+        assertEquals(expected, all.size());
+    }
+
+    // 合并和重新分配在读者查找的同时进行，从未删除的索引项总能被查到
+    @Test
+    public void readersSeeStableKeysDuringMerges() throws Exception {
+        BPlusTree tree = newTree();
+        int n = 6000;
+        for (long k : shuffled(n, 3)) {
+            tree.insert(key(k), uidOf(k));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int seed = i;
+            Thread t = new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    while (!done.get()) {
+                        // 4 的倍数不会被删除
+                        long k = r.nextInt(n / 4) * 4L;
+                        List<Long> res = tree.search(key(k));
+                        if (!res.equals(List.of(uidOf(k)))) {
+                            throw new AssertionError("key " + k + " -> " + res);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+        for (long k : shuffled(n, 4)) {
+            if (k % 4 != 0) {
+                tree.delete(key(k), uidOf(k));
+            }
+        }
+        done.set(true);
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertNull(failure.get());
+        List<Long> expected = new ArrayList<>();
+        for (long k = 0; k < n; k += 4) {
+            expected.add(uidOf(k));
+        }
+        assertEquals(expected, tree.searchRange(null, null));
+    }
+
+    // 前面几十个字节都相同的变长 key：等值查找只返回 key 完全相同的索引项，范围按字节序排列
+    @Test
+    public void variableLengthKeysWithLongCommonPrefix() throws Exception {
+        BPlusTree tree = newTree();
+        String prefix = "customer-account-reference-number-";
+        int n = 3000;
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // 长度不同，"...-1" 是 "...-10" 的前缀
+            values.add(prefix + i);
+        }
+        List<Long> order = shuffled(n, 5);
+        for (long i : order) {
+            tree.insert(Parser.str2Key(values.get((int) i)), uidOf(i));
+        }
+        // 相同的 key 对应多条记录
+        for (long u = 1; u <= 300; u++) {
+            tree.insert(Parser.str2Key(prefix + 7), 1_000_000 + u);
+        }
+        assertFalse(rootIsLeaf(tree));
+
+        assertEquals(List.of(uidOf(42)), tree.search(Parser.str2Key(prefix + 42)));
+        assertEquals(List.of(), tree.search(Parser.str2Key(prefix)));
+        assertEquals(List.of(), tree.search(Parser.str2Key(prefix + 42 + "x")));
+        List<Long> sevens = tree.search(Parser.str2Key(prefix + 7));
+        assertEquals(301, sevens.size());
+        assertEquals(uidOf(7), sevens.get(0));
+        assertEquals(1_000_300L, sevens.get(300));
+
+        List<String> sorted = new ArrayList<>(values);
+        sorted.sort((a, b) -> Arrays.compareUnsigned(Parser.str2Key(a), Parser.str2Key(b)));
+        List<Long> expected = new ArrayList<>();
+        for (String v : sorted) {
+            if (v.compareTo(prefix + 5) >= 0 && v.compareTo(prefix + 6) <= 0) {
+                expected.add(uidOf(values.indexOf(v)));
+            }
+        }
+        assertEquals(expected, tree.searchRange(Parser.str2Key(prefix + 5), Parser.str2Key(prefix + 6)));
+
+        for (long i : order) {
+            if (i % 2 == 1) {
+                assertTrue(tree.delete(Parser.str2Key(values.get((int) i)), uidOf(i)));
+            }
+        }
+        assertEquals(List.of(), tree.search(Parser.str2Key(prefix + 43)));
+        assertEquals(List.of(uidOf(42)), tree.search(Parser.str2Key(prefix + 42)));
+        assertEquals(n / 2 + 300, tree.searchRange(null, null).size());
+    }
+
+    private static byte[] strKey(long i) {
+        long v = i % 1500;
+        return Parser.str2Key("item-" + v + "-".repeat((int) (v % 5)));
+    }
+
+    /*
+    同样的索引项批量建立和逐个插入得到的树查询结果相同。外部排序每段只有 1000 项，批量建立时要合并多段；
+    key 长度不同，每个 key 对应多条记录，重复加入的索引项只保留一个。建立之后继续插入和删除，两棵树仍然相同
+     */
+    @Test
+    public void bulkLoadMatchesIncrementalInserts() throws Exception {
+        int n = 6000;
+        BPlusTree inc = newTree();
+        ExternalSort sorted = new ExternalSort(1000);
+        BPlusTree bulk;
+        try {
+            for (long i : shuffled(n, 6)) {
+                inc.insert(strKey(i), uidOf(i));
+                sorted.add(strKey(i), uidOf(i));
+                if (i % 10 == 0) {
+                    sorted.add(strKey(i), uidOf(i));
+                }
+            }
+            sorted.finish();
+            bulk = BPlusTree.load(BPlusTree.bulkLoad(dm, sorted, 0.9), dm);
+        } finally {
+            sorted.close();
+        }
+        checkLevels(bulk);
+        assertSameContents(inc, bulk);
+
+        for (long i : shuffled(n, 7)) {
+            if (i % 3 == 0) {
+                assertTrue(inc.delete(strKey(i), uidOf(i)));
+                assertTrue(bulk.delete(strKey(i), uidOf(i)));
+            }
+        }
+        for (long i = n; i < 2 * n; i++) {
+            inc.insert(strKey(i), uidOf(i));
+            bulk.insert(strKey(i), uidOf(i));
+        }
+        checkLevels(bulk);
+        assertSameContents(inc, bulk);
+    }
+
+    private void assertSameContents(BPlusTree expected, BPlusTree actual) throws Exception {
+        assertEquals(expected.searchRange(null, null), actual.searchRange(null, null));
+        for (long v = 0; v < 1500; v += 37) {
+            assertEquals(expected.search(strKey(v)), actual.search(strKey(v)));
+            assertEquals(expected.searchRange(strKey(v), strKey(v + 100)), actual.searchRange(strKey(v), strKey(v + 100)));
+        }
+        assertEquals(List.of(), actual.search(Parser.str2Key("item-")));
+    }
+
+    @Test
+    public void rejectsKeysLongerThanLimit() throws Exception {
+        BPlusTree tree = newTree();
+        tree.insert(new byte[BPlusTree.MAX_KEY_LENGTH], 1);
+        assertThrows(RuntimeException.class, () -> tree.insert(new byte[BPlusTree.MAX_KEY_LENGTH + 1], 2));
+        assertEquals(List.of(1L), tree.search(new byte[BPlusTree.MAX_KEY_LENGTH]));
+    }
+
+    /*
+    几个线程同时插入交错的 key，叶子节点、内部节点和根节点在并发中不断分裂。
+    读者只查找已经插入完成的 key，必须总能查到；结束之后每一层沿兄弟指针都是有序的，每个节点中的索引项都在它的上界之内
+     */
+    @Test
+    public void concurrentInsertsSplitNodes() throws Exception {
+        BPlusTree tree = newTree();
+        int writers = 4, perWriter = 3000;
+        AtomicInteger[] progress = new AtomicInteger[writers];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int id = w;
+            progress[w] = new AtomicInteger();
+            threads.add(new Thread(() -> {
+                try {
+                    // 线程 id 插入 i * writers + id，同一个叶子节点上有多个线程同时插入
+                    for (int i = 0; i < perWriter; i++) {
+                        long k = (long) i * writers + id;
+                        tree.insert(key(k), uidOf(k));
+                        progress[id].set(i + 1);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            Random r = new Random(6);
+            try {
+                while (!done.get()) {
+                    int id = r.nextInt(writers);
+                    int inserted = progress[id].get();
+                    if (inserted == 0) {
+                        continue;
+                    }
+                    long k = (long) r.nextInt(inserted) * writers + id;
+                    List<Long> res = tree.search(key(k));
+                    if (!res.equals(List.of(uidOf(k)))) {
+                        throw new AssertionError("key " + k + " -> " + res);
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        reader.start();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+
+        int n = writers * perWriter;
+        assertEquals(uids(0, n - 1), tree.searchRange(null, null));
+        assertTrue(checkLevels(tree) >= 2);
+    }
+
+    // 从根节点开始逐层沿兄弟指针检查：索引项严格递增，每个节点中的索引项都小于它的上界、不小于左边节点的上界。返回树高
+    private int checkLevels(BPlusTree tree) throws Exception {
+        int height = 0;
+        long first = tree.rootUid();
+        while (first != 0) {
+            height++;
+            long next = 0;
+            byte[] lowKey = BPlusTree.MIN_KEY;
+            long lowUid = Long.MIN_VALUE;
+            for (long uid = first; uid != 0; ) {
+                Node node = Node.loadNode(tree, uid);
+                try {
+                    int noKeys = Node.getRawNoKeys(node.raw);
+                    boolean leaf = node.isLeaf();
+                    if (uid == first && !leaf) {
+                        next = Node.getRawKthSon(node.raw, 0);
+                    }
+                    byte[] prevKey = lowKey;
+                    long prevUid = lowUid;
+                    for (int i = 0; i < noKeys; i++) {
+                        byte[] k = Node.getRawKthKey(node.raw, i);
+                        long u = Node.getRawKthUid(node.raw, i);
+                        int c = BPlusTree.compare(prevKey, prevUid, k, u);
+                        assertTrue(leaf && i == 0 ? c <= 0 : c < 0, "unsorted in node " + uid);
+                        prevKey = k;
+                        prevUid = u;
+                    }
+                    byte[] highKey;
+                    long highUid;
+                    if (leaf) {
+                        highKey = Node.getRawHighKey(node.raw);
+                        highUid = Node.getRawHighUid(node.raw);
+                        assertTrue(noKeys == 0 || BPlusTree.compare(prevKey, prevUid, highKey, highUid) < 0, "above high key in " + uid);
+                    } else {
+                        // 内部节点最后一个分隔键就是它的上界
+                        highKey = prevKey;
+                        highUid = prevUid;
+                    }
+                    long sibling = Node.getRawSibling(node.raw);
+                    assertEquals(sibling == 0, highKey == null, "high key of " + uid);
+                    lowKey = highKey;
+                    lowUid = highUid;
+                    uid = sibling;
+                } finally {
+                    node.release();
+                }
+            }
+            first = next;
+        }
+        return height;
+    }
+}
@@ -0,0 +1,95 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+给已有的 keys 条记录建立索引：bulkLoad 经过外部排序之后自底向上逐层建立 B+ 树，incremental 按随机顺序逐个插入。
+每次调用都在新的数据库中从空开始，测量的是建立整棵索引的时间，包括外部排序和写日志。
+
+mvn -B test-compile 之后运行 main()，或者 org.openjdk.jmh.Main BulkLoadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkLoadBenchmark {
+    private static final long MEM = 1L << 28;
+
+    @Param({"100000"})
+    int keys;
+
+    private long[] values;
+    private File dir;
+    private TransactionManager tm;
+    private DataManager dm;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        values = new long[keys];
+        Random r = new Random(1);
+        for (int i = 0; i < keys; i++) {
+            values[i] = r.nextLong();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("mydb-bulk-bench").toFile();
+        String path = new File(dir, "d").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        dm.close();
+        tm.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long bulkLoad() throws Exception {
+        ExternalSort sorted = new ExternalSort();
+        try {
+            for (int i = 0; i < keys; i++) {
+                sorted.add(Parser.long2Key(values[i]), i + 1);
+            }
+            sorted.finish();
+            return BPlusTree.bulkLoad(dm, sorted, 0.9);
+        } finally {
+            sorted.close();
+        }
+    }
+
+    @Benchmark
+    public long incremental() throws Exception {
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        for (int i = 0; i < keys; i++) {
+            tree.insert(Parser.long2Key(values[i]), i + 1);
+        }
+        return root;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(BulkLoadBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,211 @@
+package backend.im;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CursorTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private BPlusTree tree;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        String path = dir.resolve("c").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 24, tm);
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] key(long k) {
+        return Parser.long2Key(k);
+    }
+
+    private static long uidOf(long key) {
+        return key * 10 + 7;
+    }
+
+    private static List<Long> shuffled(long from, long to, long seed) {
+        List<Long> keys = new ArrayList<>();
+        for (long k = from; k < to; k++) {
+            keys.add(k);
+        }
+        Collections.shuffle(keys, new Random(seed));
+        return keys;
+    }
+
+    private static List<Long> drain(Cursor cursor, int limit) throws Exception {
+        List<Long> res = new ArrayList<>();
+        while (res.size() < limit && cursor.next()) {
+            res.add(cursor.uid());
+        }
+        return res;
+    }
+
+    /*
+    暂停时游标已经读出了当前叶子节点中的一批 UID，之后删除的索引项可能仍然会返回。
+    检查返回的 UID 严格单调（不重复），并且包含所有应该返回的 UID
+     */
+    private static void assertCovers(List<Long> expected, List<Long> seen, boolean reverse) {
+        for (int i = 1; i < seen.size(); i++) {
+            long a = seen.get(i - 1), b = seen.get(i);
+            assertTrue(reverse ? b < a : b > a, "out of order: " + a + " then " + b);
+        }
+        Set<Long> all = new HashSet<>(seen);
+        for (long uid : expected) {
+            assertTrue(all.contains(uid), "missing " + uid);
+        }
+    }
+
+    // 游标读到一半时删除大部分索引项，合并和重新分配改变了树的结构，之后重新查找，剩下的部分不重复也不遗漏
+    @Test
+    public void resumesAfterMergesInBothDirections() throws Exception {
+        int n = 6000;
+        for (long k : shuffled(0, n, 1)) {
+            tree.insert(key(k), uidOf(k));
+        }
+        for (boolean reverse : new boolean[]{false, true}) {
+            Cursor cursor = tree.scan(null, null, reverse);
+            List<Long> seen = drain(cursor, n / 2);
+            for (long k : shuffled(0, n, 2)) {
+                if (k % 5 != 0) {
+                    tree.delete(key(k), uidOf(k));
+                }
+            }
+            seen.addAll(drain(cursor, Integer.MAX_VALUE));
+
+            List<Long> expected = new ArrayList<>();
+            for (long k = 0; k < n; k++) {
+                boolean returned = reverse ? k >= n - n / 2 : k < n / 2;
+                if (returned || k % 5 == 0) {
+                    expected.add(uidOf(k));
+                }
+            }
+            assertCovers(expected, seen, reverse);
+
+            for (long k = 0; k < n; k++) {
+                if (k % 5 != 0) {
+                    tree.insert(key(k), uidOf(k));
+                }
+            }
+        }
+    }
+
+    // 同一个 key 的索引项跨越多个叶子节点，游标在其中暂停时删除其中的一部分，剩下的每个 UID 只返回一次
+    @Test
+    public void duplicateKeysAcrossLeavesWithConcurrentDeletes() throws Exception {
+        int d = 5000;
+        for (long u : shuffled(1, d + 1, 3)) {
+            tree.insert(key(42), u);
+        }
+        tree.insert(key(41), 1);
+        tree.insert(key(43), 1);
+        for (boolean reverse : new boolean[]{false, true}) {
+            Cursor cursor = tree.scan(key(42), key(42), reverse);
+            List<Long> seen = drain(cursor, d / 3);
+            Set<Long> deleted = new HashSet<>();
+            for (long u = 3; u <= d; u += 3) {
+                tree.delete(key(42), u);
+                deleted.add(u);
+            }
+            seen.addAll(drain(cursor, Integer.MAX_VALUE));
+
+            List<Long> expected = new ArrayList<>();
+            for (long u = 1; u <= d; u++) {
+                boolean returned = reverse ? u > d - d / 3 : u <= d / 3;
+                if (returned || !deleted.contains(u)) {
+                    expected.add(u);
+                }
+            }
+            assertCovers(expected, seen, reverse);
+
+            for (long u : deleted) {
+                tree.insert(key(42), u);
+            }
+        }
+    }
+
+    // 游标和插入、删除并发进行：一直存在的索引项恰好返回一次，返回的顺序严格单调
+    @Test
+    public void scansSeeStableKeysDuringConcurrentWrites() throws Exception {
+        int n = 4000;
+        for (long k = 0; k < n; k += 2) {
+            tree.insert(key(k), uidOf(k));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // 偶数一直存在，奇数被反复插入和删除，删除时引起合并
+        Thread writer = new Thread(() -> {
+            Random r = new Random(4);
+            try {
+                while (!done.get()) {
+                    for (long k : shuffled(0, n / 2, r.nextLong())) {
+                        tree.insert(key(2 * k + 1), uidOf(2 * k + 1));
+                    }
+                    for (long k : shuffled(0, n / 2, r.nextLong())) {
+                        tree.delete(key(2 * k + 1), uidOf(2 * k + 1));
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 20; round++) {
+                boolean reverse = round % 2 == 1;
+                long lo = round * 97 % (n / 2), hi = n - 1 - round * 53 % (n / 2);
+                Cursor cursor = tree.scan(key(lo), key(hi), reverse);
+                long prev = reverse ? Long.MAX_VALUE : Long.MIN_VALUE;
+                List<Long> stable = new ArrayList<>();
+                while (cursor.next()) {
+                    long uid = cursor.uid();
+                    assertTrue(reverse ? uid < prev : uid > prev, "out of order: " + prev + " then " + uid);
+                    prev = uid;
+                    long k = (uid - 7) / 10;
+                    assertTrue(k >= lo && k <= hi, "out of range: " + k);
+                    if (k % 2 == 0) {
+                        stable.add(k);
+                    }
+                }
+                List<Long> expected = new ArrayList<>();
+                for (long k = lo + lo % 2; k <= hi; k += 2) {
+                    expected.add(k);
+                }
+                if (reverse) {
+                    Collections.reverse(expected);
+                }
+                assertEquals(expected, stable);
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        assertNull(failure.get());
+    }
+}
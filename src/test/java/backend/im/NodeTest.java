@@ -0,0 +1,287 @@
+package backend.im;
+
+import backend.common.SubArray;
+import backend.dm.DataManager;
+import backend.dm.dataItem.DataItem;
+import backend.dm.page.Page;
+import backend.im.Node.Entries;
+import backend.im.Node.LeafScanRes;
+import backend.im.Node.SearchNextRes;
+import backend.tm.TMImplement;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private BPlusTree tree;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        String path = dir.resolve("n").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 22, tm);
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] key(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static SubArray encode(boolean isLeaf, Entries e) {
+        // 放在更大的数组中间，检查偏移都是相对于 raw.start 的
+        byte[] buf = new byte[Node.NODE_SIZE + 100];
+        SubArray raw = new SubArray(buf, 50, 50 + Node.NODE_SIZE);
+        Node.encode(raw, isLeaf, 0, e, 0, e.n, null, 0);
+        return raw;
+    }
+
+    // 逐个比较得到的下标，和 lowerBound、upperBound 的定义相同
+    private static int linear(Entries e, byte[] key, long uid, boolean upper) {
+        for (int i = 0; i < e.n; i++) {
+            int c = BPlusTree.compare(e.keys[i], e.uids[i], key, uid);
+            if (upper ? c > 0 : c >= 0) {
+                return i;
+            }
+        }
+        return e.n;
+    }
+
+    // 有公共前缀、长度不同、同一个 key 有多个 uid 的叶子节点中，二分查找和逐个比较的结果一致
+    @Test
+    public void boundsMatchLinearSearchInLeaf() {
+        String[] suffixes = {"", "0", "00", "01", "1", "10", "10", "10", "2", "9", "ÿ"};
+        Entries e = new Entries(suffixes.length);
+        for (int i = 0; i < suffixes.length; i++) {
+            // "10" 出现三次，uid 分别为 5、6、7
+            e.add(key("prefix-" + suffixes[i]), i, i);
+        }
+        SubArray raw = encode(true, e);
+        assertEquals("prefix-".length(), Node.getRawPrefixLength(raw));
+        assertEquals(e.n, Node.getRawNoKeys(raw));
+        for (int i = 0; i < e.n; i++) {
+            assertArrayEquals(e.keys[i], Node.getRawKthKey(raw, i));
+            assertEquals(e.uids[i], Node.getRawKthUid(raw, i));
+        }
+
+        String[] probes = {"", "p", "prefix", "prefix-", "prefix-0", "prefix-00", "prefix-000", "prefix-1", "prefix-10",
+                "prefix-100", "prefix-11", "prefix-3", "prefix-ÿ", "prefix-ÿÿ", "q"};
+        long[] uids = {Long.MIN_VALUE, 0, 5, 6, 7, 8, Long.MAX_VALUE};
+        for (String p : probes) {
+            for (long uid : uids) {
+                byte[] k = key(p);
+                assertEquals(linear(e, k, uid, false), Node.lowerBound(raw, e.n, k, uid), p + "/" + uid);
+                assertEquals(linear(e, k, uid, true), Node.upperBound(raw, e.n, k, uid), p + "/" + uid);
+            }
+        }
+        // 同一个 key 的所有索引项在 (key, MIN) 和 (key, MAX) 之间
+        assertEquals(5, Node.lowerBound(raw, e.n, key("prefix-10"), Long.MIN_VALUE));
+        assertEquals(8, Node.upperBound(raw, e.n, key("prefix-10"), Long.MAX_VALUE));
+        assertEquals(6, Node.lowerBound(raw, e.n, key("prefix-10"), 6));
+        assertEquals(7, Node.upperBound(raw, e.n, key("prefix-10"), 6));
+        // 正无穷大于叶子节点中所有的索引项
+        assertEquals(e.n, Node.lowerBound(raw, e.n, null, 0));
+    }
+
+    // 内部节点最后的分隔键是正无穷，查找任何 key（包括正无穷）都落在某个子节点中
+    @Test
+    public void boundsInInternalNodeWithInfiniteSeparator() {
+        Entries e = new Entries(4);
+        e.add(Parser.long2Key(10), 3, 100);
+        e.add(Parser.long2Key(20), 1, 101);
+        e.add(Parser.long2Key(20), 9, 102);
+        e.add(null, 0, 103);
+        SubArray raw = encode(false, e);
+        assertNull(Node.getRawKthKey(raw, 3));
+        assertEquals(102, Node.getRawKthSon(raw, 2));
+        assertEquals(9, Node.getRawKthUid(raw, 2));
+
+        assertEquals(0, Node.upperBound(raw, e.n, Parser.long2Key(-5), 0));
+        assertEquals(0, Node.upperBound(raw, e.n, Parser.long2Key(10), 2));
+        // 分隔键是子节点的上界（不含），等于分隔键的索引项在右边的子节点中
+        assertEquals(1, Node.upperBound(raw, e.n, Parser.long2Key(10), 3));
+        assertEquals(2, Node.upperBound(raw, e.n, Parser.long2Key(20), 1));
+        assertEquals(2, Node.upperBound(raw, e.n, Parser.long2Key(20), 8));
+        assertEquals(3, Node.upperBound(raw, e.n, Parser.long2Key(20), 9));
+        assertEquals(3, Node.upperBound(raw, e.n, Parser.long2Key(Long.MAX_VALUE), Long.MAX_VALUE));
+        assertEquals(3, Node.upperBound(raw, e.n, null, Long.MAX_VALUE));
+        assertEquals(1, Node.lowerBound(raw, e.n, Parser.long2Key(10), 4));
+        assertEquals(3, Node.lowerBound(raw, e.n, null, 0));
+    }
+
+    // 节点为空时两者都返回 0
+    @Test
+    public void boundsInEmptyNode() {
+        SubArray raw = encode(true, new Entries(0));
+        assertEquals(0, Node.lowerBound(raw, 0, key("a"), 1));
+        assertEquals(0, Node.upperBound(raw, 0, key("a"), 1));
+        assertEquals(0, Node.getRawPrefixLength(raw));
+    }
+
+    // 叶子节点，key 为 0, 10, 20, ... , 990，UID 为 key + 1
+    private long newLeaf() throws Exception {
+        Entries e = new Entries(100);
+        for (long k = 0; k < 100; k++) {
+            e.add(Parser.long2Key(k * 10), k * 10 + 1, k * 10 + 1);
+        }
+        SubArray raw = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+        Node.encode(raw, true, 0, e, 0, e.n, null, 0);
+        return dm.insert(TMImplement.SUPER_XID, raw.raw);
+    }
+
+    private Node wrap(DataItem di, long uid) {
+        Node node = new Node();
+        node.tree = tree;
+        node.dataItem = di;
+        node.raw = di.data();
+        node.uid = uid;
+        return node;
+    }
+
+    /*
+    模拟乐观读期间的并发修改：前 torn 次读取时节点处于修改到一半的状态（key 的个数和偏移都是乱的），
+    validate() 失败时恢复原来的内容，就像写者完成了一次不改变内容的修改
+     */
+    private static class TornDataItem implements DataItem {
+        DataItem di;
+        int torn;
+        AtomicInteger reads = new AtomicInteger();
+        byte[] saved;
+
+        TornDataItem(DataItem di, int torn) {
+            this.di = di;
+            this.torn = torn;
+        }
+
+        @Override
+        public long tryOptimisticRead() {
+            long stamp = di.tryOptimisticRead();
+            if (reads.incrementAndGet() <= torn) {
+                SubArray raw = di.data();
+                saved = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+                Arrays.fill(raw.raw, raw.start + Node.NO_KEYS_OFFSET, raw.start + Node.NO_KEYS_OFFSET + 2, (byte) 0x7F);
+                Arrays.fill(raw.raw, raw.start + Node.NODE_HEADER_SIZE, raw.start + Node.NODE_HEADER_SIZE + 64, (byte) 0xFF);
+            }
+            return stamp;
+        }
+
+        @Override
+        public boolean validate(long stamp) {
+            if (saved != null) {
+                SubArray raw = di.data();
+                System.arraycopy(saved, 0, raw.raw, raw.start, saved.length);
+                saved = null;
+                return false;
+            }
+            return di.validate(stamp);
+        }
+
+        public SubArray data() { return di.data(); }
+        public void before() { di.before(); }
+        public void unBefore() { di.unBefore(); }
+        public void after(long xid) { di.after(xid); }
+        public void free(long xid) { di.free(xid); }
+        public void release() { di.release(); }
+        public void lock() { di.lock(); }
+        public void unlock() { di.unlock(); }
+        public void rLock() { di.rLock(); }
+        public void rUnLock() { di.rUnLock(); }
+        public Page page() { return di.page(); }
+        public long getUid() { return di.getUid(); }
+        public byte[] getOldRaw() { return di.getOldRaw(); }
+        public SubArray getRaw() { return di.getRaw(); }
+    }
+
+    // 读到修改到一半的节点时，越界等异常和不一致的结果都被丢弃，重新读取之后得到正确的结果
+    @Test
+    public void tornOptimisticReadsAreRetried() throws Exception {
+        long uid = newLeaf();
+        DataItem di = dm.read(uid);
+        try {
+            TornDataItem torn = new TornDataItem(di, 3);
+            Node node = wrap(torn, uid);
+            long[] uids = new long[Node.MAX_ENTRIES];
+            LeafScanRes res = node.leafScan(Parser.long2Key(95), Long.MIN_VALUE, Parser.long2Key(130), Long.MAX_VALUE, uids, 0);
+            assertEquals(4, torn.reads.get());
+            assertEquals(4, res.n);
+            assertArrayEquals(new long[]{101, 111, 121, 131}, Arrays.copyOf(uids, res.n));
+            assertTrue(res.below);
+            assertTrue(res.beyond);
+
+            torn.torn = torn.reads.get() + Node.OPTIMISTIC_RETRIES;
+            // 一直读不到一致的数据时，重试 OPTIMISTIC_RETRIES 次之后加读锁读取
+            res = node.leafScan(Parser.long2Key(0), Long.MIN_VALUE, null, Long.MAX_VALUE, uids, 0);
+            assertEquals(100, res.n);
+            assertEquals(991, uids[99]);
+        } finally {
+            di.release();
+        }
+    }
+
+    // 读取之后 validate() 成功时，读取中的异常是真正的错误，不能被吞掉
+    @Test
+    public void exceptionsFromConsistentReadsPropagate() throws Exception {
+        long uid = newLeaf();
+        Node node = Node.loadNode(tree, uid);
+        try {
+            long[] small = new long[10];
+            assertThrows(ArrayIndexOutOfBoundsException.class,
+                    () -> node.leafScan(Parser.long2Key(0), Long.MIN_VALUE, null, Long.MAX_VALUE, small, 0));
+        } finally {
+            node.release();
+        }
+    }
+
+    // 写者正在修改节点时，乐观读拿不到版本号，重试之后在读锁上等待写者完成，读到的是修改之后的节点
+    @Test
+    public void readerWaitsForWriterInProgress() throws Exception {
+        long uid = newLeaf();
+        Node writer = Node.loadNode(tree, uid);
+        Node reader = Node.loadNode(tree, uid);
+        try {
+            writer.dataItem.before();
+            AtomicReference<SearchNextRes> result = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(1);
+            Thread t = new Thread(() -> {
+                result.set(reader.searchNext(Parser.long2Key(5), 0));
+                done.countDown();
+            });
+            t.start();
+            Thread.sleep(100);
+            assertNull(result.get());
+            // 把节点改为内部节点的格式，只有一个子节点 77
+            Entries e = new Entries(1);
+            e.add(null, 0, 77);
+            Node.encode(writer.raw, false, 0, e, 0, 1, null, 0);
+            writer.dataItem.after(TMImplement.SUPER_XID);
+            done.await();
+            t.join();
+            assertEquals(77, result.get().uid);
+        } finally {
+            writer.release();
+            reader.release();
+        }
+    }
+}
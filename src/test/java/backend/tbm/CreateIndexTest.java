@@ -0,0 +1,86 @@
+package backend.tbm;
+
+import backend.dm.DataManager;
+import backend.server.Executor;
+import backend.tm.TransactionManager;
+import backend.vm.VersionManagerImpl;
+import common.Error;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CreateIndexTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private Executor exe;
+
+    @BeforeEach
+    public void setUp() {
+        String path = dir.resolve("t").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 24, tm);
+        exe = new Executor(TableManager.create(path, new VersionManagerImpl(tm, dm), dm));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        exe.close();
+        dm.close();
+        tm.close();
+    }
+
+    private String run(String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes()));
+    }
+
+    // 没有索引的表中的记录不能被任何查询找到，也不能在之后建立索引，建表时就拒绝
+    @Test
+    public void rejectsTableWithoutIndex() throws Exception {
+        assertSame(Error.TableNoIndexException,
+                assertThrows(Exception.class, () -> run("create table t id int32 (index)")));
+        assertSame(Error.TableNoIndexException,
+                assertThrows(Exception.class, () -> run("create table t id int32 (index name)")));
+        assertSame(Error.TableNotFoundException,
+                assertThrows(Exception.class, () -> run("insert into t values 1")));
+    }
+
+    // 事务撤销之后字段恢复为没有索引，可以重新建立；提交之后建立索引之前和之后插入的记录都能按新的索引找到
+    @Test
+    public void abortRollsBackIndex() throws Exception {
+        run("create table t id int64, name string (index id)");
+        for (int i = 1; i <= 300; i++) {
+            run("insert into t values " + i + " n" + (i % 10));
+        }
+
+        run("begin");
+        run("create index name on t");
+        run("insert into t values 1000 n3");
+        assertEquals(31, countLines(run("select * from t where name = n3")));
+        run("abort");
+        assertSame(Error.FieldNotIndexedException,
+                assertThrows(Exception.class, () -> run("select * from t where name = n3")));
+
+        run("begin");
+        run("create index name on t");
+        run("commit");
+        assertSame(Error.FieldIndexedException,
+                assertThrows(Exception.class, () -> run("create index name on t")));
+        run("insert into t values 1001 n3");
+        String res = run("select * from t where name = n3");
+        assertEquals(31, countLines(res));
+        assertTrue(res.contains("1001"));
+        assertFalse(res.contains("1000"));
+    }
+
+    private static int countLines(String res) {
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+}
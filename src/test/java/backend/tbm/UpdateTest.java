@@ -0,0 +1,72 @@
+package backend.tbm;
+
+import backend.dm.DataManager;
+import backend.server.Executor;
+import backend.tm.TransactionManager;
+import backend.vm.VersionManagerImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private Executor exe;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        String path = dir.resolve("t").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 24, tm);
+        exe = new Executor(TableManager.create(path, new VersionManagerImpl(tm, dm), dm));
+        run("create table t id int64, v int64, w int64 (index id w)");
+        for (int i = 1; i <= 5; i++) {
+            run("insert into t values " + i + " 0 0");
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        exe.close();
+        dm.close();
+        tm.close();
+    }
+
+    private String run(String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes()));
+    }
+
+    private static int countLines(String res) {
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+
+    // OR 的两个范围重叠时，两个游标都能找到的记录只更新一次；新版本接在链上，链头不变
+    @Test
+    public void overlappingRangesUpdateEachRowOnce() throws Exception {
+        assertEquals("update 3", run("update t set v = 7 where id < 4 or id < 3"));
+        assertEquals("[1, 7, 0]\n[2, 7, 0]\n[3, 7, 0]\n[4, 0, 0]\n[5, 0, 0]\n", run("select * from t"));
+
+        // 同一个事务再次更新时，可见的是自己写入的最新版本，同样每条记录只更新一次
+        run("begin");
+        assertEquals("update 3", run("update t set v = 8 where id < 4 or id < 3"));
+        assertEquals("update 3", run("update t set v = 9 where id < 4 or id < 3"));
+        run("commit");
+        assertEquals("[1, 9, 0]\n[2, 9, 0]\n[3, 9, 0]\n[4, 0, 0]\n[5, 0, 0]\n", run("select * from t"));
+    }
+
+    // 更新有索引的字段时删除原来的记录、插入新的记录，重叠的范围同样只更新一次，新的记录可以按新的值找到
+    @Test
+    public void overlappingRangesOnIndexedFieldUpdateEachRowOnce() throws Exception {
+        assertEquals("update 3", run("update t set w = 7 where id < 4 or id < 3"));
+        assertEquals(3, countLines(run("select * from t where w = 7")));
+        assertEquals("[1, 0, 7]\n[2, 0, 7]\n[3, 0, 7]\n[4, 0, 0]\n[5, 0, 0]\n", run("select * from t"));
+    }
+}
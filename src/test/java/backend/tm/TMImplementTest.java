@@ -0,0 +1,327 @@
+package backend.tm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TMImplementTest {
+    @TempDir
+    Path dir;
+
+    // 每段状态表保存的事务数
+    private static final long PER_SEGMENT = 32L * TMImplement.SEGMENT_LONGS;
+
+    // 第 xid 个事务的结局：0 保持 active，1 提交，2 撤销；只结束段边界附近的事务，以免 force 太多次
+    private static int fate(long xid) {
+        long off = xid % PER_SEGMENT;
+        if (xid > 200 && off > 100 && off < PER_SEGMENT - 100) {
+            return 0;
+        }
+        return (int) ((xid * 7) % 3);
+    }
+
+    private static void finish(TransactionManager tm, long xid) {
+        switch (fate(xid)) {
+            case 1:
+                tm.commit(xid);
+                break;
+            case 2:
+                tm.abort(xid);
+                break;
+            default:
+        }
+    }
+
+    private static void check(TransactionManager tm, long xid) {
+        int f = fate(xid);
+        assertEquals(f == 0, tm.isActive(xid), "xid " + xid);
+        assertEquals(f == 1, tm.isCommitted(xid), "xid " + xid);
+        assertEquals(f == 2, tm.isAborted(xid), "xid " + xid);
+    }
+
+    @Test
+    public void superXidIsAlwaysCommitted() {
+        TMImplement tm = TransactionManager.create(dir.resolve("s").toString());
+        assertTrue(tm.isCommitted(TMImplement.SUPER_XID));
+        assertFalse(tm.isActive(TMImplement.SUPER_XID));
+        assertFalse(tm.isAborted(TMImplement.SUPER_XID));
+        tm.close();
+    }
+
+    // 状态表分段保存，事务数跨过多个段时状态仍然正确，重新打开后从 XID 文件读回同样的状态
+    @Test
+    public void statusSurvivesReopenAcrossSegments() {
+        String path = dir.resolve("t").toString();
+        long n = 2 * PER_SEGMENT + 50;
+        TMImplement tm = TransactionManager.create(path);
+        for (long i = 1; i <= n; i++) {
+            assertEquals(i, tm.begin());
+            finish(tm, i);
+        }
+        for (long i = 1; i <= n; i++) {
+            check(tm, i);
+        }
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        for (long i = 1; i <= n; i++) {
+            check(tm, i);
+        }
+        assertEquals(n + 1, tm.begin());
+        tm.close();
+    }
+
+    // 同一个 long 中的 32 个事务被并发提交和撤销，互不覆盖
+    @Test
+    public void concurrentUpdatesInOneWord() throws Exception {
+        String path = dir.resolve("c").toString();
+        TMImplement tm = TransactionManager.create(path);
+        int n = 32 * 8;
+        for (int i = 1; i <= n; i++) {
+            tm.begin();
+        }
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long xid = 1 + id; xid <= n; xid += threads) {
+                    finish(tm, xid);
+                }
+            });
+            th.start();
+            workers.add(th);
+        }
+        start.countDown();
+        for (Thread th : workers) {
+            th.join();
+        }
+        for (long i = 1; i <= n; i++) {
+            check(tm, i);
+        }
+        tm.close();
+    }
+
+    // 没有正常关闭时，重启后的状态与崩溃前落盘的状态一致，新的 XID 不会与崩溃前分配过的 XID 重复
+    @Test
+    public void crashKeepsStatusAndNeverReusesXid() throws Exception {
+        String path = dir.resolve("k").toString();
+        TMImplement tm = TransactionManager.create(path);
+        long n = 1500;
+        for (long i = 1; i <= n; i++) {
+            tm.begin();
+            finish(tm, i);
+        }
+        Path crashed = dir.resolve("crashed");
+        Files.copy(Path.of(path + TMImplement.XID_SUFFIX), Path.of(crashed + TMImplement.XID_SUFFIX));
+        tm.close();
+
+        TMImplement reopened = TransactionManager.open(crashed.toString());
+        for (long i = 1; i <= n; i++) {
+            check(reopened, i);
+        }
+        long next = reopened.begin();
+        assertTrue(next > n, "reused xid " + next);
+        assertTrue(reopened.isActive(next));
+        reopened.commit(next);
+        assertTrue(reopened.isCommitted(next));
+        reopened.close();
+    }
+
+    private static Path xidFile(String path) {
+        return Path.of(path + TMImplement.XID_SUFFIX);
+    }
+
+    private static long fileLength(long counter) {
+        return TMImplement.LEN_XID_HEADER_LENGTH + counter;
+    }
+
+    // 直接从 XID 文件中读出事务的状态字节
+    private static byte statusOnDisk(RandomAccessFile raf, long xid) throws IOException {
+        raf.seek(TMImplement.LEN_XID_HEADER_LENGTH + xid - 1);
+        return raf.readByte();
+    }
+
+    /*
+    建立一个没有正常关闭的 XID 文件：分配 n 个事务并按 fate() 结束，文件头中是已经预留的最大 XID。
+    返回崩溃时的文件副本，之后由调用者模拟下一次预留只完成了一半
+     */
+    private String crashedImage(long n, String name) throws IOException {
+        String path = dir.resolve(name + "-live").toString();
+        TMImplement tm = TransactionManager.create(path);
+        for (long i = 1; i <= n; i++) {
+            tm.begin();
+            finish(tm, i);
+        }
+        String crashed = dir.resolve(name).toString();
+        Files.copy(xidFile(path), xidFile(crashed));
+        tm.close();
+        return crashed;
+    }
+
+    // 预留下一段 XID 时文件已经扩展，文件头还没有写入就崩溃：文件被截回文件头对应的长度，从文件头之后分配
+    @Test
+    public void crashAfterExtendBeforeHeader() throws Exception {
+        long n = 1500;
+        String crashed = crashedImage(n, "extended");
+        long reserved;
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile(crashed).toFile(), "rw")) {
+            reserved = raf.readLong();
+            assertTrue(reserved >= n);
+            assertEquals(fileLength(reserved), raf.length());
+            raf.setLength(fileLength(reserved + TMImplement.XID_RESERVE));
+        }
+
+        TMImplement tm = TransactionManager.open(crashed);
+        assertEquals(fileLength(reserved), Files.size(xidFile(crashed)));
+        for (long i = 1; i <= n; i++) {
+            check(tm, i);
+        }
+        long next = tm.begin();
+        assertEquals(reserved + 1, next);
+        tm.commit(next);
+        tm.close();
+
+        tm = TransactionManager.open(crashed);
+        assertTrue(tm.isCommitted(next));
+        assertEquals(next + 1, tm.begin());
+        tm.close();
+    }
+
+    // 文件头已经写入新的预留范围，文件还没有扩展就崩溃：文件被扩展到文件头对应的长度，新的部分都是 active
+    @Test
+    public void crashAfterHeaderBeforeExtend() throws Exception {
+        long n = 1500;
+        String crashed = crashedImage(n, "header");
+        long reserved;
+        try (RandomAccessFile raf = new RandomAccessFile(xidFile(crashed).toFile(), "rw")) {
+            reserved = raf.readLong();
+            raf.seek(0);
+            raf.writeLong(reserved + TMImplement.XID_RESERVE);
+        }
+
+        TMImplement tm = TransactionManager.open(crashed);
+        assertEquals(fileLength(reserved + TMImplement.XID_RESERVE), Files.size(xidFile(crashed)));
+        for (long i = 1; i <= n; i++) {
+            check(tm, i);
+        }
+        assertTrue(tm.isActive(reserved + 1));
+        long next = tm.begin();
+        assertEquals(reserved + TMImplement.XID_RESERVE + 1, next);
+        tm.abort(next);
+        tm.close();
+
+        tm = TransactionManager.open(crashed);
+        assertTrue(tm.isAborted(next));
+        tm.close();
+    }
+
+    /*
+    连续两次没有正常关闭：每次重启后都从预留范围之后分配，分配过的 XID（包括崩溃时仍然 active 的）不会被重用，
+    崩溃前落盘的状态都能读回
+     */
+    @Test
+    public void repeatedCrashesNeverReuseXid() throws Exception {
+        String path = dir.resolve("r0").toString();
+        TMImplement tm = TransactionManager.create(path);
+        List<Long> handedOut = new ArrayList<>();
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < 700; i++) {
+                long xid = tm.begin();
+                assertFalse(handedOut.contains(xid), "reused xid " + xid);
+                handedOut.add(xid);
+                if (i % 3 == 1) {
+                    tm.commit(xid);
+                } else if (i % 3 == 2) {
+                    tm.abort(xid);
+                }
+            }
+            String crashed = dir.resolve("r" + round).toString();
+            Files.copy(xidFile(path), xidFile(crashed));
+            tm.close();
+            path = crashed;
+            tm = TransactionManager.open(path);
+            for (int i = 0; i < handedOut.size(); i++) {
+                long xid = handedOut.get(i);
+                int k = (i % 700) % 3;
+                assertEquals(k == 0, tm.isActive(xid), "xid " + xid);
+                assertEquals(k == 1, tm.isCommitted(xid), "xid " + xid);
+                assertEquals(k == 2, tm.isAborted(xid), "xid " + xid);
+            }
+        }
+        tm.close();
+    }
+
+    /*
+    多个线程同时提交和撤销，共同 force：commit() 和 abort() 返回时状态已经写入 XID 文件，
+    之后从文件的副本重启，所有状态都能读回
+     */
+    @Test
+    public void concurrentCommitsAreDurableOnReturn() throws Exception {
+        String path = dir.resolve("g").toString();
+        TMImplement tm = TransactionManager.create(path);
+        int threads = 8, perThread = 300;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        List<List<Long>> committed = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Long> mine = new ArrayList<>();
+            committed.add(mine);
+            Thread th = new Thread(() -> {
+                try (RandomAccessFile raf = new RandomAccessFile(xidFile(path).toFile(), "r")) {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        long xid = tm.begin();
+                        boolean commit = (xid & 1) == 0;
+                        if (commit) {
+                            tm.commit(xid);
+                        } else {
+                            tm.abort(xid);
+                        }
+                        assertEquals(commit ? 1 : 2, statusOnDisk(raf, xid), "xid " + xid);
+                        mine.add(xid);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            th.start();
+            workers.add(th);
+        }
+        start.countDown();
+        for (Thread th : workers) {
+            th.join();
+        }
+        assertNull(failure.get());
+
+        String crashed = dir.resolve("g-crashed").toString();
+        Files.copy(xidFile(path), xidFile(crashed));
+        tm.close();
+        TMImplement reopened = TransactionManager.open(crashed);
+        for (List<Long> mine : committed) {
+            assertEquals(perThread, mine.size());
+            for (long xid : mine) {
+                assertEquals((xid & 1) == 0, reopened.isCommitted(xid), "xid " + xid);
+                assertEquals((xid & 1) == 1, reopened.isAborted(xid), "xid " + xid);
+            }
+        }
+        reopened.close();
+    }
+}
@@ -0,0 +1,75 @@
+package backend.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParserTest {
+    private static final long[] LONGS = {0, 1, -1, 255, 256, Long.MIN_VALUE, Long.MAX_VALUE, 0x0102030405060708L, 0x8877665544332211L};
+
+    // 在不对齐的偏移上读写，格式和 long2Byte() 相同，不影响相邻的字节
+    @Test
+    public void readWriteLongAtAnyOffset() {
+        for (long v : LONGS) {
+            for (int offset = 0; offset < 8; offset++) {
+                byte[] raw = new byte[offset + 8 + 3];
+                Arrays.fill(raw, (byte) 0x5A);
+                Parser.writeLong(raw, offset, v);
+                assertEquals(v, Parser.readLong(raw, offset));
+                assertArrayEquals(Parser.long2Byte(v), Arrays.copyOfRange(raw, offset, offset + 8));
+                assertEquals(v, Parser.parseLong(Arrays.copyOfRange(raw, offset, offset + 8)));
+                for (int i = 0; i < raw.length; i++) {
+                    if (i < offset || i >= offset + 8) {
+                        assertEquals((byte) 0x5A, raw[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readWriteShortAtAnyOffset() {
+        short[] values = {0, 1, -1, 0x7FFF, (short) 0x8000, (short) 0xFFFF, 0x0102};
+        for (short v : values) {
+            for (int offset = 0; offset < 3; offset++) {
+                byte[] raw = new byte[offset + 2];
+                Parser.writeShort(raw, offset, v);
+                assertEquals(v, Parser.readShort(raw, offset));
+                assertArrayEquals(Parser.short2Byte(v), Arrays.copyOfRange(raw, offset, offset + 2));
+            }
+        }
+    }
+
+    @Test
+    public void outOfBoundsAccessThrows() {
+        byte[] raw = new byte[10];
+        assertThrows(IndexOutOfBoundsException.class, () -> Parser.readLong(raw, 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> Parser.writeLong(raw, -1, 0));
+    }
+
+    // 整数 key 逐字节无符号比较的顺序和数值的顺序一致
+    @Test
+    public void integerKeysPreserveOrder() {
+        long[] sorted = LONGS.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(Arrays.compareUnsigned(Parser.long2Key(sorted[i - 1]), Parser.long2Key(sorted[i])) < 0);
+            int a = (int) sorted[i - 1], b = (int) sorted[i];
+            assertEquals(Integer.signum(Integer.compare(a, b)),
+                    Integer.signum(Arrays.compareUnsigned(Parser.int2Key(a), Parser.int2Key(b))));
+        }
+        assertEquals(4, Parser.int2Key(0).length);
+        assertEquals(8, Parser.long2Key(0).length);
+    }
+
+    @Test
+    public void stringKeysPreserveOrder() {
+        String[] sorted = {"", "a", "ab", "abc", "b", "z", "é", "中"};
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(Arrays.compareUnsigned(Parser.str2Key(sorted[i - 1]), Parser.str2Key(sorted[i])) < 0,
+                    sorted[i - 1] + " < " + sorted[i]);
+        }
+    }
+}
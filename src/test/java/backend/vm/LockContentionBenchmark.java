@@ -0,0 +1,72 @@
+package backend.vm;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+锁表在竞争下的吞吐：每个事务随机锁住 locksPerTxn 个资源后释放，资源一共 keys 个。
+keys 越小竞争越激烈，等待和死锁越多；aborts 统计因为死锁（或 WAIT_DIE、WOUND_WAIT 的规则）放弃的事务。
+
+mvn -B test-compile 之后运行 main()，会依次用 1 到 16 个线程运行；
+也可以运行 org.openjdk.jmh.Main LockContentionBenchmark -t 8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class LockContentionBenchmark {
+    @Param({"detect", "waitdie", "woundwait"})
+    String mode;
+
+    @Param({"16", "4096"})
+    int keys;
+
+    @Param({"4"})
+    int locksPerTxn;
+
+    private LockTable lt;
+    private AtomicLong xids;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long aborts;
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        lt = new LockTable(LockTable.parseMode(mode));
+        xids = new AtomicLong();
+    }
+
+    @Benchmark
+    public void transaction(Counters c) {
+        long xid = xids.incrementAndGet();
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        try {
+            for (int i = 0; i < locksPerTxn; i++) {
+                lt.add(xid, r.nextInt(keys), 0);
+            }
+        } catch (Exception e) {
+            c.aborts++;
+        } finally {
+            lt.remove(xid);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 4, 16}) {
+            new Runner(new OptionsBuilder()
+                    .include(LockContentionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package backend.vm;
+
+import common.Error;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LockTableTest {
+    private static final long A = 1, B = 2, C = 3;
+
+    // 在另一个线程中加锁，返回加锁的结果：正常获得资源时为 null，否则为抛出的异常
+    private static CompletableFuture<Exception> addAsync(LockTable lt, long xid, long uid, long timeout) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                lt.add(xid, uid, timeout);
+                return null;
+            } catch (Exception e) {
+                return e;
+            }
+        }, r -> new Thread(r).start());
+    }
+
+    // 等到 future 的线程开始等待
+    private static void waitUntilBlocked(CompletableFuture<Exception> f) throws InterruptedException {
+        Thread.sleep(50);
+        assertFalse(f.isDone());
+    }
+
+    private static Exception get(CompletableFuture<Exception> f) throws Exception {
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void waitersAreGrantedInFifoOrder() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, A, 0);
+        CompletableFuture<Exception> second = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(second);
+        CompletableFuture<Exception> third = addAsync(lt, 3, A, 0);
+        waitUntilBlocked(third);
+
+        lt.remove(1);
+        assertNull(get(second));
+        assertFalse(lt.tryAdd(4, A));
+        waitUntilBlocked(third);
+        lt.remove(2);
+        assertNull(get(third));
+        lt.remove(3);
+        assertTrue(lt.tryAdd(4, A));
+    }
+
+    @Test
+    public void cycleIsDetectedByNewWaiter() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, A, 0);
+        lt.add(2, B, 0);
+        CompletableFuture<Exception> waiter = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(waiter);
+        assertThrows(Exception.class, () -> lt.add(1, B, 0));
+        lt.remove(1);
+        assertNull(get(waiter));
+    }
+
+    /*
+    T1 持有 A，T2、T3 依次等待 A，T3 还持有 B。A 交给 T2 之后，T2 请求 B 时与 T3 形成环。
+    另外 T4 等待 T3 持有的 C，不在环上，不应该被撤销
+     */
+    @Test
+    public void cycleAfterGrantIsDetected() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, A, 0);
+        lt.add(3, B, 0);
+        lt.add(3, C, 0);
+        CompletableFuture<Exception> t2 = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(t2);
+        CompletableFuture<Exception> t3 = addAsync(lt, 3, A, 0);
+        waitUntilBlocked(t3);
+        CompletableFuture<Exception> t4 = addAsync(lt, 4, C, 0);
+        waitUntilBlocked(t4);
+
+        lt.remove(1);
+        assertNull(get(t2));
+        Exception e = assertThrows(Exception.class, () -> lt.add(2, B, 0));
+        assertSame(Error.DeadlockException, e);
+        lt.remove(2);
+        assertNull(get(t3));
+        lt.remove(3);
+        assertNull(get(t4));
+    }
+
+    @Test
+    public void waitTimesOut() throws Exception {
+        LockTable lt = new LockTable();
+        lt.add(1, A, 0);
+        long start = System.nanoTime();
+        Exception e = assertThrows(Exception.class, () -> lt.add(2, A, 100));
+        assertSame(Error.LockTimeoutException, e);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        // 超时的事务不再排队，A 释放后交给之后的等待者
+        CompletableFuture<Exception> t3 = addAsync(lt, 3, A, 0);
+        waitUntilBlocked(t3);
+        lt.remove(1);
+        assertNull(get(t3));
+    }
+
+    @Test
+    public void waitDieAbortsYoungerRequester() throws Exception {
+        LockTable lt = new LockTable(LockTable.WAIT_DIE);
+        lt.add(2, A, 0);
+        assertSame(Error.DeadlockException, assertThrows(Exception.class, () -> lt.add(3, A, 0)));
+        CompletableFuture<Exception> older = addAsync(lt, 1, A, 0);
+        waitUntilBlocked(older);
+        lt.remove(2);
+        assertNull(get(older));
+    }
+
+    /*
+    T5 持有 A，T2、T3 依次等待 A，加入等待时都比持有者老，可以等待。
+    A 交给 T2 之后，T3 比新的持有者年轻，只有在这时才违反 WAIT_DIE，T3 放弃等待，T2 正常获得资源
+     */
+    @Test
+    public void waitDieAbortsWaiterYoungerThanNewHolder() throws Exception {
+        LockTable lt = new LockTable(LockTable.WAIT_DIE);
+        lt.add(5, A, 0);
+        CompletableFuture<Exception> t2 = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(t2);
+        CompletableFuture<Exception> t3 = addAsync(lt, 3, A, 0);
+        waitUntilBlocked(t3);
+
+        lt.remove(5);
+        assertNull(get(t2));
+        assertSame(Error.DeadlockException, get(t3));
+        lt.remove(3);
+        lt.remove(2);
+        assertTrue(lt.tryAdd(3, A));
+    }
+
+    /*
+    T1 同时持有 A、B，释放时 A 交给 T2、B 交给 T3，排在后面的 T4、T5 改为等待新的持有者。
+    T2 再请求 T4 持有的 C，经过换了持有者的边形成环 T2 -> T4 -> T2，T2 放弃；
+    T3 请求 T5 持有的 D 同样形成环。不在环上的等待者之后正常获得资源
+     */
+    @Test
+    public void cycleThroughRegrantedEdgesIsDetected() throws Exception {
+        LockTable lt = new LockTable();
+        final long D = 4;
+        lt.add(1, A, 0);
+        lt.add(1, B, 0);
+        lt.add(4, C, 0);
+        lt.add(5, D, 0);
+        CompletableFuture<Exception> t2 = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(t2);
+        CompletableFuture<Exception> t3 = addAsync(lt, 3, B, 0);
+        waitUntilBlocked(t3);
+        CompletableFuture<Exception> t4 = addAsync(lt, 4, A, 0);
+        waitUntilBlocked(t4);
+        CompletableFuture<Exception> t5 = addAsync(lt, 5, B, 0);
+        waitUntilBlocked(t5);
+
+        lt.remove(1);
+        assertNull(get(t2));
+        assertNull(get(t3));
+        assertFalse(t4.isDone());
+        assertFalse(t5.isDone());
+        assertSame(Error.DeadlockException, assertThrows(Exception.class, () -> lt.add(2, C, 0)));
+        assertSame(Error.DeadlockException, assertThrows(Exception.class, () -> lt.add(3, D, 0)));
+
+        lt.remove(2);
+        assertNull(get(t4));
+        lt.remove(3);
+        assertNull(get(t5));
+        lt.remove(4);
+        lt.remove(5);
+    }
+
+    @Test
+    public void woundWaitCancelsWaitingVictim() throws Exception {
+        LockTable lt = new LockTable(LockTable.WOUND_WAIT);
+        lt.add(1, A, 0);
+        lt.add(2, B, 0);
+        CompletableFuture<Exception> victim = addAsync(lt, 2, A, 0);
+        waitUntilBlocked(victim);
+        CompletableFuture<Exception> older = addAsync(lt, 1, B, 0);
+        assertSame(Error.DeadlockException, get(victim));
+        assertTrue(lt.isWounded(2));
+        lt.remove(2);
+        assertNull(get(older));
+    }
+
+    // 被抢占的持有者没有在等待时通过回调通知；在队列中获得资源的同时被抢占的事务在 add() 返回前放弃
+    @Test
+    public void woundWaitNotifiesIdleVictim() throws Exception {
+        List<Long> wounded = new CopyOnWriteArrayList<>();
+        LockTable lt = new LockTable(LockTable.WOUND_WAIT, wounded::add);
+        lt.add(2, A, 0);
+        CompletableFuture<Exception> t3 = addAsync(lt, 3, A, 0);
+        waitUntilBlocked(t3);
+        CompletableFuture<Exception> t1 = addAsync(lt, 1, A, 0);
+        waitUntilBlocked(t1);
+        assertEquals(List.of(2L), wounded);
+
+        lt.remove(2);
+        assertSame(Error.DeadlockException, get(t3));
+        lt.remove(3);
+        assertNull(get(t1));
+        assertEquals(List.of(2L), wounded);
+    }
+
+    // 多个线程以随机的顺序加锁，死锁都被检测出来，所有事务最终结束，没有线程永远等待
+    @Test
+    public void randomLockingNeverHangs() {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            LockTable lt = new LockTable();
+            AtomicLong xids = new AtomicLong();
+            AtomicInteger committed = new AtomicInteger();
+            AtomicInteger aborted = new AtomicInteger();
+            int threads = 8;
+            CountDownLatch done = new CountDownLatch(threads);
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int seed = i;
+                Thread t = new Thread(() -> {
+                    Random r = new Random(seed);
+                    for (int n = 0; n < 300; n++) {
+                        long xid = xids.incrementAndGet();
+                        boolean ok = true;
+                        for (int k = 0; k < 3 && ok; k++) {
+                            try {
+                                lt.add(xid, r.nextInt(6), 0);
+                            } catch (Exception e) {
+                                ok = false;
+                            }
+                        }
+                        (ok ? committed : aborted).incrementAndGet();
+                        lt.remove(xid);
+                    }
+                    done.countDown();
+                });
+                t.start();
+                workers.add(t);
+            }
+            done.await();
+            assertEquals(threads * 300, committed.get() + aborted.get());
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package backend.vm;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VacuumTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+    private Vacuum vacuum;
+
+    @BeforeEach
+    public void setUp() {
+        String path = dir.resolve("v").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 22, tm);
+        vm = new VersionManagerImpl(tm, dm);
+        vacuum = new Vacuum(vm, 0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private long deadRow() throws Exception {
+        long xid = vm.begin(0);
+        long uid = vm.insert(xid, "dead".getBytes());
+        vm.commit(xid);
+        xid = vm.begin(0);
+        assertTrue(vm.delete(xid, uid));
+        vm.commit(xid);
+        assertNotNull(vacuum.deadRow(uid, vm.vacuumHorizon()));
+        return uid;
+    }
+
+    // 链头被事务锁住时不删除索引项，也不清理记录；锁释放之后再清理
+    @Test
+    public void lockedRowKeepsItsKeys() throws Exception {
+        long uid = deadRow();
+        long holder = vm.begin(0);
+        vm.lt.add(holder, uid, 0);
+
+        AtomicInteger removed = new AtomicInteger();
+        assertFalse(vacuum.freeRow(uid, removed::incrementAndGet));
+        assertEquals(0, removed.get());
+        assertEquals(0, vacuum.getRowsFreed());
+
+        vm.commit(holder);
+        assertTrue(vacuum.freeRow(uid, removed::incrementAndGet));
+        assertEquals(1, removed.get());
+        assertEquals(1, vacuum.getRowsFreed());
+    }
+
+    // free() 释放的 DataItem 在释放时的活跃事务结束之前不回收空间
+    @Test
+    public void freedSpaceWaitsForActiveTransactions() throws Exception {
+        long xid = vm.begin(0);
+        vm.insert(xid, "keep".getBytes());
+        long last = vm.insert(xid, new byte[200]);
+        vm.commit(xid);
+
+        long reader = vm.begin(0);
+        vacuum.free(last);
+        vacuum.vacuum();
+        assertEquals(0, vacuum.getBytesReclaimed());
+
+        vm.commit(reader);
+        vacuum.vacuum();
+        assertTrue(vacuum.getBytesReclaimed() >= 200);
+    }
+}
@@ -0,0 +1,131 @@
+package backend.vm;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import backend.util.Parser;
+import com.google.common.primitives.Bytes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VersionChainTest {
+    private static final long MEM = 1 << 22;
+
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+
+    @BeforeEach
+    public void setUp() {
+        String path = dir.resolve("c").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private long committedRow(String data) throws Exception {
+        long xid = vm.begin(0);
+        long uid = vm.insert(xid, bytes(data));
+        vm.commit(xid);
+        return uid;
+    }
+
+    // 读提交读到最新的已提交版本，可重复读沿着链找到快照中可见的版本，更新者读到自己的版本，链头的 UID 不变
+    @Test
+    public void chainIsWalkedUnderBothLevels() throws Exception {
+        long uid = committedRow("a");
+        long rr = vm.begin(1);
+        long rc = vm.begin(0);
+
+        long first = vm.begin(0);
+        assertEquals(uid, vm.update(first, uid, bytes("b")));
+        vm.commit(first);
+        long second = vm.begin(0);
+        assertEquals(uid, vm.update(second, uid, bytes("c")));
+
+        assertArrayEquals(bytes("c"), vm.read(second, uid));
+        assertArrayEquals(bytes("b"), vm.read(rc, uid));
+        assertArrayEquals(bytes("a"), vm.read(rr, uid));
+        long rrAfterFirst = vm.begin(1);
+        assertArrayEquals(bytes("b"), vm.read(rrAfterFirst, uid));
+
+        vm.commit(second);
+        assertArrayEquals(bytes("c"), vm.read(rc, uid));
+        assertArrayEquals(bytes("a"), vm.read(rr, uid));
+        assertArrayEquals(bytes("b"), vm.read(rrAfterFirst, uid));
+        assertArrayEquals(bytes("c"), vm.read(vm.begin(1), uid));
+        vm.commit(rr);
+        vm.commit(rc);
+        vm.commit(rrAfterFirst);
+    }
+
+    // 最新的版本被撤销之后仍然留在链上，再次更新时接在它后面，读者跳过撤销的版本
+    @Test
+    public void updateAfterAbortedNewerVersion() throws Exception {
+        long uid = committedRow("a");
+        long aborted = vm.begin(0);
+        assertEquals(uid, vm.update(aborted, uid, bytes("b")));
+        vm.abort(aborted);
+
+        long rr = vm.begin(1);
+        assertArrayEquals(bytes("a"), vm.read(rr, uid));
+        long writer = vm.begin(0);
+        assertEquals(uid, vm.update(writer, uid, bytes("c")));
+        assertArrayEquals(bytes("c"), vm.read(writer, uid));
+        assertArrayEquals(bytes("a"), vm.read(rr, uid));
+        vm.commit(writer);
+
+        assertArrayEquals(bytes("a"), vm.read(rr, uid));
+        assertArrayEquals(bytes("c"), vm.read(vm.begin(0), uid));
+        assertEquals(2, vm.liveVersions(uid).size());
+        vm.commit(rr);
+    }
+
+    // 旧格式的记录没有 LINK，更新时删除原来的记录、插入新的记录，返回新记录的 UID
+    @Test
+    public void legacyRowFallsBackToDeleteAndInsert() throws Exception {
+        long creator = vm.begin(0);
+        byte[] legacy = Bytes.concat(Parser.long2Byte(creator), new byte[8], bytes("a"));
+        long uid = dm.insert(creator, legacy);
+        vm.commit(creator);
+
+        long reader = vm.begin(1);
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        long writer = vm.begin(0);
+        long newUid = vm.update(writer, uid, bytes("b"));
+        assertNotEquals(0, newUid);
+        assertNotEquals(uid, newUid);
+        assertNull(vm.read(writer, uid));
+        assertArrayEquals(bytes("b"), vm.read(writer, newUid));
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        assertNull(vm.read(reader, newUid));
+        vm.commit(writer);
+
+        long after = vm.begin(0);
+        assertNull(vm.read(after, uid));
+        assertArrayEquals(bytes("b"), vm.read(after, newUid));
+        // 新记录是新格式，之后的更新接在它的版本链上
+        assertEquals(newUid, vm.update(after, newUid, bytes("c")));
+        assertArrayEquals(bytes("c"), vm.read(after, newUid));
+        vm.commit(after);
+        vm.commit(reader);
+    }
+}
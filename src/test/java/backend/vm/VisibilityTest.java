@@ -0,0 +1,274 @@
+package backend.vm;
+
+import backend.common.SubArray;
+import backend.dm.DataManager;
+import backend.dm.dataItem.DataItem;
+import backend.tm.TransactionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VisibilityTest {
+    private static final long MEM = 1 << 22;
+
+    @TempDir
+    Path dir;
+
+    private String path;
+    private CountingTM tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+
+    // 统计对 TM 状态的查询，只统计 watched 事务
+    static class CountingTM implements TransactionManager {
+        final TransactionManager tm;
+        volatile long watched = -1;
+        final AtomicInteger queries = new AtomicInteger();
+
+        CountingTM(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        private void count(long xid) {
+            if (xid == watched) {
+                queries.incrementAndGet();
+            }
+        }
+
+        public long begin() {
+            return tm.begin();
+        }
+
+        public void commit(long xid) {
+            tm.commit(xid);
+        }
+
+        public void abort(long xid) {
+            tm.abort(xid);
+        }
+
+        public boolean isActive(long xid) {
+            count(xid);
+            return tm.isActive(xid);
+        }
+
+        public boolean isCommitted(long xid) {
+            count(xid);
+            return tm.isCommitted(xid);
+        }
+
+        public boolean isAborted(long xid) {
+            count(xid);
+            return tm.isAborted(xid);
+        }
+
+        public void close() {
+            tm.close();
+        }
+
+        // 开始统计 xid 的查询，返回之前的计数
+        int watch(long xid) {
+            watched = xid;
+            return queries.getAndSet(0);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        path = dir.resolve("v").toString();
+        tm = new CountingTM(TransactionManager.create(path));
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (dm != null) {
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private void reopen() {
+        dm.close();
+        tm.close();
+        tm = new CountingTM(TransactionManager.open(path));
+        dm = DataManager.open(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    // 记录链头 XMIN 或 XMAX 字段最高字节上的提示位
+    private byte hint(long uid, int offset) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            SubArray sa = di.data();
+            return (byte) (sa.raw[sa.start + offset] & 0xC0);
+        } finally {
+            di.release();
+        }
+    }
+
+    private byte xminHint(long uid) throws Exception {
+        return hint(uid, 0);
+    }
+
+    private byte xmaxHint(long uid) throws Exception {
+        return hint(uid, 8);
+    }
+
+    @Test
+    public void readCommitted() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        long reader = vm.begin(0);
+        assertArrayEquals(bytes("a"), vm.read(writer, uid));
+        assertNull(vm.read(reader, uid));
+        vm.commit(writer);
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+
+        long deleter = vm.begin(0);
+        assertTrue(vm.delete(deleter, uid));
+        assertNull(vm.read(deleter, uid));
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        vm.commit(deleter);
+        assertNull(vm.read(reader, uid));
+        vm.commit(reader);
+    }
+
+    @Test
+    public void repeatableRead() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        long reader = vm.begin(1);
+        vm.commit(writer);
+        // 写入者在 reader 的快照中，提交之后仍然不可见
+        assertNull(vm.read(reader, uid));
+        long later = vm.begin(1);
+        assertArrayEquals(bytes("a"), vm.read(later, uid));
+
+        long deleter = vm.begin(0);
+        assertTrue(vm.delete(deleter, uid));
+        vm.commit(deleter);
+        // 删除者在 later 开始之后才开始，删除对 later 不可见
+        assertArrayEquals(bytes("a"), vm.read(later, uid));
+        assertNull(vm.read(vm.begin(1), uid));
+        vm.commit(reader);
+        vm.commit(later);
+    }
+
+    /*
+    可重复读事务共享最近建立的快照，有事务提交之后快照不再共享：
+    提交之后开始的事务看到提交的写入，之前开始的事务仍然看不到。撤销之后开始的事务看不到撤销的写入
+     */
+    @Test
+    public void sharedSnapshotIsDroppedAfterCommit() throws Exception {
+        long first = vm.begin(1);
+        long same = vm.begin(1);
+        assertSame(vm.activeTransaction.get(first).snapshot, vm.activeTransaction.get(same).snapshot);
+
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        vm.commit(writer);
+        long later = vm.begin(1);
+        assertNotSame(vm.activeTransaction.get(first).snapshot, vm.activeTransaction.get(later).snapshot);
+        assertArrayEquals(bytes("a"), vm.read(later, uid));
+        assertNull(vm.read(first, uid));
+        assertNull(vm.read(same, uid));
+
+        long aborted = vm.begin(0);
+        long other = vm.insert(aborted, bytes("b"));
+        vm.abort(aborted);
+        long last = vm.begin(1);
+        assertNull(vm.read(last, other));
+        assertNull(vm.read(later, other));
+        assertArrayEquals(bytes("a"), vm.read(last, uid));
+        assertNull(vm.read(first, uid));
+
+        vm.commit(first);
+        vm.commit(same);
+        vm.commit(later);
+        vm.commit(last);
+    }
+
+    // 已经提交的 XMIN 由第一个读者设置提示位，之后的读者不再查询 TM，提示位在重新打开后仍然有效
+    @Test
+    public void committedXminIsHinted() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        tm.watch(writer);
+        long reader = vm.begin(0);
+        assertNull(vm.read(reader, uid));
+        // 事务仍在进行时不能设置提示位
+        assertEquals(0, xminHint(uid));
+        vm.commit(writer);
+
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        assertTrue(tm.watch(writer) > 0);
+        assertEquals((byte) 0x80, xminHint(uid));
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        }
+        assertEquals(0, tm.watch(writer));
+        vm.commit(reader);
+
+        reopen();
+        tm.watch(writer);
+        long after = vm.begin(1);
+        assertArrayEquals(bytes("a"), vm.read(after, uid));
+        assertEquals(0, tm.watch(writer));
+        vm.commit(after);
+    }
+
+    // 撤销的事务插入的记录对所有事务不可见，同样设置提示位
+    @Test
+    public void abortedXminIsHinted() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        vm.abort(writer);
+
+        tm.watch(writer);
+        for (int level = 0; level <= 1; level++) {
+            long reader = vm.begin(level);
+            assertNull(vm.read(reader, uid));
+            vm.commit(reader);
+        }
+        assertEquals((byte) 0x40, xminHint(uid));
+        tm.watch(writer);
+        assertNull(vm.read(vm.begin(0), uid));
+        assertEquals(0, tm.watch(writer));
+    }
+
+    // 撤销的删除在 XMAX 上留下撤销的提示位，之后新的删除覆盖 XMAX 时必须同时清除提示位
+    @Test
+    public void xmaxHintIsClearedByNewDelete() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, bytes("a"));
+        vm.commit(writer);
+
+        long first = vm.begin(0);
+        assertTrue(vm.delete(first, uid));
+        vm.abort(first);
+        long reader = vm.begin(0);
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        assertEquals((byte) 0x40, xmaxHint(uid));
+
+        long second = vm.begin(0);
+        assertTrue(vm.delete(second, uid));
+        assertEquals(0, xmaxHint(uid));
+        assertArrayEquals(bytes("a"), vm.read(reader, uid));
+        vm.commit(second);
+        assertNull(vm.read(reader, uid));
+        assertEquals((byte) 0x80, xmaxHint(uid));
+        vm.commit(reader);
+    }
+}
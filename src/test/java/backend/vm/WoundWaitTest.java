@@ -0,0 +1,97 @@
+package backend.vm;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+import common.Error;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WoundWaitTest {
+    @TempDir
+    Path dir;
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+
+    @BeforeEach
+    public void setUp() {
+        String path = dir.resolve("w").toString();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 22, tm);
+        vm = new VersionManagerImpl(tm, dm, LockTable.WOUND_WAIT, 0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    // 被抢占的事务之后没有任何操作，较老的事务也不会一直等待：抢占者替它撤销，释放资源
+    @Test
+    public void idleVictimIsAbortedByWounder() throws Exception {
+        long init = vm.begin(0);
+        long uid = vm.insert(init, "a".getBytes());
+        vm.commit(init);
+
+        long older = vm.begin(0);
+        long younger = vm.begin(0);
+        assertEquals(uid, vm.update(younger, uid, "b".getBytes()));
+
+        CompletableFuture<Boolean> delete = CompletableFuture.supplyAsync(() -> {
+            try {
+                return vm.delete(older, uid);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(delete.get(5, TimeUnit.SECONDS));
+        assertTrue(tm.isAborted(younger));
+
+        // 被撤销的事务之后的操作和提交都失败
+        assertSame(Error.ConcurrentUpdateException, assertThrows(Exception.class, () -> vm.read(younger, uid)));
+        assertSame(Error.ConcurrentUpdateException, assertThrows(Exception.class, () -> vm.commit(younger)));
+        vm.abort(younger);
+
+        vm.commit(older);
+        long reader = vm.begin(0);
+        assertNull(vm.read(reader, uid));
+        vm.commit(reader);
+    }
+
+    // 较新的事务请求较老事务持有的资源时等待，较老的事务提交后获得资源
+    @Test
+    public void youngerWaitsForOlder() throws Exception {
+        long init = vm.begin(0);
+        long uid = vm.insert(init, "a".getBytes());
+        vm.commit(init);
+
+        long older = vm.begin(0);
+        long younger = vm.begin(0);
+        assertEquals(uid, vm.update(older, uid, "b".getBytes()));
+        CompletableFuture<Long> update = CompletableFuture.supplyAsync(() -> {
+            try {
+                return vm.update(younger, uid, "c".getBytes());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(update.isDone());
+        vm.commit(older);
+        assertEquals(uid, update.get(5, TimeUnit.SECONDS));
+        vm.commit(younger);
+        long reader = vm.begin(0);
+        assertArrayEquals("c".getBytes(), vm.read(reader, uid));
+        vm.commit(reader);
+    }
+}